@@ -26,6 +26,12 @@ DROP TABLE IF EXISTS "User_Team";
 DROP TABLE IF EXISTS "Team";
 DROP TABLE IF EXISTS "User";
 
+DROP FUNCTION IF EXISTS bump_row_version;
+-- Left by the databases created before the table versions were dropped
+DROP TABLE IF EXISTS "TableVersion";
+DROP FUNCTION IF EXISTS bump_table_version;
+DROP FUNCTION IF EXISTS notify_change;
+
 DROP TYPE IF EXISTS "UserRole";
 DROP TYPE IF EXISTS "Material";
 
@@ -59,6 +65,8 @@ CREATE TABLE "Project"(
 	id SERIAL,
 	name VARCHAR(100) NOT NULL,
     description TEXT,
+	version BIGINT NOT NULL DEFAULT 1,
+	updatedAt TIMESTAMPTZ NOT NULL DEFAULT NOW(),
 	CONSTRAINT PK_Project PRIMARY KEY(id),
 	CONSTRAINT UC_Project_name UNIQUE(name)
 );
@@ -69,6 +77,8 @@ CREATE TABLE "User"(
 	lastname VARCHAR(100) NOT NULL,
 	email VARCHAR(255) NOT NULL,
 	role "UserRole" DEFAULT 'CONTRIBUTOR',
+	version BIGINT NOT NULL DEFAULT 1,
+	updatedAt TIMESTAMPTZ NOT NULL DEFAULT NOW(),
 	CONSTRAINT PK_User PRIMARY KEY(id),
 	CONSTRAINT UC_User_email UNIQUE(email),
 	CONSTRAINT CK_User_email CHECK (email ~* '^[a-z0-9._%+-]+@[a-z0-9.-]+\.[a-z]{2,}$')
@@ -78,6 +88,8 @@ CREATE TABLE "Team" (
 	id SERIAL,
 	name VARCHAR(50) NOT NULL,
 	managerId INT NULL,
+	version BIGINT NOT NULL DEFAULT 1,
+	updatedAt TIMESTAMPTZ NOT NULL DEFAULT NOW(),
 	CONSTRAINT PK_Team PRIMARY KEY(id),
 	CONSTRAINT FK_Team_managerId FOREIGN KEY (managerId) REFERENCES "User"(id) ON DELETE SET NULL ON UPDATE CASCADE,
 	CONSTRAINT UC_Team_name UNIQUE(name)
@@ -99,6 +111,8 @@ CREATE TABLE "Goal"(
 	tag TEXT,
 	projectId INT NOT NULL,
     teamId INT,
+	version BIGINT NOT NULL DEFAULT 1,
+	updatedAt TIMESTAMPTZ NOT NULL DEFAULT NOW(),
 	CONSTRAINT PK_Goal PRIMARY KEY(id),
 	CONSTRAINT FK_Goal_projectId FOREIGN KEY (projectId) REFERENCES "Project"(id) ON DELETE CASCADE ON UPDATE CASCADE,
     CONSTRAINT FK_Goal_teamId FOREIGN KEY (teamId) REFERENCES "Team"(id) ON DELETE SET NULL ON UPDATE CASCADE,
@@ -112,6 +126,8 @@ CREATE TABLE "Result"(
 	note TEXT,
 	tag TEXT,
 	goalId INT NOT NULL,
+	version BIGINT NOT NULL DEFAULT 1,
+	updatedAt TIMESTAMPTZ NOT NULL DEFAULT NOW(),
 	CONSTRAINT PK_Result PRIMARY KEY(id),
 	CONSTRAINT FK_Result_goalId FOREIGN KEY (goalId) REFERENCES "Goal"(id) ON DELETE CASCADE ON UPDATE CASCADE,
 	CONSTRAINT CHK_Result_dates CHECK (createdAt < endsAt)
@@ -124,11 +140,13 @@ CREATE TABLE "Task"(
     title VARCHAR(150) NOT NULL,
 	startsAt TIMESTAMP NOT NULL,
 	done BOOLEAN NOT NULL DEFAULT FALSE,
-	priority "TaskPriority" DEFAULT 'MEDIUM',
-	deadline "TaskDeadline" DEFAULT 'THREE_MONTHS',
+	priority "TaskPriority" NOT NULL DEFAULT 'MEDIUM',
+	deadline "TaskDeadline" NOT NULL DEFAULT 'THREE_MONTHS',
 	note TEXT,
 	tag TEXT,
 	resultId INT NOT NULL,
+	version BIGINT NOT NULL DEFAULT 1,
+	updatedAt TIMESTAMPTZ NOT NULL DEFAULT NOW(),
 	CONSTRAINT PK_Task PRIMARY KEY(id),
 	CONSTRAINT UC_Task_starts_at UNIQUE(startsAt),
 	CONSTRAINT FK_Task_resultId FOREIGN KEY (resultId) REFERENCES "Result"(id) ON DELETE CASCADE ON UPDATE CASCADE
@@ -145,6 +163,16 @@ CREATE TABLE "Task_Subtask" (
 	CONSTRAINT UC_Task_taskId_subtaskId UNIQUE(taskId, subtaskId)
 );
 
+-- Indexes of the task lists of a user (GET /tasks): User_Team -> Goal -> Result -> Task.
+-- The list spans all the results of the teams of the user, so no per-result index can give
+-- its sort order: the tasks found are sorted, and every index added here slows the writes down.
+CREATE INDEX IX_User_Team_teamId ON "User_Team"(teamId);
+CREATE INDEX IX_Goal_teamId ON "Goal"(teamId);
+CREATE INDEX IX_Result_goalId ON "Result"(goalId);
+CREATE INDEX IX_Task_resultId ON "Task"(resultId, id);
+-- Most lists only show the tasks still to do
+CREATE INDEX IX_Task_resultId_open ON "Task"(resultId, startsAt, id) WHERE done = false;
+
 -- Function to find all subtasks recursively (including existing ones in DB)
 CREATE OR REPLACE FUNCTION find_all_subtasks(start_id INTEGER, current_id INTEGER DEFAULT NULL)
 RETURNS SETOF INTEGER AS $$
@@ -329,9 +357,11 @@ BEGIN
 END;
 $$ LANGUAGE plpgsql;
 
+-- Skipped by the bulk imports (okr.bulk_import set for their transaction), which check the dates of all their rows at once
 CREATE TRIGGER check_task_dates_trigger
 BEFORE INSERT OR UPDATE ON "Task"
 FOR EACH ROW
+WHEN (current_setting('okr.bulk_import', true) IS DISTINCT FROM 'on')
 EXECUTE FUNCTION check_task_dates();
 
 -- check when deleting a task if it is the requiredTask of another one that isn't done yet
@@ -400,3 +430,69 @@ BEFORE INSERT OR UPDATE ON "Task_Subtask"
 FOR EACH ROW
 EXECUTE FUNCTION task_dependencies();
 
+-- Versions of the rows, used by the API to build the ETag and Last-Modified headers
+CREATE OR REPLACE FUNCTION bump_row_version()
+RETURNS TRIGGER AS $$
+BEGIN
+    NEW.version := OLD.version + 1;
+    NEW.updatedAt := clock_timestamp();
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER bump_project_version BEFORE UPDATE ON "Project" FOR EACH ROW EXECUTE FUNCTION bump_row_version();
+CREATE TRIGGER bump_user_version BEFORE UPDATE ON "User" FOR EACH ROW EXECUTE FUNCTION bump_row_version();
+CREATE TRIGGER bump_team_version BEFORE UPDATE ON "Team" FOR EACH ROW EXECUTE FUNCTION bump_row_version();
+CREATE TRIGGER bump_goal_version BEFORE UPDATE ON "Goal" FOR EACH ROW EXECUTE FUNCTION bump_row_version();
+CREATE TRIGGER bump_result_version BEFORE UPDATE ON "Result" FOR EACH ROW EXECUTE FUNCTION bump_row_version();
+CREATE TRIGGER bump_task_version BEFORE UPDATE ON "Task" FOR EACH ROW EXECUTE FUNCTION bump_row_version();
+
+-- Notify the backend instances of every committed change, so they can invalidate their caches.
+-- The origin (application_name of the writer) lets an instance ignore its own changes.
+CREATE OR REPLACE FUNCTION notify_change()
+RETURNS TRIGGER AS $$
+DECLARE
+    new_row JSONB := CASE WHEN TG_OP = 'DELETE' THEN NULL ELSE to_jsonb(NEW) END;
+    old_row JSONB := CASE WHEN TG_OP = 'INSERT' THEN NULL ELSE to_jsonb(OLD) END;
+    row_data JSONB := COALESCE(new_row, old_row);
+    -- Teams whose members see the row (NULL when they cannot be found anymore, e.g. during a cascade)
+    team_ids JSONB;
+BEGIN
+    IF TG_TABLE_NAME = 'Goal' THEN
+        team_ids := jsonb_build_array(new_row->'teamid', old_row->'teamid');
+    ELSIF TG_TABLE_NAME = 'Result' THEN
+        SELECT jsonb_agg(g.teamId) INTO team_ids
+        FROM "Goal" g
+        WHERE g.id IN ((new_row->>'goalid')::INT, (old_row->>'goalid')::INT);
+    ELSIF TG_TABLE_NAME = 'Task' THEN
+        SELECT jsonb_agg(g.teamId) INTO team_ids
+        FROM "Result" r
+        INNER JOIN "Goal" g ON g.id = r.goalId
+        WHERE r.id IN ((new_row->>'resultid')::INT, (old_row->>'resultid')::INT);
+    END IF;
+
+    PERFORM pg_notify('okr_changes', jsonb_build_object(
+        'table', TG_TABLE_NAME,
+        'op', TG_OP,
+        'id', row_data->'id',
+        'userId', row_data->'userid',
+        'teamId', row_data->'teamid',
+        'teamIds', team_ids,
+        'roleChanged', TG_OP = 'UPDATE' AND (new_row->'role') IS DISTINCT FROM (old_row->'role'),
+        'origin', current_setting('application_name')
+    )::TEXT);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER notify_project_change AFTER INSERT OR UPDATE OR DELETE ON "Project" FOR EACH ROW EXECUTE FUNCTION notify_change();
+CREATE TRIGGER notify_user_change AFTER INSERT OR UPDATE OR DELETE ON "User" FOR EACH ROW EXECUTE FUNCTION notify_change();
+CREATE TRIGGER notify_team_change AFTER INSERT OR UPDATE OR DELETE ON "Team" FOR EACH ROW EXECUTE FUNCTION notify_change();
+CREATE TRIGGER notify_user_team_change AFTER INSERT OR UPDATE OR DELETE ON "User_Team" FOR EACH ROW EXECUTE FUNCTION notify_change();
+-- The bulk imports send a single notification per import instead (see ChangeNotifier.notifyBulk)
+CREATE TRIGGER notify_goal_change AFTER INSERT OR UPDATE OR DELETE ON "Goal" FOR EACH ROW
+    WHEN (current_setting('okr.bulk_import', true) IS DISTINCT FROM 'on') EXECUTE FUNCTION notify_change();
+CREATE TRIGGER notify_result_change AFTER INSERT OR UPDATE OR DELETE ON "Result" FOR EACH ROW
+    WHEN (current_setting('okr.bulk_import', true) IS DISTINCT FROM 'on') EXECUTE FUNCTION notify_change();
+CREATE TRIGGER notify_task_change AFTER INSERT OR UPDATE OR DELETE ON "Task" FOR EACH ROW
+    WHEN (current_setting('okr.bulk_import', true) IS DISTINCT FROM 'on') EXECUTE FUNCTION notify_change();
@@ -12,14 +12,19 @@ import ch.heigvd.bdr.misc.AuthRole;
 import ch.heigvd.bdr.controllers.*;
 import ch.heigvd.bdr.dao.UserDAO;
 import ch.heigvd.bdr.exceptions.DatabaseExceptionHandler;
+import ch.heigvd.bdr.misc.ChangeNotifier;
+import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.JwtUtil;
+import ch.heigvd.bdr.misc.RoleCache;
 import ch.heigvd.bdr.misc.StringHelper;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.User;
-import ch.heigvd.bdr.models.UserRole;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
 import io.javalin.http.UnauthorizedResponse;
 import io.javalin.openapi.*;
 import io.javalin.openapi.plugin.OpenApiPlugin;
@@ -86,7 +91,18 @@ public final class Main /* implements Handler */ {
      * @throws IOException
      */
     public static void main(String[] args) throws SQLException, ClassNotFoundException, IOException {
+        // Open the connection pool once, before serving any request
+        DatabaseUtil.init();
+        // Tokens issued by one instance must be accepted by the others: no secret, no start
+        JwtUtil.init();
+
+        listenToChanges();
+
         var app = javalinBootstrap();
+        app.events(event -> event.serverStopped(() -> {
+            ChangeNotifier.stop();
+            DatabaseUtil.close();
+        }));
 
         Logger log = LoggerFactory.getLogger(Main.class);
 
@@ -99,18 +115,24 @@ public final class Main /* implements Handler */ {
         app.exception(Exception.class, DatabaseExceptionHandler::handleGenericException);
 
         app.beforeMatched(ctx -> {
-            var userRole = getUserRole(ctx);
+            // Every DAO call of the request shares one connection, writes run in one transaction
+            UnitOfWork.begin(ctx.method() != HandlerType.GET && ctx.method() != HandlerType.HEAD);
+
             var permittedRoles = ctx.routeRoles();
             if (permittedRoles.contains(AuthRole.ANY)) {
                 return; // anyone can access
             }
 
+            var userRole = getUserRole(ctx);
             if (!ctx.routeRoles().contains(userRole)) {
                 throw new UnauthorizedResponse();
             }
 
         });
 
+        // Commit (or roll back on error) and release the connection of the request
+        app.after(ctx -> UnitOfWork.end(ctx.statusCode() < 400));
+
         routes(app);
 
         String portEnv = System.getenv("JAVALIN_PORT");
@@ -125,7 +147,26 @@ public final class Main /* implements Handler */ {
     }
 
     /**
-     * Get the user's authorizations based on his id
+     * Keep the in-memory caches of this instance up to date with the writes made by the other instances
+     */
+    private static void listenToChanges() {
+        ChangeNotifier.subscribe("User", change -> {
+            if (change.id() == null || change.local()) {
+                // Own writes already invalidate the cache and revoke the tokens
+                return;
+            }
+            RoleCache.invalidate(change.id());
+            if (change.op().equals("DELETE") || change.roleChanged()) {
+                // Revoked by the instance that made the change, but only in its own memory
+                JwtUtil.revoke(change.id());
+            }
+        });
+        ChangeNotifier.onResync(RoleCache::invalidateAll);
+        ChangeNotifier.start();
+    }
+
+    /**
+     * Get the user's authorizations from his token, or based on his id
      *
      * @param ctx: current context to get/send data
      * @throws ClassNotFoundException
@@ -134,6 +175,13 @@ public final class Main /* implements Handler */ {
      * @return The user's role
      */
     private static AuthRole getUserRole(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        String authorization = ctx.header("Authorization");
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            // Signed token: verified in memory, no database access
+            JwtUtil.AuthToken token = JwtUtil.verify(authorization.substring("Bearer ".length()).trim());
+            return token == null ? AuthRole.NONE : token.role();
+        }
+
         String userId = ctx.header("X-User-ID");
         if (userId == null || !StringHelper.isInteger(userId)) {
             return AuthRole.NONE;
@@ -141,18 +189,15 @@ public final class Main /* implements Handler */ {
 
         int id = Integer.parseInt(userId);
 
-        UserDAO userDAO = new UserDAO();
-        User user = userDAO.findById(id);
-        if (user == null) {
-            return AuthRole.NONE;
-        }
-
-        if (user.getRole() == UserRole.ADMIN || user.getRole() == UserRole.MANAGER) {
-            return AuthRole.SUPER;
-        }
-
-        return AuthRole.NORMAL;
+        return RoleCache.get(id, () -> {
+            UserDAO userDAO = new UserDAO();
+            User user = userDAO.findById(id);
+            if (user == null) {
+                return AuthRole.NONE;
+            }
 
+            return AuthRole.fromUserRole(user.getRole());
+        });
     }
 
     /**
@@ -165,8 +210,12 @@ public final class Main /* implements Handler */ {
             ctx.result("hello");
         }, AuthRole.ANY);
 
+        AuthController authController = new AuthController();
+        app.post("/auth/token", authController::token, AuthRole.ANY);
+
         UserController userController = new UserController();
         app.get("/users", userController::all, AuthRole.ANY);
+        app.get("/users/stream", userController::stream, AuthRole.ANY);
         app.get("/users/{id}", userController::show, AuthRole.ANY);
         app.post("/users", userController::create, AuthRole.ANY);
         app.put("/users/{id}", userController::update, AuthRole.ANY);
@@ -186,7 +235,9 @@ public final class Main /* implements Handler */ {
 
         ProjectController projectController = new ProjectController();
         app.get("/projects", projectController::all, AuthRole.ANY);
+        app.get("/projects/stream", projectController::stream, AuthRole.ANY);
         app.get("/projects/{id}", projectController::show, AuthRole.ANY);
+        app.get("/projects/{id}/tree", projectController::tree, AuthRole.ANY);
         app.post("/projects", projectController::create, AuthRole.SUPER);
         app.put("/projects/{id}", projectController::update, AuthRole.SUPER);
         app.delete("/projects/{id}", projectController::delete, AuthRole.SUPER);
@@ -195,6 +246,8 @@ public final class Main /* implements Handler */ {
         GoalController goalController = new GoalController();
         app.get("/goals", goalController::all, AuthRole.ANY);
         app.get("/goals/{id}", goalController::show, AuthRole.ANY);
+        app.post("/goals/batch", goalController::createBatch, AuthRole.SUPER);
+        app.put("/goals/batch", goalController::updateBatch, AuthRole.SUPER);
         app.post("/goals", goalController::create, AuthRole.SUPER);
         app.put("/goals/{id}", goalController::update, AuthRole.SUPER);
         app.delete("/goals/{id}", goalController::delete, AuthRole.SUPER);
@@ -210,7 +263,11 @@ public final class Main /* implements Handler */ {
         // Task routes
         TaskController taskController = new TaskController();
         app.get("/tasks", taskController::all, AuthRole.ANY);
+        app.get("/tasks/stream", taskController::stream, AuthRole.ANY);
         app.get("/tasks/{id}", taskController::show, AuthRole.ANY);
+        app.get("/tasks/{id}/full", taskController::full, AuthRole.ANY);
+        app.post("/tasks/batch", taskController::createBatch, AuthRole.SUPER);
+        app.put("/tasks/batch", taskController::updateBatch, AuthRole.SUPER);
         app.post("/tasks", taskController::create, AuthRole.SUPER);
         app.put("/tasks/{id}", taskController::update, AuthRole.SUPER);
         app.delete("/tasks/{id}", taskController::delete, AuthRole.SUPER);
@@ -227,7 +284,16 @@ public final class Main /* implements Handler */ {
         app.put("/tasks/{id}/materialNeeds/{type}", taskController::updateMaterialNeed, AuthRole.SUPER);
         app.put("/tasks/{id}/collaboratorNeeds/{type}", taskController::updateCollaboratorNeed, AuthRole.SUPER);
 
+        ImportController importController = new ImportController();
+        app.post("/goals/import", importController::goals, AuthRole.SUPER);
+        app.post("/results/import", importController::results, AuthRole.SUPER);
+        app.post("/tasks/import", importController::tasks, AuthRole.SUPER);
+
+        ExportController exportController = new ExportController();
+        app.get("/export/{entity}", exportController::export, AuthRole.SUPER);
+
         HealthController healthController = new HealthController();
         app.get("/health", healthController::checkHealth, AuthRole.ANY);
+        app.get("/metrics", healthController::metrics, AuthRole.ANY);
     }
 }
\ No newline at end of file
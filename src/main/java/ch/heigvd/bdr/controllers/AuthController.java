@@ -0,0 +1,93 @@
+package ch.heigvd.bdr.controllers;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.heigvd.bdr.dao.UserDAO;
+import ch.heigvd.bdr.misc.AuthRole;
+import ch.heigvd.bdr.misc.JwtUtil;
+import ch.heigvd.bdr.misc.StringHelper;
+import ch.heigvd.bdr.models.User;
+import io.javalin.http.Context;
+import io.javalin.openapi.HttpMethod;
+import io.javalin.openapi.OpenApi;
+import io.javalin.openapi.OpenApiContent;
+import io.javalin.openapi.OpenApiRequestBody;
+import io.javalin.openapi.OpenApiResponse;
+
+/**
+ * Issues the signed tokens that carry the identity of the users.
+ * No credential is checked: a token only proves the identity already claimed
+ * by the caller, it is not an authentication.
+ */
+public class AuthController {
+    private final UserDAO userDAO = new UserDAO();
+
+    /**
+     * Issue a token for a user. The caller must already be identified as this
+     * user (X-User-ID header or token) or as a super user
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/auth/token", methods = HttpMethod.POST, operationId = "issueToken", summary = "Get an access token", description = "Issues a signed token for the user with the given email. The token must be sent in the Authorization header (Bearer scheme). No credential is checked: the caller must already be identified as this user (X-User-ID header or token) or as a super user, so the token is not an authentication, it only carries the identity already claimed.", tags = "Auth", requestBody = @OpenApiRequestBody(description = "Email of the user", content = @OpenApiContent(from = HashMap.class)), responses = {
+            @OpenApiResponse(status = "200", description = "Token issued"),
+            @OpenApiResponse(status = "400", description = "Missing email"),
+            @OpenApiResponse(status = "403", description = "The caller is not identified as this user"),
+            @OpenApiResponse(status = "404", description = "User not found"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void token(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        HashMap<String, Object> requestBody = ctx.bodyAsClass(HashMap.class);
+        if (!(requestBody.get("email") instanceof String email)) {
+            ctx.status(400).json(Map.of("message", "Missing email"));
+            return;
+        }
+
+        User user = userDAO.findByEmail(email);
+        if (user == null) {
+            ctx.status(404).json(Map.of("message", "User not found"));
+            return;
+        }
+
+        JwtUtil.AuthToken caller = getCaller(ctx);
+        if (caller == null || (caller.userId() != user.getId() && caller.role() != AuthRole.SUPER)) {
+            ctx.status(403).json(Map.of("message", "Tokens are only issued to the user already identified"));
+            return;
+        }
+
+        ctx.json(Map.of(
+                "token", JwtUtil.issue(user),
+                "expiresIn", JwtUtil.getTtl(),
+                "userId", user.getId(),
+                "role", AuthRole.fromUserRole(user.getRole()).name()));
+    }
+
+    /**
+     * Get the identity claimed by the caller of a request
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return id and role of the caller, null if the caller is not identified
+     */
+    private JwtUtil.AuthToken getCaller(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        String authorization = ctx.header("Authorization");
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            return JwtUtil.verify(authorization.substring("Bearer ".length()).trim());
+        }
+
+        String userId = ctx.header("X-User-ID");
+        if (userId == null || !StringHelper.isInteger(userId)) {
+            return null;
+        }
+
+        User caller = userDAO.findById(Integer.parseInt(userId));
+        return caller == null ? null : new JwtUtil.AuthToken(caller.getId(), AuthRole.fromUserRole(caller.getRole()));
+    }
+}
@@ -0,0 +1,85 @@
+package ch.heigvd.bdr.controllers;
+
+import io.javalin.http.Context;
+import io.javalin.openapi.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import ch.heigvd.bdr.dao.ExportDAO;
+import ch.heigvd.bdr.misc.StringHelper;
+
+/**
+ * Exports whole tables (e.g. for BI extracts) as CSV or NDJSON files, streamed from the database (see ExportDAO)
+ */
+public class ExportController {
+    private final ExportDAO exportDAO = new ExportDAO();
+
+    /**
+     * Export the projects, goals, results or tasks
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/export/{entity}", methods = HttpMethod.GET, operationId = "export", summary = "Export an entity", description = "Streams all the rows of an entity, ordered by id, as formatted by the database. The columns are named as the JSON fields, so the files can be imported again.", tags = "Export", pathParams = {
+            @OpenApiParam(name = "entity", required = true, description = "projects, goals, results or tasks")
+    }, queryParams = {
+            @OpenApiParam(name = "format", required = false, description = "csv (default, with a header line) or ndjson (one JSON object per line)"),
+            @OpenApiParam(name = "gzip", required = false, type = Boolean.class, description = "true to download a gzipped file"),
+            @OpenApiParam(name = "projectId", required = false, type = Integer.class, description = "Only the rows of this project"),
+            @OpenApiParam(name = "teamId", required = false, type = Integer.class, description = "Only the rows of the goals of this team")
+    }, responses = {
+            @OpenApiResponse(status = "200", description = "Rows of the entity", content = {
+                    @OpenApiContent(mimeType = "text/csv", type = "string"),
+                    @OpenApiContent(mimeType = "application/x-ndjson", type = "string"),
+                    @OpenApiContent(mimeType = "application/gzip", type = "string")
+            }),
+            @OpenApiResponse(status = "400", description = "Invalid parameter"),
+            @OpenApiResponse(status = "404", description = "Unknown entity"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void export(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        String entity = ctx.pathParam("entity");
+        if (!ExportDAO.ENTITIES.contains(entity)) {
+            ctx.status(404).json(Map.of("message", "Unknown entity, must be one of " + ExportDAO.ENTITIES + "."));
+            return;
+        }
+
+        String format = ctx.queryParam("format") == null ? "csv" : ctx.queryParam("format");
+        if (!ExportDAO.FORMATS.contains(format)) {
+            ctx.status(400).json(Map.of("message", "'format' must be one of " + ExportDAO.FORMATS + "."));
+            return;
+        }
+
+        String projectId = ctx.queryParam("projectId");
+        String teamId = ctx.queryParam("teamId");
+        if ((projectId != null && !StringHelper.isInteger(projectId)) || (teamId != null && !StringHelper.isInteger(teamId))) {
+            ctx.status(400).json(Map.of("message", "'projectId' and 'teamId' must be integers."));
+            return;
+        }
+
+        String fileName = entity + "." + format;
+        boolean gzip = "true".equals(ctx.queryParam("gzip"));
+        if (gzip) {
+            // Already compressed, Javalin sends it as is
+            ctx.contentType("application/gzip");
+            fileName += ".gz";
+        } else {
+            ctx.contentType(format.equals("csv") ? "text/csv; charset=utf-8" : "application/x-ndjson");
+        }
+        ctx.header("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+
+        OutputStream out = gzip ? new GZIPOutputStream(ctx.outputStream(), 64 * 1024) : ctx.outputStream();
+        try (out) {
+            exportDAO.export(entity, format,
+                    projectId == null ? null : Integer.valueOf(projectId),
+                    teamId == null ? null : Integer.valueOf(teamId),
+                    out);
+        }
+    }
+}
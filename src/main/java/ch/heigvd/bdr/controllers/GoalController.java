@@ -4,13 +4,22 @@ package ch.heigvd.bdr.controllers;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
+import ch.heigvd.bdr.dao.Expand;
 import ch.heigvd.bdr.dao.GoalDAO;
 import ch.heigvd.bdr.dao.UserDAO;
+import ch.heigvd.bdr.misc.CollectionVersion;
+import ch.heigvd.bdr.misc.ResponseCache;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Page;
+import ch.heigvd.bdr.misc.Pagination;
 import ch.heigvd.bdr.misc.StringHelper;
 import ch.heigvd.bdr.models.*;
 import io.javalin.http.Context;
@@ -22,8 +31,6 @@ import io.javalin.openapi.OpenApiRequestBody;
 import io.javalin.openapi.OpenApiResponse;
 
 public class GoalController implements ResourceControllerInterface {
-    // Manages the cache for all goals
-    private final ConcurrentHashMap<Integer, LocalDateTime> goalCache = new ConcurrentHashMap<>();
     private final GoalDAO goalDAO = new GoalDAO();
     private final UserDAO userDAO = new UserDAO();
 
@@ -35,9 +42,16 @@ public class GoalController implements ResourceControllerInterface {
      * @throws SQLException
      * @throws IOException
      */
-    @OpenApi(path = "/goals", methods = HttpMethod.GET, operationId = "getAllGoals", summary = "Get all goals for a given user", description = "Returns a list of all goals. Supports RFC 1123 formatted If-Modified-Since header for cache validation.", tags = "Goals", headers = {
+    @OpenApi(path = "/goals", methods = HttpMethod.GET, operationId = "getAllGoals", summary = "Get all goals for a given user", description = "Returns a list of all goals. Supports RFC 1123 formatted If-Modified-Since header for cache validation.", tags = "Goals", queryParams = {
+            @OpenApiParam(name = "ids", required = false, description = "Comma-separated ids: only these goals are sent, in this order (the other parameters but fields and expand are ignored)"),
+            @OpenApiParam(name = "after", required = false, description = "Cursor of the page (taken from the Link header of the previous page)"),
+            @OpenApiParam(name = "limit", required = false, type = Integer.class, description = "Maximum number of items (default 100, at most 1000)"),
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,name,tag"),
+            @OpenApiParam(name = "expand", required = false, description = "Comma-separated relations to send in full, loaded with one query per relation: team, team.manager, project")
+    }, headers = {
             @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1"),
-            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request")
+            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request"),
+            @OpenApiParam(name = "If-None-Match", required = false, description = "ETag of the list for conditional request")
     }, responses = {
             @OpenApiResponse(status = "200", description = "List of goals", content = @OpenApiContent(from = Goal[].class), headers = {
                     @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted timestamp of last modification")
@@ -48,12 +62,32 @@ public class GoalController implements ResourceControllerInterface {
     })
     @Override
     public void all(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        if (ctx.queryParam("ids") != null) {
+            showMany(ctx);
+            return;
+        }
+
         String userId = ctx.header("X-User-ID");
         if (userId == null || !StringHelper.isInteger(userId)) {
             ctx.status(400).json(Map.of("message", "Missing X-User-ID header"));
             return;
         }
 
+        Pagination pagination = Pagination.from(ctx);
+        if (pagination == null) {
+            return;
+        }
+
+        FieldSet fields = FieldSet.from(ctx, FieldSet.GOAL);
+        if (fields == null) {
+            return;
+        }
+
+        Expand expand = UtilsController.getExpandParam(ctx, Goal.class);
+        if (expand == null) {
+            return;
+        }
+
         int id = Integer.parseInt(userId);
         User user = userDAO.findById(id);
         if (user == null) {
@@ -61,27 +95,63 @@ public class GoalController implements ResourceControllerInterface {
             return;
         }
 
-        // Check if we have a valid If-Modified-Since header
-        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
-        if (lastKnownModification != null) {
-            // If we have a cache entry for this user's goal list
-            if (goalCache.containsKey(id)) {
-                // Check if the list has been modified since the client's last fetch
-                if (UtilsController.isModifiedSince(goalCache.get(id), lastKnownModification)) {
-                    ctx.status(304).json(Map.of("message", "Not modified"));
-                    return;
-                }
-            }
+        // The list depends on the teams of the user and on everything below them
+        UtilsController.checkCollectionModif(ctx, UtilsController.withExpanded(expand, "User_Team", "Goal"));
+
+        Page<Goal> page = Page.of(goalDAO.getGoalsByUserID(user.getId(), pagination.after(), pagination.limit(), fields),
+                pagination, Goal::getId);
+
+        List<Goal> goals = page.items();
+        if (!expand.isEmpty()) {
+            // The cached lists are shared by the requests: the relations are set on copies
+            goals = goals.stream().map(Goal::new).toList();
+            expand.load(goals);
         }
 
-        List<Goal> goals = goalDAO.getGoalsByUserID(user.getId());
+        Pagination.setLinkHeader(ctx, page.nextCursor());
+        ctx.json(UtilsController.withExpanded(fields, expand).filter(goals));
+    }
 
-        LocalDateTime now = LocalDateTime.now();
-        goalCache.put(id, now);
+    /**
+     * Show several goals with a single query (GET /goals?ids=1,2,3)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void showMany(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = UtilsController.getIdsParam(ctx);
+        if (ids == null) {
+            return;
+        }
 
-        ctx.header("Last-Modified", now.toString());
+        FieldSet fields = FieldSet.from(ctx, FieldSet.GOAL);
+        if (fields == null) {
+            return;
+        }
+
+        Expand expand = UtilsController.getExpandParam(ctx, Goal.class);
+        if (expand == null) {
+            return;
+        }
 
-        ctx.json(goals);
+        // Read before the goals, so the returned data is at least as recent as the headers
+        String[] tables = UtilsController.withExpanded(expand, "Goal", "Team", "Project");
+        String etag = CollectionVersion.etag(tables);
+        LocalDateTime lastModified = CollectionVersion.lastModified(tables);
+
+        // Same rights as GET /goals/{id}, checked once per team, before anything is answered from the version
+        Map<Integer, Goal> goals = goalDAO.findByIds(ids);
+        Set<Integer> checkedTeams = new HashSet<>();
+        for (Goal goal : goals.values()) {
+            if (checkedTeams.add(goal.getTeamId()) && !checkUserRights(ctx, goal)) {
+                return;
+            }
+        }
+        UtilsController.checkCollectionVersion(ctx, etag, lastModified);
+        expand.load(goals.values());
+        ctx.json(UtilsController.withExpanded(fields, expand).filter(List.copyOf(goals.values())));
     }
 
     /**
@@ -94,7 +164,7 @@ public class GoalController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/goals", methods = HttpMethod.POST, operationId = "createGoal", summary = "Create a new goal", description = "Creates a new goal and sets its Last-Modified timestamp in the cache.", tags = "Goals", requestBody = @OpenApiRequestBody(description = "Goal details", content = @OpenApiContent(from = Goal.class)), responses = {
             @OpenApiResponse(status = "201", description = "Goal created successfully", content = @OpenApiContent(from = Goal.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted creation timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted creation timestamp")
             }),
             @OpenApiResponse(status = "400", description = "Bad request"),
             @OpenApiResponse(status = "403", description = "Forbidden"),
@@ -107,9 +177,9 @@ public class GoalController implements ResourceControllerInterface {
             return;
         }
 
-        goalCache.put(goal.getId(), LocalDateTime.now());
-        ctx.header("Last-Modified", LocalDateTime.now().toString());
-        ctx.status(201).json(goalDAO.create(goal));
+        Goal createdGoal = goalDAO.create(goal);
+        UtilsController.sendResponse(ctx, "Goal", createdGoal.getId());
+        ctx.status(201).json(createdGoal);
     }
 
     /**
@@ -126,9 +196,11 @@ public class GoalController implements ResourceControllerInterface {
             Returns 304 Not Modified if the resource hasn't changed since the specified timestamp.
             """, tags = "Goals", headers = {
             @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp. Returns 304 if resource unchanged since this time.")
-    }, pathParams = @OpenApiParam(name = "id", description = "Goal ID", required = true, type = UUID.class), responses = {
+    }, pathParams = @OpenApiParam(name = "id", description = "Goal ID", required = true, type = UUID.class), queryParams = {
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,name,tag")
+    }, responses = {
             @OpenApiResponse(status = "200", description = "Goal found", content = @OpenApiContent(from = Goal.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted timestamp of last modification")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted timestamp of last modification")
             }),
             @OpenApiResponse(status = "304", description = "Goal not modified since If-Modified-Since timestamp"),
             @OpenApiResponse(status = "400", description = "Invalid If-Modified-Since header format"),
@@ -139,8 +211,13 @@ public class GoalController implements ResourceControllerInterface {
     @Override
     public void show(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
+        FieldSet fields = FieldSet.from(ctx, FieldSet.GOAL);
+        if (fields == null) {
+            return;
+        }
 
-        UtilsController.checkModif(ctx, goalCache, id);
+        // The goal is sent with the names of its team and project
+        String etag = UtilsController.checkModif(ctx, "Goal", id, "Team", "Project");
 
         Goal goal = goalDAO.findById(id);
 
@@ -149,8 +226,8 @@ public class GoalController implements ResourceControllerInterface {
         }
 
         if (goal != null) {
-            UtilsController.sendResponse(ctx, goalCache, goal.getId());
-            ctx.json(goal);
+            String key = ResponseCache.key(ctx, etag);
+            ResponseCache.send(ctx, key, () -> fields.filter(goal));
         } else {
             ctx.status(404).json(Map.of("message", "Goal not found"));
         }
@@ -166,7 +243,7 @@ public class GoalController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/goals/{id}", methods = HttpMethod.PUT, operationId = "updateGoal", summary = "Update goal by ID", description = "Updates a goal by its ID and updates its Last-Modified timestamp in the cache.", tags = "Goals", pathParams = @OpenApiParam(name = "id", description = "Goal ID", required = true, type = UUID.class), requestBody = @OpenApiRequestBody(description = "Updated goal details", content = @OpenApiContent(from = Goal.class)), responses = {
             @OpenApiResponse(status = "200", description = "Goal updated successfully", content = @OpenApiContent(from = Goal.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted update timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted update timestamp")
             }),
             @OpenApiResponse(status = "400", description = "Bad request"),
             @OpenApiResponse(status = "403", description = "Forbidden"),
@@ -185,14 +262,184 @@ public class GoalController implements ResourceControllerInterface {
         goal.setId(id);
         Goal updatedGoal = goalDAO.update(goal);
         if (updatedGoal != null) {
-            goalCache.put(id, LocalDateTime.now());
-            ctx.header("Last-Modified", LocalDateTime.now().toString());
+            UtilsController.sendResponse(ctx, "Goal", id);
             ctx.json(updatedGoal);
         } else {
             ctx.status(404).json(Map.of("message", "Goal not found"));
         }
     }
 
+    /**
+     * Create several goals in a single transaction, with multi-row inserts
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/goals/batch", methods = HttpMethod.POST, operationId = "createGoals", summary = "Create several goals", description = "Creates all the goals, or none of them if an item is invalid. The outcome of each item is reported.", tags = "Goals", headers = {
+            @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1")
+    }, requestBody = @OpenApiRequestBody(description = "Goals to create (at most 1000)", content = @OpenApiContent(from = Goal[].class)), responses = {
+            @OpenApiResponse(status = "201", description = "Goals created successfully", content = @OpenApiContent(from = BatchItemResult[].class)),
+            @OpenApiResponse(status = "400", description = "Invalid batch or items, nothing has been created"),
+            @OpenApiResponse(status = "403", description = "Goal of a team of another user, nothing has been created"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void createBatch(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Goal> goals = UtilsController.getBatchBody(ctx, Goal[].class);
+        if (goals == null) {
+            return;
+        }
+
+        List<BatchItemResult> report = validateBatch(ctx, goals, false);
+        if (report == null || UtilsController.sendBatchFailure(ctx, report)) {
+            return;
+        }
+
+        List<Goal> createdGoals = goalDAO.createAll(goals);
+        for (int i = 0; i < createdGoals.size(); i++) {
+            report.set(i, new BatchItemResult(i, 201, createdGoals.get(i).getId(), null));
+        }
+        ctx.status(201).json(report);
+    }
+
+    /**
+     * Update several goals in a single transaction, with JDBC batches
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/goals/batch", methods = HttpMethod.PUT, operationId = "updateGoals", summary = "Update several goals", description = "Updates all the goals (identified by their id), or none of them if an item is invalid or not found. The outcome of each item is reported.", tags = "Goals", headers = {
+            @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1")
+    }, requestBody = @OpenApiRequestBody(description = "Goals to update (at most 1000)", content = @OpenApiContent(from = Goal[].class)), responses = {
+            @OpenApiResponse(status = "200", description = "Goals updated successfully", content = @OpenApiContent(from = BatchItemResult[].class)),
+            @OpenApiResponse(status = "400", description = "Invalid batch or items, nothing has been updated"),
+            @OpenApiResponse(status = "403", description = "Goal of a team of another user, nothing has been updated"),
+            @OpenApiResponse(status = "404", description = "Goal not found, nothing has been updated"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void updateBatch(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Goal> goals = UtilsController.getBatchBody(ctx, Goal[].class);
+        if (goals == null) {
+            return;
+        }
+
+        List<BatchItemResult> report = validateBatch(ctx, goals, true);
+        if (report == null || UtilsController.sendBatchFailure(ctx, report)) {
+            return;
+        }
+
+        List<Goal> updatedGoals = goalDAO.updateAll(goals);
+        for (int i = 0; i < updatedGoals.size(); i++) {
+            report.set(i, updatedGoals.get(i) != null
+                    ? new BatchItemResult(i, 200, goals.get(i).getId(), null)
+                    : new BatchItemResult(i, 404, null, "Goal not found"));
+        }
+        // The goals already updated are rolled back along with the failure
+        if (UtilsController.sendBatchFailure(ctx, report)) {
+            return;
+        }
+        ctx.json(report);
+    }
+
+    /**
+     * Check the items of a batch before writing them, including the rights of
+     * the user on their teams (checked once per team) and the names already
+     * taken (read with one query), so that a duplicate name is reported for its item
+     *
+     * @param ctx:    context to use
+     * @param goals:  items of the batch
+     * @param update: true if the items must have an id
+     * @return outcome of each item, with a status >= 400 for the invalid ones, null if the X-User-ID header is invalid (answered with a 400)
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private List<BatchItemResult> validateBatch(Context ctx, List<Goal> goals, boolean update)
+            throws ClassNotFoundException, SQLException, IOException {
+        String userId = ctx.header("X-User-ID");
+        if (userId == null || !StringHelper.isInteger(userId)) {
+            ctx.status(400).json(Map.of("message", "Missing X-User-ID header"));
+            return null;
+        }
+
+        Set<String> names = new HashSet<>();
+        // Position of each updated goal in the batch
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (int i = 0; i < goals.size(); i++) {
+            Goal goal = goals.get(i);
+            if (goal != null) {
+                if (goal.getName() != null) {
+                    names.add(goal.getName());
+                }
+                if (update) {
+                    positions.putIfAbsent(goal.getId(), i);
+                }
+            }
+        }
+        Map<String, Integer> takenNames = goalDAO.findIdsByNames(names);
+
+        Map<Integer, Boolean> teamRights = new HashMap<>();
+        List<BatchItemResult> report = new ArrayList<>(goals.size());
+        Set<Integer> ids = new HashSet<>();
+        // Names claimed by the valid items of the batch (the name is unique)
+        Set<String> claimedNames = new HashSet<>();
+        for (int i = 0; i < goals.size(); i++) {
+            Goal goal = goals.get(i);
+            int status = 400;
+            String error = null;
+            if (goal == null) {
+                error = "The item must be a goal.";
+            } else if (update && goal.getId() <= 0) {
+                error = "'id' is required.";
+            } else if (update && !ids.add(goal.getId())) {
+                error = "Goal " + goal.getId() + " is updated twice.";
+            } else if (goal.getName() == null || goal.getName().isBlank()) {
+                error = "'name' is required.";
+            } else {
+                Boolean allowed = teamRights.get(goal.getTeamId());
+                if (allowed == null) {
+                    allowed = userDAO.belongsToTeam(Integer.parseInt(userId), goal.getTeamId());
+                    teamRights.put(goal.getTeamId(), allowed);
+                }
+                if (!allowed) {
+                    status = 403;
+                    error = "Forbidden";
+                } else if (isTaken(goals, positions, takenNames.get(goal.getName()), goal, i, update)) {
+                    error = "A goal is already named " + goal.getName() + ".";
+                } else if (!claimedNames.add(goal.getName())) {
+                    error = "Another item is named " + goal.getName() + ".";
+                }
+            }
+            report.add(new BatchItemResult(i, error == null ? 200 : status, null, error));
+        }
+        return report;
+    }
+
+    /**
+     * Check if the name of an item is taken by a goal that is not renamed before the item is written
+     *
+     * @param goals:     items of the batch
+     * @param positions: position of each updated goal in the batch
+     * @param ownerId:   id of the goal having the name of the item, null if none
+     * @param goal:      item to check
+     * @param index:     position of the item
+     * @param update:    true if the items update existing goals
+     * @return true if writing the item would violate UC_Goal_name
+     */
+    private static boolean isTaken(List<Goal> goals, Map<Integer, Integer> positions, Integer ownerId, Goal goal,
+                                   int index, boolean update) {
+        if (ownerId == null || (update && ownerId == goal.getId())) {
+            return false;
+        }
+        // Free if the owner is renamed earlier in the batch (the items are written in order)
+        Integer position = update ? positions.get(ownerId) : null;
+        return position == null || position > index
+                || goal.getName().equals(goals.get(position).getName());
+    }
+
     /**
      * Delete a goal
      *
@@ -217,7 +464,6 @@ public class GoalController implements ResourceControllerInterface {
         }
 
         if (goalDAO.delete(id)) {
-            goalCache.remove(id);
             ctx.status(204);
         } else {
             ctx.status(404).json(Map.of("message", "Goal not found"));
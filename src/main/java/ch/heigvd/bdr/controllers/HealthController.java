@@ -6,9 +6,13 @@ import io.javalin.openapi.*;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import ch.heigvd.bdr.misc.ChangeNotifier;
 import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.LruCache;
+import ch.heigvd.bdr.misc.SingleFlight;
 
 /**
  * Checks if the database and the API are working properly
@@ -29,14 +33,34 @@ public class HealthController {
     public void checkHealth(Context ctx) {
         try {
             try (Connection conn = DatabaseUtil.getConnection()) {
-                if (conn != null && !conn.isClosed()) {
-                    ctx.status(200).json(Map.of("status", "UP", "database", "UP", "timestamp", System.currentTimeMillis()));
+                if (conn != null && conn.isValid(2)) {
+                    ctx.status(200).json(Map.of("status", "UP", "database", "UP", "pool", DatabaseUtil.getPoolMetrics(), "timestamp", System.currentTimeMillis()));
                 } else {
                     throw new SQLException("Database connection is closed");
                 }
             }
         } catch (Exception e) {
-            ctx.status(503).json(Map.of("status", "DOWN", "database", "DOWN", "error", e.getMessage(), "timestamp", System.currentTimeMillis()));
+            ctx.status(503).json(Map.of("status", "DOWN", "database", "DOWN", "error", String.valueOf(e.getMessage()), "timestamp", System.currentTimeMillis()));
         }
     }
-}
\ No newline at end of file
+
+    @OpenApi(
+            path = "/metrics",
+            methods = HttpMethod.GET,
+            summary = "Get API metrics",
+            description = "Returns the internal metrics of the API (connection pool usage, cache hits/misses/evictions, coalesced reads, change notifications)",
+            tags = {"Health"},
+            responses = {
+                    @OpenApiResponse(status = "200", description = "Current metrics")
+            }
+    )
+    public void metrics(Context ctx) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pool", DatabaseUtil.getPoolMetrics());
+        metrics.put("caches", LruCache.getAllStats());
+        metrics.put("coalescing", SingleFlight.getMetrics());
+        metrics.put("changes", ChangeNotifier.getMetrics());
+        metrics.put("timestamp", System.currentTimeMillis());
+        ctx.json(metrics);
+    }
+}
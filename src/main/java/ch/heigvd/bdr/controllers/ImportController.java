@@ -0,0 +1,129 @@
+package ch.heigvd.bdr.controllers;
+
+import io.javalin.http.Context;
+import io.javalin.openapi.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.UUID;
+
+import ch.heigvd.bdr.dao.ImportDAO;
+import ch.heigvd.bdr.misc.ImportReader;
+import ch.heigvd.bdr.misc.StringHelper;
+import ch.heigvd.bdr.models.ImportReport;
+
+/**
+ * Imports goals, results and tasks in bulk from CSV or NDJSON files (see ImportDAO)
+ */
+public class ImportController {
+    private final ImportDAO importDAO = new ImportDAO();
+
+    /**
+     * Import tasks
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/tasks/import", methods = HttpMethod.POST, operationId = "importTasks", summary = "Import tasks", description = "Imports tasks from a CSV file (with a header line) or an NDJSON file, with the columns title, startsAt, resultId, done, priority, deadline, note and tag. The valid rows are imported, the others are reported with their line.", tags = "Tasks", queryParams = {
+            @OpenApiParam(name = "format", required = false, description = "csv or ndjson (taken from the Content-Type by default)")
+    }, requestBody = @OpenApiRequestBody(description = "File to import", content = {
+            @OpenApiContent(mimeType = "text/csv", type = "string"),
+            @OpenApiContent(mimeType = "application/x-ndjson", type = "string")
+    }), responses = {
+            @OpenApiResponse(status = "200", description = "Outcome of the import", content = @OpenApiContent(from = ImportReport.class)),
+            @OpenApiResponse(status = "400", description = "Unknown format"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void tasks(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        try (ImportReader reader = open(ctx)) {
+            if (reader != null) {
+                ctx.json(importDAO.importTasks(reader));
+            }
+        }
+    }
+
+    /**
+     * Import results
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/results/import", methods = HttpMethod.POST, operationId = "importResults", summary = "Import results", description = "Imports results from a CSV file (with a header line) or an NDJSON file, with the columns title, goalId, createdAt, endsAt, note and tag. The valid rows are imported, the others are reported with their line.", tags = "Results", queryParams = {
+            @OpenApiParam(name = "format", required = false, description = "csv or ndjson (taken from the Content-Type by default)")
+    }, requestBody = @OpenApiRequestBody(description = "File to import", content = {
+            @OpenApiContent(mimeType = "text/csv", type = "string"),
+            @OpenApiContent(mimeType = "application/x-ndjson", type = "string")
+    }), responses = {
+            @OpenApiResponse(status = "200", description = "Outcome of the import", content = @OpenApiContent(from = ImportReport.class)),
+            @OpenApiResponse(status = "400", description = "Unknown format"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void results(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        try (ImportReader reader = open(ctx)) {
+            if (reader != null) {
+                ctx.json(importDAO.importResults(reader));
+            }
+        }
+    }
+
+    /**
+     * Import goals, in the teams of the user
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/goals/import", methods = HttpMethod.POST, operationId = "importGoals", summary = "Import goals", description = "Imports goals from a CSV file (with a header line) or an NDJSON file, with the columns name, projectId, teamId, description, note and tag. The valid rows are imported, the others (including the goals of teams the user does not belong to) are reported with their line.", tags = "Goals", queryParams = {
+            @OpenApiParam(name = "format", required = false, description = "csv or ndjson (taken from the Content-Type by default)")
+    }, headers = {
+            @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1")
+    }, requestBody = @OpenApiRequestBody(description = "File to import", content = {
+            @OpenApiContent(mimeType = "text/csv", type = "string"),
+            @OpenApiContent(mimeType = "application/x-ndjson", type = "string")
+    }), responses = {
+            @OpenApiResponse(status = "200", description = "Outcome of the import", content = @OpenApiContent(from = ImportReport.class)),
+            @OpenApiResponse(status = "400", description = "Unknown format or missing X-User-ID header"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void goals(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        String userId = ctx.header("X-User-ID");
+        if (userId == null || !StringHelper.isInteger(userId)) {
+            ctx.status(400).json(Map.of("message", "Missing X-User-ID header"));
+            return;
+        }
+
+        try (ImportReader reader = open(ctx)) {
+            if (reader != null) {
+                ctx.json(importDAO.importGoals(reader, Integer.parseInt(userId)));
+            }
+        }
+    }
+
+    /**
+     * Start reading the uploaded file, in the format given by the format parameter or by the Content-Type.
+     * An unknown format is answered with a 400.
+     *
+     * @param ctx: context to use
+     * @return reader of the rows, null if the format is unknown
+     */
+    private ImportReader open(Context ctx) {
+        String format = ctx.queryParam("format");
+        if (format == null) {
+            String contentType = ctx.contentType() == null ? "" : ctx.contentType();
+            format = contentType.startsWith("text/csv") ? "csv" : "ndjson";
+        }
+        try {
+            // The body is read as a stream, it is never held in memory
+            return ImportReader.open(ctx.bodyInputStream(), format);
+        } catch (IllegalArgumentException e) {
+            ctx.status(400).json(Map.of("message", e.getMessage()));
+            return null;
+        }
+    }
+}
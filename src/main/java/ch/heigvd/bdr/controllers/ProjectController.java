@@ -1,28 +1,33 @@
 package ch.heigvd.bdr.controllers;
 
 import io.javalin.http.Context;
-import io.javalin.http.NotModifiedResponse;
 import io.javalin.openapi.*;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
+import ch.heigvd.bdr.dao.CachedDAO;
+import ch.heigvd.bdr.dao.GenericDAO;
 import ch.heigvd.bdr.dao.ProjectDAO;
+import ch.heigvd.bdr.misc.JsonStream;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Page;
+import ch.heigvd.bdr.misc.Pagination;
+import ch.heigvd.bdr.misc.StringHelper;
 import ch.heigvd.bdr.models.Project;
 import ch.heigvd.bdr.models.Team;
 
 public class ProjectController implements ResourceControllerInterface {
-    // Manages the cache for all the projects
-    private final ConcurrentHashMap<Integer, LocalDateTime> projectCache = new ConcurrentHashMap<>();
-    private final ProjectDAO projectDAO;
+    private final GenericDAO<Project, Integer> projectDAO;
+    // Used for the exports and the trees, that must not go through the cache
+    private final ProjectDAO uncachedProjectDAO = new ProjectDAO();
 
     public ProjectController() {
-        this.projectDAO = new ProjectDAO();
+        // Projects rarely change: they are read from memory once loaded
+        this.projectDAO = CachedDAO.of(uncachedProjectDAO, "Project", Project::getId, 1_000, 300);
     }
 
     /**
@@ -33,8 +38,14 @@ public class ProjectController implements ResourceControllerInterface {
      * @throws ClassNotFoundException
      * @throws IOException
      */
-    @OpenApi(path = "/projects", methods = HttpMethod.GET, operationId = "getAllProjects", summary = "Get all projects", description = "Returns a list of all projects.", tags = "Projects", headers = {
-            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request")
+    @OpenApi(path = "/projects", methods = HttpMethod.GET, operationId = "getAllProjects", summary = "Get all projects", description = "Returns a list of all projects.", tags = "Projects", queryParams = {
+            @OpenApiParam(name = "ids", required = false, description = "Comma-separated ids: only these projects are sent, in this order (the other parameters but fields are ignored)"),
+            @OpenApiParam(name = "after", required = false, description = "Cursor of the page (taken from the Link header of the previous page)"),
+            @OpenApiParam(name = "limit", required = false, type = Integer.class, description = "Maximum number of items (default 100, at most 1000)"),
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,name")
+    }, headers = {
+            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request"),
+            @OpenApiParam(name = "If-None-Match", required = false, description = "ETag of the list for conditional request")
     }, responses = {
             @OpenApiResponse(status = "200", description = "List of all projects", content = @OpenApiContent(from = Project[].class)),
             @OpenApiResponse(status = "304", description = "Resource not modified since If-Modified-Since timestamp"),
@@ -43,21 +54,64 @@ public class ProjectController implements ResourceControllerInterface {
     })
     @Override
     public void all(Context ctx) throws SQLException, ClassNotFoundException, IOException {
-        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
-        LocalDateTime latestModification = projectCache.values().stream().max(LocalDateTime::compareTo).orElse(null);
+        if (ctx.queryParam("ids") != null) {
+            showMany(ctx);
+            return;
+        }
+
+        Pagination pagination = Pagination.from(ctx);
+        if (pagination == null) {
+            return;
+        }
+
+        FieldSet fields = FieldSet.from(ctx, FieldSet.PROJECT);
+        if (fields == null) {
+            return;
+        }
+
+        UtilsController.sendCollection(ctx, null,
+                () -> fields.filter(Page.of(projectDAO.findAll(pagination.after(), pagination.limit(), fields),
+                        pagination, Project::getId)), "Project");
+    }
 
-        if (lastKnownModification != null && latestModification != null
-                && !UtilsController.isModifiedSince(latestModification, lastKnownModification)) {
-            throw new NotModifiedResponse();
+    /**
+     * Show several projects with a single query (GET /projects?ids=1,2,3)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void showMany(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = UtilsController.getIdsParam(ctx);
+        if (ids == null) {
+            return;
         }
 
-        List<Project> projects = projectDAO.findAll();
-        LocalDateTime now = LocalDateTime.now();
-        for (Project p : projects) {
-            projectCache.putIfAbsent(p.getId(), now);
+        FieldSet fields = FieldSet.from(ctx, FieldSet.PROJECT);
+        if (fields == null) {
+            return;
         }
-        ctx.header("Last-Modified", now.toString());
-        ctx.json(projects);
+
+        UtilsController.checkCollectionModif(ctx, "Project");
+
+        ctx.json(fields.filter(List.copyOf(projectDAO.findByIds(ids).values())));
+    }
+
+    /**
+     * Stream all projects, read through a database cursor (full export)
+     *
+     * @param ctx: context to use
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    @OpenApi(path = "/projects/stream", methods = HttpMethod.GET, operationId = "streamAllProjects", summary = "Stream all projects", description = "Returns all the projects in a single array, written as they are read from the database.", tags = "Projects", responses = {
+            @OpenApiResponse(status = "200", description = "List of all projects", content = @OpenApiContent(from = Project[].class)),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void stream(Context ctx) throws SQLException, ClassNotFoundException, IOException {
+        JsonStream.send(ctx, uncachedProjectDAO::streamAll);
     }
 
     /**
@@ -78,9 +132,7 @@ public class ProjectController implements ResourceControllerInterface {
         Project project = ctx.bodyAsClass(Project.class);
         Project createdProject = projectDAO.create(project);
 
-        projectCache.put(project.getId(), LocalDateTime.now());
-
-        ctx.header("Last-Modified", LocalDateTime.now().toString());
+        UtilsController.sendResponse(ctx, "Project", createdProject.getId());
         ctx.status(201).json(createdProject);
     }
 
@@ -92,7 +144,9 @@ public class ProjectController implements ResourceControllerInterface {
      * @throws SQLException
      * @throws IOException
      */
-    @OpenApi(path = "/projects/{id}", methods = HttpMethod.GET, operationId = "getProjectById", summary = "Get project by ID", description = "Fetches a project by it's ID.", tags = "Projects", pathParams = @OpenApiParam(name = "id", description = "Project ID", required = true, type = UUID.class), responses = {
+    @OpenApi(path = "/projects/{id}", methods = HttpMethod.GET, operationId = "getProjectById", summary = "Get project by ID", description = "Fetches a project by it's ID.", tags = "Projects", pathParams = @OpenApiParam(name = "id", description = "Project ID", required = true, type = UUID.class), queryParams = {
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,name")
+    }, responses = {
             @OpenApiResponse(status = "200", description = "Project found", content = @OpenApiContent(from = Project.class)),
             @OpenApiResponse(status = "404", description = "Project not found"),
             @OpenApiResponse(status = "500", description = "Internal Server Error")
@@ -100,13 +154,51 @@ public class ProjectController implements ResourceControllerInterface {
     @Override
     public void show(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
+        FieldSet fields = FieldSet.from(ctx, FieldSet.PROJECT);
+        if (fields == null) {
+            return;
+        }
 
-        UtilsController.checkModif(ctx, projectCache, id);
+        UtilsController.checkModif(ctx, "Project", id);
 
         Project project = projectDAO.findById(id);
 
         if (project != null) {
-            ctx.json(project);
+            ctx.json(fields.filter(project));
+        } else {
+            ctx.status(404).json(Map.of("message", "Project not found"));
+        }
+    }
+
+    /**
+     * Show the whole tree of a project (goals, results, tasks, needs and subtasks), built by a single query
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/projects/{id}/tree", methods = HttpMethod.GET, operationId = "getProjectTree", summary = "Get the tree of a project", description = "Returns the project with its goals (of the teams of the user), their results, their tasks, and the material needs, collaborator needs and subtasks (id and required) of each task. The JSON is built by the database in a single query.", tags = "Projects", pathParams = @OpenApiParam(name = "id", description = "Project ID", required = true, type = UUID.class), headers = {
+            @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1")
+    }, responses = {
+            @OpenApiResponse(status = "200", description = "Tree of the project", content = @OpenApiContent(type = "object")),
+            @OpenApiResponse(status = "400", description = "Missing X-User-ID header"),
+            @OpenApiResponse(status = "404", description = "Project not found"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void tree(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        int id = Integer.parseInt(ctx.pathParam("id"));
+        String userId = ctx.header("X-User-ID");
+        if (userId == null || !StringHelper.isInteger(userId)) {
+            ctx.status(400).json(Map.of("message", "Missing X-User-ID header"));
+            return;
+        }
+
+        byte[] tree = uncachedProjectDAO.getTree(id, Integer.parseInt(userId));
+
+        if (tree != null) {
+            // Sent as received from the database
+            ctx.contentType("application/json").result(tree);
         } else {
             ctx.status(404).json(Map.of("message", "Project not found"));
         }
@@ -134,8 +226,7 @@ public class ProjectController implements ResourceControllerInterface {
         Project updatedProject = projectDAO.update(project);
 
         if (updatedProject != null) {
-            projectCache.put(id, LocalDateTime.now());
-            ctx.header("Last-Modified", LocalDateTime.now().toString());
+            UtilsController.sendResponse(ctx, "Project", id);
             ctx.json(updatedProject);
         } else {
             ctx.status(404).json(Map.of("message", "Project not found"));
@@ -161,7 +252,6 @@ public class ProjectController implements ResourceControllerInterface {
         boolean deleted = projectDAO.delete(id);
 
         if (deleted) {
-            projectCache.remove(id);
             ctx.status(204);
         } else {
             ctx.status(404).json(Map.of("message", "Project not found"));
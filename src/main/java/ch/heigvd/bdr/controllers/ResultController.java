@@ -1,7 +1,11 @@
 
 package ch.heigvd.bdr.controllers;
 
+import ch.heigvd.bdr.dao.Expand;
 import ch.heigvd.bdr.dao.UserDAO;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Page;
+import ch.heigvd.bdr.misc.Pagination;
 import ch.heigvd.bdr.misc.StringHelper;
 import io.javalin.http.Context;
 import ch.heigvd.bdr.dao.ResultDAO;
@@ -10,15 +14,11 @@ import io.javalin.openapi.*;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class ResultController implements ResourceControllerInterface {
-    // Manages cache for all results
-    private final ConcurrentHashMap<Integer, LocalDateTime> resultCache = new ConcurrentHashMap<>();
     private final ResultDAO resultDAO = new ResultDAO();
     private final UserDAO userDAO = new UserDAO();
 
@@ -30,9 +30,16 @@ public class ResultController implements ResourceControllerInterface {
      * @throws SQLException
      * @throws IOException
      */
-    @OpenApi(path = "/results", methods = HttpMethod.GET, operationId = "getAllResults", summary = "Get all results for a given user", description = "Returns a list of all results for a given user. Supports RFC 1123 formatted If-Modified-Since header for cache validation.", tags = "Results", headers = {
+    @OpenApi(path = "/results", methods = HttpMethod.GET, operationId = "getAllResults", summary = "Get all results for a given user", description = "Returns a list of all results for a given user. Supports RFC 1123 formatted If-Modified-Since header for cache validation.", tags = "Results", queryParams = {
+            @OpenApiParam(name = "ids", required = false, description = "Comma-separated ids: only these results are sent, in this order (the other parameters but fields and expand are ignored)"),
+            @OpenApiParam(name = "after", required = false, description = "Cursor of the page (taken from the Link header of the previous page)"),
+            @OpenApiParam(name = "limit", required = false, type = Integer.class, description = "Maximum number of items (default 100, at most 1000)"),
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,title,endsAt"),
+            @OpenApiParam(name = "expand", required = false, description = "Comma-separated relations to send in full, loaded with one query per relation: goal, goal.team, goal.team.manager, goal.project")
+    }, headers = {
             @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1"),
-            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request")
+            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request"),
+            @OpenApiParam(name = "If-None-Match", required = false, description = "ETag of the list for conditional request")
     }, responses = {
             @OpenApiResponse(status = "200", description = "List of results", content = @OpenApiContent(from = Result[].class), headers = {
                     @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted timestamp of last modification")
@@ -43,6 +50,11 @@ public class ResultController implements ResourceControllerInterface {
     })
     @Override
     public void all(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        if (ctx.queryParam("ids") != null) {
+            showMany(ctx);
+            return;
+        }
+
         // Validate user ID header
         String userId = ctx.header("X-User-ID");
         if (userId == null || !StringHelper.isInteger(userId)) {
@@ -50,6 +62,21 @@ public class ResultController implements ResourceControllerInterface {
             return;
         }
 
+        Pagination pagination = Pagination.from(ctx);
+        if (pagination == null) {
+            return;
+        }
+
+        FieldSet fields = FieldSet.from(ctx, FieldSet.RESULT);
+        if (fields == null) {
+            return;
+        }
+
+        Expand expand = UtilsController.getExpandParam(ctx, Result.class);
+        if (expand == null) {
+            return;
+        }
+
         int id = Integer.parseInt(userId);
         User user = userDAO.findById(id);
         if (user == null) {
@@ -57,27 +84,52 @@ public class ResultController implements ResourceControllerInterface {
             return;
         }
 
-        // Check if we have a valid If-Modified-Since header
-        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
-        if (lastKnownModification != null) {
-            // If we have a cache entry for this user's task list
-            if (resultCache.containsKey(id)) {
-                // Check if the list has been modified since the client's last fetch
-                if (UtilsController.isModifiedSince(resultCache.get(id), lastKnownModification)) {
-                    ctx.status(304).json(Map.of("message", "Not modified"));
-                    return;
-                }
-            }
+        // The list depends on the teams of the user and on everything below them
+        UtilsController.checkCollectionModif(ctx, UtilsController.withExpanded(expand, "User_Team", "Goal", "Result"));
+
+        Page<Result> page = Page.of(resultDAO.getResultsByUserID(user.getId(), pagination.after(), pagination.limit(), fields),
+                pagination, Result::getId);
+
+        List<Result> results = page.items();
+        if (!expand.isEmpty()) {
+            // The cached lists are shared by the requests: the relations are set on copies
+            results = results.stream().map(Result::new).toList();
+            expand.load(results);
+        }
+
+        Pagination.setLinkHeader(ctx, page.nextCursor());
+        ctx.json(UtilsController.withExpanded(fields, expand).filter(results));
+    }
+
+    /**
+     * Show several results with a single query (GET /results?ids=1,2,3)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void showMany(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = UtilsController.getIdsParam(ctx);
+        if (ids == null) {
+            return;
         }
 
-        List<Result> results = resultDAO.getResultsByUserID(user.getId());
+        FieldSet fields = FieldSet.from(ctx, FieldSet.RESULT);
+        if (fields == null) {
+            return;
+        }
 
-        LocalDateTime now = LocalDateTime.now();
-        resultCache.put(id, now);
+        Expand expand = UtilsController.getExpandParam(ctx, Result.class);
+        if (expand == null) {
+            return;
+        }
 
-        ctx.header("Last-Modified", now.toString());
+        UtilsController.checkCollectionModif(ctx, UtilsController.withExpanded(expand, "Result"));
 
-        ctx.json(results);
+        List<Result> results = List.copyOf(resultDAO.findByIds(ids).values());
+        expand.load(results);
+        ctx.json(UtilsController.withExpanded(fields, expand).filter(results));
     }
 
     /**
@@ -90,7 +142,7 @@ public class ResultController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/results", methods = HttpMethod.POST, operationId = "createResult", summary = "Create a new result", description = "Creates a new result.", tags = "Results", requestBody = @OpenApiRequestBody(description = "Result details", content = @OpenApiContent(from = Result.class)), responses = {
             @OpenApiResponse(status = "201", description = "Goal created successfully", content = @OpenApiContent(from = Result.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted creation timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted creation timestamp")
             }),
             @OpenApiResponse(status = "400", description = "Bad request"),
             @OpenApiResponse(status = "500", description = "Internal Server Error")
@@ -98,9 +150,9 @@ public class ResultController implements ResourceControllerInterface {
     @Override
     public void create(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         Result result = ctx.bodyAsClass(Result.class);
-        resultCache.put(result.getId(), LocalDateTime.now());
-        ctx.header("Last-Modified", LocalDateTime.now().toString());
-        ctx.status(201).json(resultDAO.create(result));
+        Result createdResult = resultDAO.create(result);
+        UtilsController.sendResponse(ctx, "Result", createdResult.getId());
+        ctx.status(201).json(createdResult);
     }
 
     /**
@@ -117,9 +169,11 @@ public class ResultController implements ResourceControllerInterface {
             Returns 304 Not Modified if the resource hasn't changed since the specified timestamp.
             """, tags = "Results", headers = {
             @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp. Returns 304 if resource unchanged since this time.")
-    }, pathParams = @OpenApiParam(name = "id", description = "Result ID", required = true, type = UUID.class), responses = {
+    }, pathParams = @OpenApiParam(name = "id", description = "Result ID", required = true, type = UUID.class), queryParams = {
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,title,endsAt")
+    }, responses = {
             @OpenApiResponse(status = "200", description = "Result found", content = @OpenApiContent(from = Result.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted timestamp of last modification")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted timestamp of last modification")
             }),
             @OpenApiResponse(status = "304", description = "Result not modified since If-Modified-Since timestamp"),
             @OpenApiResponse(status = "400", description = "Invalid If-Modified-Since header format"),
@@ -129,14 +183,17 @@ public class ResultController implements ResourceControllerInterface {
     @Override
     public void show(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
+        FieldSet fields = FieldSet.from(ctx, FieldSet.RESULT);
+        if (fields == null) {
+            return;
+        }
 
-        UtilsController.checkModif(ctx, resultCache, id);
+        UtilsController.checkModif(ctx, "Result", id);
 
         Result result = resultDAO.findById(id);
 
         if (result != null) {
-            UtilsController.sendResponse(ctx, resultCache, result.getId());
-            ctx.json(result);
+            ctx.json(fields.filter(result));
         } else {
             ctx.status(404).json(Map.of("message", "Result not found"));
         }
@@ -152,7 +209,7 @@ public class ResultController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/results/{id}", methods = HttpMethod.PUT, operationId = "updateResult", summary = "Update result by ID", description = "Updates a result by its ID.", tags = "Results", pathParams = @OpenApiParam(name = "id", description = "Result ID", required = true, type = UUID.class), requestBody = @OpenApiRequestBody(description = "Updated result details", content = @OpenApiContent(from = Result.class)), responses = {
             @OpenApiResponse(status = "200", description = "Result updated successfully", content = @OpenApiContent(from = Result.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted update timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted update timestamp")
             }),
             @OpenApiResponse(status = "404", description = "Result not found"),
             @OpenApiResponse(status = "500", description = "Internal Server Error")
@@ -164,8 +221,7 @@ public class ResultController implements ResourceControllerInterface {
         result.setId(id);
         Result updatedResult = resultDAO.update(result);
         if (updatedResult != null) {
-            resultCache.put(id, LocalDateTime.now());
-            ctx.header("Last-Modified", LocalDateTime.now().toString());
+            UtilsController.sendResponse(ctx, "Result", id);
             ctx.json(updatedResult);
         } else {
             ctx.status(404).json(Map.of("message", "Result not found"));
@@ -189,7 +245,6 @@ public class ResultController implements ResourceControllerInterface {
     public void delete(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
         if (resultDAO.delete(id)) {
-            resultCache.remove(id);
             ctx.status(204);
         } else {
             ctx.status(404).json(Map.of("message", "Result not found"));
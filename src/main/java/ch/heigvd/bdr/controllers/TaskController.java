@@ -2,13 +2,18 @@ package ch.heigvd.bdr.controllers;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
+import java.sql.Timestamp;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
+import ch.heigvd.bdr.dao.ResultDAO;
 import ch.heigvd.bdr.dao.TaskDAO;
 import ch.heigvd.bdr.dao.UserDAO;
+import ch.heigvd.bdr.misc.JsonStream;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Page;
+import ch.heigvd.bdr.misc.Pagination;
 import ch.heigvd.bdr.misc.StringHelper;
+import ch.heigvd.bdr.misc.TaskFilter;
 import ch.heigvd.bdr.models.*;
 import io.javalin.http.Context;
 import io.javalin.openapi.HttpMethod;
@@ -19,10 +24,9 @@ import io.javalin.openapi.OpenApiRequestBody;
 import io.javalin.openapi.OpenApiResponse;
 
 public class TaskController implements ResourceControllerInterface {
-    // Manages cache for all tasks
-    private final ConcurrentHashMap<Integer, LocalDateTime> taskCache = new ConcurrentHashMap<>();
     private final TaskDAO taskDAO = new TaskDAO();
     private final UserDAO userDAO = new UserDAO();
+    private final ResultDAO resultDAO = new ResultDAO();
 
     /**
      * Show all tasks
@@ -32,7 +36,19 @@ public class TaskController implements ResourceControllerInterface {
      * @throws SQLException
      * @throws IOException
      */
-    @OpenApi(path = "/tasks", methods = HttpMethod.GET, operationId = "getAllTasks", summary = "Get all tasks for a given user", description = "Returns a list of all tasks.", tags = "Tasks", headers = {
+    @OpenApi(path = "/tasks", methods = HttpMethod.GET, operationId = "getAllTasks", summary = "Get all tasks for a given user", description = "Returns a list of all tasks.", tags = "Tasks", queryParams = {
+            @OpenApiParam(name = "ids", required = false, description = "Comma-separated ids: only these tasks are sent, in this order (the other parameters but fields are ignored)"),
+            @OpenApiParam(name = "after", required = false, description = "Cursor of the page (taken from the Link header of the previous page)"),
+            @OpenApiParam(name = "limit", required = false, type = Integer.class, description = "Maximum number of items (default 100, at most 1000)"),
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,title,done,priority"),
+            @OpenApiParam(name = "done", required = false, type = Boolean.class, description = "Only the tasks done (true) or not done (false)"),
+            @OpenApiParam(name = "priority", required = false, description = "Comma-separated accepted priorities, e.g. HIGH,MEDIUM"),
+            @OpenApiParam(name = "deadline", required = false, description = "Comma-separated accepted deadlines, e.g. THREE_MONTHS"),
+            @OpenApiParam(name = "tag", required = false, description = "Only the tasks having this tag"),
+            @OpenApiParam(name = "startsFrom", required = false, description = "Only the tasks starting at or after this ISO-8601 date (or date-time)"),
+            @OpenApiParam(name = "startsTo", required = false, description = "Only the tasks starting before this ISO-8601 date (or date-time)"),
+            @OpenApiParam(name = "sort", required = false, description = "Field the tasks are ordered by: id (default), title, startsAt, priority or deadline, prefixed by - for a descending order")
+    }, headers = {
             @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1"),
     }, responses = {
             @OpenApiResponse(status = "200", description = "List of tasks", content = @OpenApiContent(from = Task[].class), headers = {
@@ -44,6 +60,11 @@ public class TaskController implements ResourceControllerInterface {
     })
     @Override
     public void all(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        if (ctx.queryParam("ids") != null) {
+            showMany(ctx);
+            return;
+        }
+
         // Validate user ID header
         String userId = ctx.header("X-User-ID");
         if (userId == null || !StringHelper.isInteger(userId)) {
@@ -51,34 +72,94 @@ public class TaskController implements ResourceControllerInterface {
             return;
         }
 
+        Pagination pagination = Pagination.from(ctx);
+        if (pagination == null) {
+            return;
+        }
+
+        FieldSet fields = FieldSet.from(ctx, FieldSet.TASK);
+        if (fields == null) {
+            return;
+        }
+
+        TaskFilter filter = TaskFilter.from(ctx, pagination);
+        if (filter == null) {
+            return;
+        }
+
         int id = Integer.parseInt(userId);
-        User user = userDAO.findById(id);
-        if (user == null) {
+
+        // The list depends on the teams of the user and on everything below them. Dashboards
+        // refreshing at once share the same load, and the last list is served if the database fails.
+        boolean found = UtilsController.sendCollection(ctx, "user=" + id, () -> {
+            User user = userDAO.findById(id);
+            if (user == null) {
+                return null;
+            }
+            return fields.filter(Page.of(taskDAO.getTasksByUserID(id, filter, pagination, fields),
+                    pagination, Task::getId, filter::sortKey));
+        }, "User_Team", "Goal", "Result", "Task");
+
+        if (!found) {
             ctx.status(404).json(Map.of("message", "User not found"));
+        }
+    }
+
+    /**
+     * Show several tasks with a single query (GET /tasks?ids=1,2,3)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void showMany(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = UtilsController.getIdsParam(ctx);
+        if (ids == null) {
             return;
         }
 
-        // Check if we have a valid If-Modified-Since header
-        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
-        if (lastKnownModification != null) {
-            // If we have a cache entry for this user's task list
-            if (taskCache.containsKey(id)) {
-                // Check if the list has been modified since the client's last fetch
-                if (UtilsController.isModifiedSince(taskCache.get(id), lastKnownModification)) {
-                    ctx.status(304).json(Map.of("message", "Not modified"));
-                    return;
-                }
-            }
+        FieldSet fields = FieldSet.from(ctx, FieldSet.TASK);
+        if (fields == null) {
+            return;
         }
 
-        List<Task> tasks = taskDAO.getTasksByUserID(user.getId());
+        UtilsController.checkCollectionModif(ctx, "Task");
 
-        LocalDateTime now = LocalDateTime.now();
-        taskCache.put(id, now);
+        ctx.json(fields.filter(List.copyOf(taskDAO.findByIds(ids).values())));
+    }
 
-        ctx.header("Last-Modified", now.toString());
+    /**
+     * Stream all tasks of a user, read through a database cursor (full export)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/tasks/stream", methods = HttpMethod.GET, operationId = "streamAllTasks", summary = "Stream all tasks for a given user", description = "Returns all the tasks of the user in a single array, written as they are read from the database.", tags = "Tasks", headers = {
+            @OpenApiParam(name = "X-User-ID", required = true, type = UUID.class, example = "1"),
+    }, responses = {
+            @OpenApiResponse(status = "200", description = "List of tasks", content = @OpenApiContent(from = Task[].class)),
+            @OpenApiResponse(status = "400", description = "Invalid format / missing required argument"),
+            @OpenApiResponse(status = "404", description = "User not found"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void stream(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        // Validate user ID header
+        String userId = ctx.header("X-User-ID");
+        if (userId == null || !StringHelper.isInteger(userId)) {
+            ctx.status(400).json(Map.of("message", "Missing header X-User-ID"));
+            return;
+        }
+
+        int id = Integer.parseInt(userId);
+        if (userDAO.findById(id) == null) {
+            ctx.status(404).json(Map.of("message", "User not found"));
+            return;
+        }
 
-        ctx.json(tasks);
+        JsonStream.<Task>send(ctx, consumer -> taskDAO.streamTasksByUserID(id, consumer));
     }
 
     /**
@@ -91,7 +172,7 @@ public class TaskController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/tasks", methods = HttpMethod.POST, operationId = "createTask", summary = "Create a new task", description = "Creates a new task.", tags = "Tasks", requestBody = @OpenApiRequestBody(description = "Task details", content = @OpenApiContent(from = Task.class)), responses = {
             @OpenApiResponse(status = "201", description = "Task created successfully", content = @OpenApiContent(from = Task.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted creation timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted creation timestamp")
             }),
             @OpenApiResponse(status = "400", description = "Bad request, missing required arguments"),
             @OpenApiResponse(status = "500", description = "Internal Server Error")
@@ -100,9 +181,9 @@ public class TaskController implements ResourceControllerInterface {
     public void create(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         try {
             Task task = ctx.bodyAsClass(Task.class);
-            taskCache.put(task.getId(), LocalDateTime.now());
-            ctx.header("Last-Modified", LocalDateTime.now().toString());
-            ctx.status(201).json(taskDAO.create(task));
+            Task createdTask = taskDAO.create(task);
+            UtilsController.sendResponse(ctx, "Task", createdTask.getId());
+            ctx.status(201).json(createdTask);
         } catch (Exception e) {
             ctx.status(400).json(Map.of("message", "Invalid request data."));
         }
@@ -122,9 +203,11 @@ public class TaskController implements ResourceControllerInterface {
             Returns 304 Not Modified if the resource hasn't changed since the specified timestamp.
             """, tags = "Tasks", headers = {
             @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp. Returns 304 if resource unchanged since this time.")
-    }, pathParams = @OpenApiParam(name = "id", description = "Task ID", required = true, type = UUID.class), responses = {
+    }, pathParams = @OpenApiParam(name = "id", description = "Task ID", required = true, type = UUID.class), queryParams = {
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,title,done,priority")
+    }, responses = {
             @OpenApiResponse(status = "200", description = "Task found", content = @OpenApiContent(from = Task.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted timestamp of last modification")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted timestamp of last modification")
             }),
             @OpenApiResponse(status = "304", description = "Task not modified since If-Modified-Since timestamp"),
             @OpenApiResponse(status = "400", description = "Invalid If-Modified-Since header format"),
@@ -134,14 +217,41 @@ public class TaskController implements ResourceControllerInterface {
     @Override
     public void show(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
+        FieldSet fields = FieldSet.from(ctx, FieldSet.TASK);
+        if (fields == null) {
+            return;
+        }
 
-        UtilsController.checkModif(ctx, taskCache, id);
+        UtilsController.checkModif(ctx, "Task", id);
 
         Task task = taskDAO.findById(id);
 
         if (task != null) {
-            UtilsController.sendResponse(ctx, taskCache, task.getId());
-            ctx.json(task);
+            ctx.json(fields.filter(task));
+        } else {
+            ctx.status(404).json(Map.of("message", "Task not found"));
+        }
+    }
+
+    /**
+     * Show a task with its material needs, collaborator needs and subtasks
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/tasks/{id}/full", methods = HttpMethod.GET, operationId = "getFullTaskById", summary = "Get a task with its needs and subtasks", description = "Fetches a task, its material needs, its collaborator needs and its subtasks in a single round trip to the database.", tags = "Tasks", pathParams = @OpenApiParam(name = "id", description = "Task ID", required = true, type = UUID.class), responses = {
+            @OpenApiResponse(status = "200", description = "Task found", content = @OpenApiContent(from = TaskDetail.class)),
+            @OpenApiResponse(status = "404", description = "Task not found"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void full(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        int id = Integer.parseInt(ctx.pathParam("id"));
+        TaskDetail detail = taskDAO.findDetailById(id);
+
+        if (detail != null) {
+            ctx.json(detail);
         } else {
             ctx.status(404).json(Map.of("message", "Task not found"));
         }
@@ -157,7 +267,7 @@ public class TaskController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/tasks/{id}", methods = HttpMethod.PUT, operationId = "updateTask", summary = "Update task by ID", description = "Updates a task by its ID and updates its Last-Modified timestamp in the cache.", tags = "Tasks", pathParams = @OpenApiParam(name = "id", description = "Task ID", required = true, type = UUID.class), requestBody = @OpenApiRequestBody(description = "Updated task details", content = @OpenApiContent(from = Task.class)), responses = {
             @OpenApiResponse(status = "200", description = "Task updated successfully", content = @OpenApiContent(from = Task.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted update timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted update timestamp")
             }),
             @OpenApiResponse(status = "400", description = "Bad request"),
             @OpenApiResponse(status = "404", description = "Task not found"),
@@ -171,14 +281,171 @@ public class TaskController implements ResourceControllerInterface {
         task.setId(id);
         Task updatedTask = taskDAO.update(task);
         if (updatedTask != null) {
-            taskCache.put(id, LocalDateTime.now());
-            ctx.header("Last-Modified", LocalDateTime.now().toString());
+            UtilsController.sendResponse(ctx, "Task", id);
             ctx.json(updatedTask);
         } else {
             ctx.status(404).json(Map.of("message", "Task not found"));
         }
     }
 
+    /**
+     * Create several tasks in a single transaction, with multi-row inserts
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/tasks/batch", methods = HttpMethod.POST, operationId = "createTasks", summary = "Create several tasks", description = "Creates all the tasks, or none of them if an item is invalid. The outcome of each item is reported.", tags = "Tasks", requestBody = @OpenApiRequestBody(description = "Tasks to create (at most 1000)", content = @OpenApiContent(from = Task[].class)), responses = {
+            @OpenApiResponse(status = "201", description = "Tasks created successfully", content = @OpenApiContent(from = BatchItemResult[].class)),
+            @OpenApiResponse(status = "400", description = "Invalid batch or items, nothing has been created"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void createBatch(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Task> tasks = UtilsController.getBatchBody(ctx, Task[].class);
+        if (tasks == null) {
+            return;
+        }
+
+        List<BatchItemResult> report = validateBatch(tasks, false);
+        if (UtilsController.sendBatchFailure(ctx, report)) {
+            return;
+        }
+
+        List<Task> createdTasks = taskDAO.createAll(tasks);
+        for (int i = 0; i < createdTasks.size(); i++) {
+            report.set(i, new BatchItemResult(i, 201, createdTasks.get(i).getId(), null));
+        }
+        ctx.status(201).json(report);
+    }
+
+    /**
+     * Update several tasks in a single transaction, with JDBC batches
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/tasks/batch", methods = HttpMethod.PUT, operationId = "updateTasks", summary = "Update several tasks", description = "Updates all the tasks (identified by their id), or none of them if an item is invalid or not found. The outcome of each item is reported.", tags = "Tasks", requestBody = @OpenApiRequestBody(description = "Tasks to update (at most 1000)", content = @OpenApiContent(from = Task[].class)), responses = {
+            @OpenApiResponse(status = "200", description = "Tasks updated successfully", content = @OpenApiContent(from = BatchItemResult[].class)),
+            @OpenApiResponse(status = "400", description = "Invalid batch or items, nothing has been updated"),
+            @OpenApiResponse(status = "404", description = "Task not found, nothing has been updated"),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void updateBatch(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Task> tasks = UtilsController.getBatchBody(ctx, Task[].class);
+        if (tasks == null) {
+            return;
+        }
+
+        List<BatchItemResult> report = validateBatch(tasks, true);
+        if (UtilsController.sendBatchFailure(ctx, report)) {
+            return;
+        }
+
+        List<Task> updatedTasks = taskDAO.updateAll(tasks);
+        for (int i = 0; i < updatedTasks.size(); i++) {
+            report.set(i, updatedTasks.get(i) != null
+                    ? new BatchItemResult(i, 200, tasks.get(i).getId(), null)
+                    : new BatchItemResult(i, 404, null, "Task not found"));
+        }
+        // The tasks already updated are rolled back along with the failure
+        if (UtilsController.sendBatchFailure(ctx, report)) {
+            return;
+        }
+        ctx.json(report);
+    }
+
+    /**
+     * Check the items of a batch before writing them, including the checks of the database
+     * that would otherwise fail the whole batch with a single error: the results of the tasks
+     * (and their dates) and the start dates already taken are read with one query each, so
+     * the failing items are reported.
+     *
+     * @param tasks:  items of the batch
+     * @param update: true if the items must have an id
+     * @return outcome of each item, with a status >= 400 for the invalid ones
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private List<BatchItemResult> validateBatch(List<Task> tasks, boolean update)
+            throws ClassNotFoundException, SQLException, IOException {
+        Set<Integer> resultIds = new HashSet<>();
+        Set<Timestamp> dates = new HashSet<>();
+        // Position of each updated task in the batch
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            Task task = tasks.get(i);
+            if (task != null) {
+                resultIds.add(task.getResultId());
+                if (task.getStartsAt() != null) {
+                    dates.add(task.getStartsAt());
+                }
+                if (update) {
+                    positions.putIfAbsent(task.getId(), i);
+                }
+            }
+        }
+        Map<Integer, Result> results = resultDAO.findByIds(resultIds);
+        Map<Timestamp, Integer> takenDates = taskDAO.findIdsByStartsAt(dates);
+
+        List<BatchItemResult> report = new ArrayList<>(tasks.size());
+        Set<Integer> ids = new HashSet<>();
+        // Start dates claimed by the valid items of the batch (startsAt is unique)
+        Set<Timestamp> claimedDates = new HashSet<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            Task task = tasks.get(i);
+            String error = null;
+            Result result = task == null ? null : results.get(task.getResultId());
+            if (task == null) {
+                error = "The item must be a task.";
+            } else if (update && task.getId() <= 0) {
+                error = "'id' is required.";
+            } else if (update && !ids.add(task.getId())) {
+                error = "Task " + task.getId() + " is updated twice.";
+            } else if (task.getTitle() == null || task.getTitle().isBlank()) {
+                error = "'title' is required.";
+            } else if (task.getStartsAt() == null || task.getPriority() == null || task.getDeadline() == null) {
+                error = "'startsAt', 'priority' and 'deadline' are required.";
+            } else if (result == null) {
+                error = "Result " + task.getResultId() + " not found.";
+            } else if (task.getStartsAt().before(result.getCreatedAt())
+                    || (result.getEndsAt() != null && task.getStartsAt().after(result.getEndsAt()))) {
+                error = "'startsAt' must be between the creation and the end of result " + task.getResultId() + ".";
+            } else if (isTaken(tasks, positions, takenDates.get(task.getStartsAt()), task, i, update)) {
+                error = "A task already starts at " + task.getStartsAt() + ".";
+            } else if (!claimedDates.add(task.getStartsAt())) {
+                error = "Another item starts at " + task.getStartsAt() + ".";
+            }
+            report.add(new BatchItemResult(i, error == null ? 200 : 400, null, error));
+        }
+        return report;
+    }
+
+    /**
+     * Check if the start date of an item is taken by a task that is not moved away before the item is written
+     *
+     * @param tasks:     items of the batch
+     * @param positions: position of each updated task in the batch
+     * @param ownerId:   id of the task starting at the date of the item, null if none
+     * @param task:      item to check
+     * @param index:     position of the item
+     * @param update:    true if the items update existing tasks
+     * @return true if writing the item would violate UC_Task_starts_at
+     */
+    private static boolean isTaken(List<Task> tasks, Map<Integer, Integer> positions, Integer ownerId, Task task,
+                                   int index, boolean update) {
+        if (ownerId == null || (update && ownerId == task.getId())) {
+            return false;
+        }
+        // Free if the owner is updated earlier in the batch with another start date (the items are written in order)
+        Integer position = update ? positions.get(ownerId) : null;
+        return position == null || position > index
+                || task.getStartsAt().equals(tasks.get(position).getStartsAt());
+    }
+
     /**
      * Delete a task
      *
@@ -196,7 +463,6 @@ public class TaskController implements ResourceControllerInterface {
     public void delete(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
         if (taskDAO.delete(id)) {
-            taskCache.remove(id);
             ctx.status(204);
         } else {
             ctx.status(404).json(Map.of("message", "Task not found"));
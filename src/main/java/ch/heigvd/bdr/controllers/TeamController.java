@@ -4,22 +4,23 @@ import ch.heigvd.bdr.dao.UserDAO;
 import ch.heigvd.bdr.misc.StringHelper;
 import ch.heigvd.bdr.models.User;
 import io.javalin.http.Context;
+import ch.heigvd.bdr.dao.CachedDAO;
 import ch.heigvd.bdr.dao.TeamDAO;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Page;
+import ch.heigvd.bdr.misc.Pagination;
 import ch.heigvd.bdr.models.Team;
 import io.javalin.http.NotFoundResponse;
-import io.javalin.http.NotModifiedResponse;
 import io.javalin.openapi.*;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class TeamController implements ResourceControllerInterface {
-    // Used to manage the cache for all teams
-    private final ConcurrentHashMap<Integer, LocalDateTime> teamCache = new ConcurrentHashMap<>();
     private final TeamDAO teamDAO = new TeamDAO();
+    // Teams rarely change: they are read from memory once loaded
+    private final CachedDAO<Team, Integer> cachedTeamDAO = CachedDAO.of(teamDAO, "Team", Team::getId, 1_000, 300);
     private final UserDAO userDAO = new UserDAO();
 
     /**
@@ -30,8 +31,14 @@ public class TeamController implements ResourceControllerInterface {
      * @throws SQLException
      * @throws IOException
      */
-    @OpenApi(path = "/teams", methods = HttpMethod.GET, operationId = "getAllTeams", summary = "Get all teams", description = "Returns a list of all teams.", tags = "Teams", headers = {
-            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request")
+    @OpenApi(path = "/teams", methods = HttpMethod.GET, operationId = "getAllTeams", summary = "Get all teams", description = "Returns a list of all teams.", tags = "Teams", queryParams = {
+            @OpenApiParam(name = "ids", required = false, description = "Comma-separated ids: only these teams are sent, in this order (the other parameters but fields are ignored)"),
+            @OpenApiParam(name = "after", required = false, description = "Cursor of the page (taken from the Link header of the previous page)"),
+            @OpenApiParam(name = "limit", required = false, type = Integer.class, description = "Maximum number of items (default 100, at most 1000)"),
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,name")
+    }, headers = {
+            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request"),
+            @OpenApiParam(name = "If-None-Match", required = false, description = "ETag of the list for conditional request")
     }, responses = {
             @OpenApiResponse(status = "200", description = "List of all teams", content = @OpenApiContent(from = Team[].class)),
             @OpenApiResponse(status = "304", description = "Resource not modified since If-Modified-Since timestamp"),
@@ -40,21 +47,48 @@ public class TeamController implements ResourceControllerInterface {
     })
     @Override
     public void all(Context ctx) throws ClassNotFoundException, SQLException, IOException {
-        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
-        LocalDateTime latestModification = teamCache.values().stream().max(LocalDateTime::compareTo).orElse(null);
+        if (ctx.queryParam("ids") != null) {
+            showMany(ctx);
+            return;
+        }
+
+        Pagination pagination = Pagination.from(ctx);
+        if (pagination == null) {
+            return;
+        }
+
+        FieldSet fields = FieldSet.from(ctx, FieldSet.TEAM);
+        if (fields == null) {
+            return;
+        }
+
+        UtilsController.sendCollection(ctx, null,
+                () -> fields.filter(Page.of(cachedTeamDAO.findAll(pagination.after(), pagination.limit(), fields),
+                        pagination, Team::getId)), "Team");
+    }
 
-        if (lastKnownModification != null && latestModification != null
-                && !UtilsController.isModifiedSince(latestModification, lastKnownModification)) {
-            throw new NotModifiedResponse();
+    /**
+     * Show several teams with a single query (GET /teams?ids=1,2,3)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void showMany(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = UtilsController.getIdsParam(ctx);
+        if (ids == null) {
+            return;
         }
 
-        List<Team> teams = teamDAO.findAll();
-        LocalDateTime now = LocalDateTime.now();
-        for (Team t : teams) {
-            teamCache.put(t.getId(), now);
+        FieldSet fields = FieldSet.from(ctx, FieldSet.TEAM);
+        if (fields == null) {
+            return;
         }
-        ctx.header("Last-Modified", now.toString());
-        ctx.json(teams);
+
+        UtilsController.checkCollectionModif(ctx, "Team");
+
+        ctx.json(fields.filter(List.copyOf(cachedTeamDAO.findByIds(ids).values())));
     }
 
     /**
@@ -67,7 +101,7 @@ public class TeamController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/teams", methods = HttpMethod.POST, operationId = "createTeam", summary = "Create a new team", description = "Creates a new team.", tags = "Teams", requestBody = @OpenApiRequestBody(description = "Team details", content = @OpenApiContent(from = Team.class)), responses = {
             @OpenApiResponse(status = "201", description = "Team created successfully", content = @OpenApiContent(from = Team.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted creation timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted creation timestamp")
             }),
             @OpenApiResponse(status = "400", description = "Bad Request"),
             @OpenApiResponse(status = "500", description = "Internal Server Error")
@@ -75,9 +109,9 @@ public class TeamController implements ResourceControllerInterface {
     @Override
     public void create(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         Team team = ctx.bodyAsClass(Team.class);
-        teamCache.put(team.getId(), LocalDateTime.now());
-        ctx.header("Last-Modified", LocalDateTime.now().toString());
-        ctx.status(201).json(teamDAO.create(team));
+        Team createdTeam = cachedTeamDAO.create(team);
+        UtilsController.sendResponse(ctx, "Team", createdTeam.getId());
+        ctx.status(201).json(createdTeam);
     }
 
     /**
@@ -94,9 +128,11 @@ public class TeamController implements ResourceControllerInterface {
             Returns 304 Not Modified if the resource hasn't changed since the specified timestamp.
             """, tags = "Teams", headers = {
             @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp. Returns 304 if resource unchanged since this time.")
-    }, pathParams = @OpenApiParam(name = "id", description = "Team ID", required = true, type = UUID.class), responses = {
+    }, pathParams = @OpenApiParam(name = "id", description = "Team ID", required = true, type = UUID.class), queryParams = {
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,name")
+    }, responses = {
             @OpenApiResponse(status = "200", description = "Team found", content = @OpenApiContent(from = Team.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted timestamp of last modification")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted timestamp of last modification")
             }),
             @OpenApiResponse(status = "304", description = "Team not modified since If-Modified-Since timestamp"),
             @OpenApiResponse(status = "400", description = "Invalid If-Modified-Since header format"),
@@ -106,14 +142,17 @@ public class TeamController implements ResourceControllerInterface {
     @Override
     public void show(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
+        FieldSet fields = FieldSet.from(ctx, FieldSet.TEAM);
+        if (fields == null) {
+            return;
+        }
 
-        UtilsController.checkModif(ctx, teamCache, id);
+        UtilsController.checkModif(ctx, "Team", id);
 
-        Team team = teamDAO.findById(id);
+        Team team = cachedTeamDAO.findById(id);
 
         if (team != null) {
-            UtilsController.sendResponse(ctx, teamCache, team.getId());
-            ctx.json(team);
+            ctx.json(fields.filter(team));
         } else {
             throw new NotFoundResponse();
         }
@@ -129,7 +168,7 @@ public class TeamController implements ResourceControllerInterface {
      */
     @OpenApi(path = "/teams/{id}", methods = HttpMethod.PUT, operationId = "updateTeam", summary = "Update team by ID", description = "Updates a team by its ID.", tags = "Teams", pathParams = @OpenApiParam(name = "id", description = "Team ID", required = true, type = UUID.class), requestBody = @OpenApiRequestBody(description = "Updated team details", content = @OpenApiContent(from = Team.class)), responses = {
             @OpenApiResponse(status = "200", description = "Team updated successfully", content = @OpenApiContent(from = Team.class), headers = {
-                    @OpenApiParam(name = "Last-Modified", description = "ISO-8601 formatted update timestamp")
+                    @OpenApiParam(name = "Last-Modified", description = "RFC 1123 formatted update timestamp")
             }),
             @OpenApiResponse(status = "404", description = "Team not found"),
             @OpenApiResponse(status = "500", description = "Internal Server Error")
@@ -139,10 +178,9 @@ public class TeamController implements ResourceControllerInterface {
         int id = Integer.parseInt(ctx.pathParam("id"));
         Team team = ctx.bodyAsClass(Team.class);
         team.setId(id);
-        Team updatedTeam = teamDAO.update(team);
+        Team updatedTeam = cachedTeamDAO.update(team);
         if (updatedTeam != null) {
-            teamCache.put(id, LocalDateTime.now());
-            ctx.header("Last-Modified", LocalDateTime.now().toString());
+            UtilsController.sendResponse(ctx, "Team", id);
             ctx.json(updatedTeam);
         } else {
             ctx.status(404).json(Map.of("message", "Team not found"));
@@ -165,8 +203,7 @@ public class TeamController implements ResourceControllerInterface {
     @Override
     public void delete(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
-        if (teamDAO.delete(id)) {
-            teamCache.remove(id);
+        if (cachedTeamDAO.delete(id)) {
             ctx.status(204);
         } else {
             ctx.status(404).json(Map.of("message", "Team not found"));
@@ -261,7 +298,7 @@ public class TeamController implements ResourceControllerInterface {
         int teamId = Integer.parseInt(ctx.pathParam("id"));
 
         // Vérifier si l'équipe existe
-        Team team = teamDAO.findById(teamId);
+        Team team = cachedTeamDAO.findById(teamId);
         if (team == null) {
             ctx.status(404).json(Map.of("message", "Team not found"));
             return;
@@ -301,6 +338,7 @@ public class TeamController implements ResourceControllerInterface {
         }
 
         teamDAO.addManager(id, teamId);
+        cachedTeamDAO.invalidate(teamId);
 
         ctx.status(200).json(Map.of("message", "User become manager of the team successfully"));
     }
@@ -341,6 +379,7 @@ public class TeamController implements ResourceControllerInterface {
         }
 
         teamDAO.removeManager(teamId);
+        cachedTeamDAO.invalidate(teamId);
 
         ctx.status(200).json(Map.of("message", "User become manager of the team successfully"));
     }
@@ -2,13 +2,18 @@ package ch.heigvd.bdr.controllers;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 import ch.heigvd.bdr.dao.UserDAO;
+import ch.heigvd.bdr.misc.JsonStream;
+import ch.heigvd.bdr.misc.JwtUtil;
+import ch.heigvd.bdr.misc.RoleCache;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Page;
+import ch.heigvd.bdr.misc.Pagination;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.User;
 import io.javalin.http.Context;
 import io.javalin.http.NotFoundResponse;
@@ -20,8 +25,6 @@ import io.javalin.openapi.OpenApiRequestBody;
 import io.javalin.openapi.OpenApiResponse;
 
 public class UserController implements ResourceControllerInterface {
-    // Used to manage the cache for all users
-    private final ConcurrentHashMap<Integer, LocalDateTime> userCache = new ConcurrentHashMap<>();
     private final UserDAO userDAO = new UserDAO();
 
     /**
@@ -32,8 +35,14 @@ public class UserController implements ResourceControllerInterface {
      * @throws SQLException
      * @throws IOException
      */
-    @OpenApi(path = "/users", methods = HttpMethod.GET, operationId = "getAllUsers", summary = "Get all users", description = "Returns a list of all users.", tags = "Users", headers = {
-            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request")
+    @OpenApi(path = "/users", methods = HttpMethod.GET, operationId = "getAllUsers", summary = "Get all users", description = "Returns a list of all users.", tags = "Users", queryParams = {
+            @OpenApiParam(name = "ids", required = false, description = "Comma-separated ids: only these users are sent, in this order (the other parameters but fields are ignored)"),
+            @OpenApiParam(name = "after", required = false, description = "Cursor of the page (taken from the Link header of the previous page)"),
+            @OpenApiParam(name = "limit", required = false, type = Integer.class, description = "Maximum number of items (default 100, at most 1000)"),
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,firstname,lastname")
+    }, headers = {
+            @OpenApiParam(name = "If-Modified-Since", required = false, description = "RFC 1123 formatted timestamp for conditional request"),
+            @OpenApiParam(name = "If-None-Match", required = false, description = "ETag of the list for conditional request")
     }, responses = {
             @OpenApiResponse(status = "200", description = "List of all users", content = @OpenApiContent(from = User[].class)),
             @OpenApiResponse(status = "304", description = "Resource not modified since If-Modified-Since timestamp"),
@@ -42,23 +51,64 @@ public class UserController implements ResourceControllerInterface {
     })
     @Override
     public void all(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        if (ctx.queryParam("ids") != null) {
+            showMany(ctx);
+            return;
+        }
 
-        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
-        LocalDateTime latestModification = userCache.values().stream().max(LocalDateTime::compareTo).orElse(null);
+        Pagination pagination = Pagination.from(ctx);
+        if (pagination == null) {
+            return;
+        }
 
-        if (lastKnownModification != null && latestModification != null
-                && !UtilsController.isModifiedSince(latestModification, lastKnownModification)) {
-            ctx.status(304).json(Map.of("message", "Not modified"));
+        FieldSet fields = FieldSet.from(ctx, FieldSet.USER);
+        if (fields == null) {
             return;
         }
 
-        List<User> users = userDAO.findAll();
-        LocalDateTime now = LocalDateTime.now();
-        for (User u : users) {
-            userCache.put(u.getId(), now);
+        UtilsController.sendCollection(ctx, null,
+                () -> fields.filter(Page.of(userDAO.findAll(pagination.after(), pagination.limit(), fields),
+                        pagination, User::getId)), "User");
+    }
+
+    /**
+     * Show several users with a single query (GET /users?ids=1,2,3)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void showMany(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = UtilsController.getIdsParam(ctx);
+        if (ids == null) {
+            return;
+        }
+
+        FieldSet fields = FieldSet.from(ctx, FieldSet.USER);
+        if (fields == null) {
+            return;
         }
-        ctx.header("Last-Modified", now.toString());
-        ctx.json(users);
+
+        UtilsController.checkCollectionModif(ctx, "User");
+
+        ctx.json(fields.filter(List.copyOf(userDAO.findByIds(ids).values())));
+    }
+
+    /**
+     * Stream all users, read through a database cursor (full export)
+     *
+     * @param ctx: context to use
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    @OpenApi(path = "/users/stream", methods = HttpMethod.GET, operationId = "streamAllUsers", summary = "Stream all users", description = "Returns all the users in a single array, written as they are read from the database.", tags = "Users", responses = {
+            @OpenApiResponse(status = "200", description = "List of all users", content = @OpenApiContent(from = User[].class)),
+            @OpenApiResponse(status = "500", description = "Internal Server Error")
+    })
+    public void stream(Context ctx) throws ClassNotFoundException, SQLException, IOException {
+        JsonStream.send(ctx, userDAO::streamAll);
     }
 
     /**
@@ -77,9 +127,11 @@ public class UserController implements ResourceControllerInterface {
     @Override
     public void create(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         User user = ctx.bodyAsClass(User.class);
-        userCache.put(user.getId(), LocalDateTime.now());
-        ctx.header("Last-Modified", LocalDateTime.now().toString());
-        ctx.status(201).json(userDAO.create(user));
+        User createdUser = userDAO.create(user);
+        UtilsController.sendResponse(ctx, "User", createdUser.getId());
+        // The id may have been cached as unknown
+        RoleCache.invalidate(createdUser.getId());
+        ctx.status(201).json(createdUser);
     }
 
     /**
@@ -90,7 +142,9 @@ public class UserController implements ResourceControllerInterface {
      * @throws SQLException
      * @throws IOException
      */
-    @OpenApi(path = "/users/{id}", methods = HttpMethod.GET, operationId = "getUserById", summary = "Get user by ID", description = "Fetches a user by their ID.", tags = "Users", pathParams = @OpenApiParam(name = "id", description = "User ID", required = true, type = UUID.class), responses = {
+    @OpenApi(path = "/users/{id}", methods = HttpMethod.GET, operationId = "getUserById", summary = "Get user by ID", description = "Fetches a user by their ID.", tags = "Users", pathParams = @OpenApiParam(name = "id", description = "User ID", required = true, type = UUID.class), queryParams = {
+            @OpenApiParam(name = "fields", required = false, description = "Comma-separated fields to send (all by default), e.g. id,firstname,lastname")
+    }, responses = {
             @OpenApiResponse(status = "200", description = "User found", content = @OpenApiContent(from = User.class)),
             @OpenApiResponse(status = "404", description = "User not found"),
             @OpenApiResponse(status = "500", description = "Internal Server Error")
@@ -98,14 +152,17 @@ public class UserController implements ResourceControllerInterface {
     @Override
     public void show(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
+        FieldSet fields = FieldSet.from(ctx, FieldSet.USER);
+        if (fields == null) {
+            return;
+        }
 
-        UtilsController.checkModif(ctx, userCache, id);
+        UtilsController.checkModif(ctx, "User", id);
 
         User user = userDAO.findById(id);
 
         if (user != null) {
-            UtilsController.sendResponse(ctx, userCache, user.getId());
-            ctx.json(user);
+            ctx.json(fields.filter(user));
         } else {
             ctx.status(404).json(Map.of("message", "User not found"));
         }
@@ -130,10 +187,16 @@ public class UserController implements ResourceControllerInterface {
         int id = Integer.parseInt(ctx.pathParam("id"));
         User user = ctx.bodyAsClass(User.class);
         user.setId(id);
+        User previousUser = userDAO.findById(id);
         User updatedUser = userDAO.update(user);
         if (updatedUser != null) {
-            userCache.put(id, LocalDateTime.now());
-            ctx.header("Last-Modified", LocalDateTime.now().toString());
+            RoleCache.invalidate(id);
+            if (previousUser != null && previousUser.getRole() != updatedUser.getRole()) {
+                // The role is stored in the tokens: the old ones must not be accepted anymore.
+                // Revoked after the commit, so a token issued meanwhile with the old role is revoked too
+                UnitOfWork.afterCommit(() -> JwtUtil.revoke(id));
+            }
+            UtilsController.sendResponse(ctx, "User", id);
             ctx.json(updatedUser);
         } else {
             ctx.status(404).json(Map.of("message", "User not found"));
@@ -157,7 +220,8 @@ public class UserController implements ResourceControllerInterface {
     public void delete(Context ctx) throws ClassNotFoundException, SQLException, IOException {
         int id = Integer.parseInt(ctx.pathParam("id"));
         if (userDAO.delete(id)) {
-            userCache.remove(id);
+            UnitOfWork.afterCommit(() -> JwtUtil.revoke(id));
+            RoleCache.invalidate(id);
             ctx.status(204);
         } else {
             ctx.status(404).json(Map.of("message", "User not found"));
@@ -2,14 +2,36 @@ package ch.heigvd.bdr.controllers;
 
 import io.javalin.http.Context;
 import io.javalin.http.NotModifiedResponse;
+import io.javalin.json.JsonMapper;
 
+import java.io.IOException;
+import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+
+import ch.heigvd.bdr.dao.Expand;
+import ch.heigvd.bdr.dao.VersionDAO;
+import ch.heigvd.bdr.misc.ChangeNotifier;
+import ch.heigvd.bdr.misc.CollectionVersion;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Pagination;
+import ch.heigvd.bdr.misc.ResponseCache;
+import ch.heigvd.bdr.misc.SqlSupplier;
+import ch.heigvd.bdr.misc.StringHelper;
+import ch.heigvd.bdr.models.BatchItemResult;
+import ch.heigvd.bdr.models.RowVersion;
 
 public class UtilsController {
+    private static final VersionDAO versionDAO = new VersionDAO();
+
     /**
      * Get the If-Modified-Since header from the request
      *
@@ -25,7 +47,7 @@ public class UtilsController {
                 ZonedDateTime headerDateTime = ZonedDateTime.parse(
                         ifModifiedSinceHeader, DateTimeFormatter.RFC_1123_DATE_TIME);
 
-                // Convert to LocalDateTime for comparison with your cache
+                // Convert to LocalDateTime (UTC) for comparison with the versions
                 lastKnownModification = headerDateTime.toLocalDateTime();
             } catch (Exception e) {
                 ctx.status(400).json(Map.of("message", "Invalid 'If-Modified-Since' header format."));
@@ -54,39 +76,413 @@ public class UtilsController {
     }
 
     /**
-     * Send the response to the client
+     * Set the ETag and Last-Modified headers of a row, based on its version in the database
      *
      * @param ctx:   context to use
-     * @param cache: Cache to use
-     * @param key:   Key of the value in the ConcurrentHashMap
+     * @param table: table of the row
+     * @param id:    id of the row
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
      */
-    public static void sendResponse(Context ctx, ConcurrentHashMap<Integer, LocalDateTime> cache, Integer key) {
-        LocalDateTime now;
-        if (cache.containsKey(key)) {
-            now = cache.get(key);
-        } else {
-            now = LocalDateTime.now();
-            cache.put(key, now);
+    public static void sendResponse(Context ctx, String table, Integer id)
+            throws ClassNotFoundException, SQLException, IOException {
+        RowVersion version = versionDAO.findRowVersion(table, id);
+        if (version != null) {
+            setVersionHeaders(ctx, rowEtag(version), version.getUpdatedAt());
         }
-        ctx.header("Last-Modified", now.toString());
     }
 
     /**
-     * Check if some modifications have been done since the last known modification
+     * Check if a row has been modified since the version known by the client (If-None-Match
+     * or If-Modified-Since header), and set its ETag and Last-Modified headers.
+     * Only the version of the row is read, not the row itself.
      *
      * @param ctx:   context to use
-     * @param cache: cache to check into
-     * @param id:    key of the ConcurrentHashMap to use
+     * @param table: table of the row
+     * @param id:    id of the row
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return: ETag of the row, null if it does not exist
      */
-    public static void checkModif(Context ctx, ConcurrentHashMap<Integer, LocalDateTime> cache, Integer id) {
-        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
+    public static String checkModif(Context ctx, String table, Integer id)
+            throws ClassNotFoundException, SQLException, IOException {
+        RowVersion version = versionDAO.findRowVersion(table, id);
+        if (version == null) {
+            // Not found, answered by the caller
+            return null;
+        }
+        String etag = rowEtag(version);
+        checkVersion(ctx, etag, version.getUpdatedAt());
+        return etag;
+    }
+
+    /**
+     * Check if a row, sent with data of other tables (e.g. the name of its team), has been
+     * modified since the version known by the client, and set its ETag and Last-Modified headers.
+     * The version of the row is combined with the versions of the other tables (see CollectionVersion).
+     *
+     * @param ctx:     context to use
+     * @param table:   table of the row
+     * @param id:      id of the row
+     * @param related: tables of the other data sent with the row
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return: (weak) ETag of the response, null if the row does not exist
+     */
+    public static String checkModif(Context ctx, String table, Integer id, String... related)
+            throws ClassNotFoundException, SQLException, IOException {
+        RowVersion version = versionDAO.findRowVersion(table, id);
+        if (version == null) {
+            // Not found, answered by the caller
+            return null;
+        }
+        // W/"<epoch>-<versions>" of the related tables, prefixed by the version of the row
+        String etag = "W/\"" + version.getVersion() + "-" + CollectionVersion.etag(related).substring(3);
+        LocalDateTime lastModified = CollectionVersion.lastModified(related);
+        if (version.getUpdatedAt().isAfter(lastModified)) {
+            lastModified = version.getUpdatedAt();
+        }
+        checkCollectionVersion(ctx, etag, lastModified);
+        return etag;
+    }
+
+    /**
+     * Check if a list has been modified since the version known by the client (If-None-Match
+     * or If-Modified-Since header), and set its ETag and Last-Modified headers.
+     * Only the versions of the tables are compared (see CollectionVersion), the list itself is not read.
+     *
+     * @param ctx:    context to use
+     * @param tables: tables the list is built from
+     * @return: ETag of the list
+     */
+    public static String checkCollectionModif(Context ctx, String... tables) {
+        // Read before the list, so the returned data is at least as recent as these headers
+        String etag = CollectionVersion.etag(tables);
+        checkCollectionVersion(ctx, etag, CollectionVersion.lastModified(tables));
+        return etag;
+    }
+
+    /**
+     * Set the ETag and Last-Modified headers of a list, and answer 304 if they match the request,
+     * unless the changes of the other instances are not received (the versions may be outdated)
+     *
+     * @param ctx:          context to use
+     * @param etag:         current ETag (see CollectionVersion)
+     * @param lastModified: current modification date (UTC)
+     */
+    public static void checkCollectionVersion(Context ctx, String etag, LocalDateTime lastModified) {
+        if (!ChangeNotifier.isConnected()) {
+            // The versions are bumped again on reconnection, so these headers never match afterwards
+            setVersionHeaders(ctx, etag, lastModified);
+            return;
+        }
+        checkVersion(ctx, etag, lastModified);
+    }
+
+    /**
+     * Send a list built from some tables, with its ETag and Last-Modified headers (or 304).
+     * The last list sent is served again without querying the database while no change has
+     * been notified (and refreshed in the background), and when the database fails.
+     *
+     * @param ctx:    context to use
+     * @param scope:  what the list depends on besides the route and parameters (e.g. the user), null if nothing
+     * @param loader: used to load the list, may return null if it does not exist
+     * @param tables: tables the list is built from
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return: false if the loader returned null (nothing has been sent)
+     */
+    public static boolean sendCollection(Context ctx, String scope, SqlSupplier<?> loader, String... tables)
+            throws ClassNotFoundException, SQLException, IOException {
+        String resource = scope == null ? ResponseCache.key(ctx) : ResponseCache.key(ctx, scope);
+        JsonMapper mapper = ctx.jsonMapper();
+        long changes = ResponseCache.changeCount(tables);
+
+        ResponseCache.Snapshot snapshot = ResponseCache.findFresh(resource, changes);
+        if (snapshot != null) {
+            if (ResponseCache.shouldRefresh(snapshot)) {
+                ResponseCache.refresh(resource, () -> loadCollection(mapper, resource, loader, tables));
+            }
+            sendSnapshot(ctx, snapshot);
+            return true;
+        }
+
+        String etag = CollectionVersion.etag(tables);
+        LocalDateTime lastModified = CollectionVersion.lastModified(tables);
+        checkCollectionVersion(ctx, etag, lastModified);
+
+        try {
+            snapshot = ResponseCache.load(mapper, resource, etag, lastModified, changes, loader);
+        } catch (SQLException e) {
+            return sendStale(ctx, resource, e);
+        }
+        if (snapshot == null) {
+            return false;
+        }
+        ResponseCache.write(ctx, snapshot.body());
+        return true;
+    }
+
+    /**
+     * Load a list and keep it as the snapshot of its resource
+     *
+     * @param mapper:   JSON mapper to use
+     * @param resource: key of the list, without its version
+     * @param loader:   used to load the list
+     * @param tables:   tables the list is built from
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return: snapshot of the list, null if the loader returned null
+     */
+    private static ResponseCache.Snapshot loadCollection(JsonMapper mapper, String resource, SqlSupplier<?> loader,
+                                                         String... tables)
+            throws ClassNotFoundException, SQLException, IOException {
+        long changes = ResponseCache.changeCount(tables);
+        return ResponseCache.load(mapper, resource, CollectionVersion.etag(tables), CollectionVersion.lastModified(tables),
+                changes, loader);
+    }
+
+    /**
+     * Send a snapshot (or 304 if the client already has it)
+     *
+     * @param ctx:      context to use
+     * @param snapshot: snapshot to send
+     */
+    private static void sendSnapshot(Context ctx, ResponseCache.Snapshot snapshot) {
+        ctx.header("Age", String.valueOf(snapshot.age() / 1_000));
+        checkCollectionVersion(ctx, snapshot.etag(), snapshot.lastModified());
+        ResponseCache.write(ctx, snapshot.body());
+    }
+
+    /**
+     * Send the last snapshot of a resource when the database fails
+     *
+     * @param ctx:      context to use
+     * @param resource: key of the list, without its version
+     * @param error:    error of the database, thrown again if no snapshot can be sent
+     * @throws SQLException
+     * @return: true (the snapshot has been sent)
+     */
+    private static boolean sendStale(Context ctx, String resource, SQLException error) throws SQLException {
+        ResponseCache.Snapshot snapshot = ResponseCache.findStale(resource);
+        if (snapshot == null) {
+            throw error;
+        }
+        ctx.header("Warning", "111 - \"Revalidation Failed\"");
+        sendSnapshot(ctx, snapshot);
+        return true;
+    }
+
+    /**
+     * Read the ids query parameter of a multi-get (e.g. GET /tasks?ids=1,2,3).
+     * An invalid parameter is answered with a 400.
+     *
+     * @param ctx: context to use
+     * @return: requested ids (without duplicates, in the order of the request), null if the parameter is invalid
+     */
+    public static List<Integer> getIdsParam(Context ctx) {
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (String id : ctx.queryParam("ids").split(",")) {
+            id = id.trim();
+            if (id.isEmpty()) {
+                continue;
+            }
+            if (!StringHelper.isInteger(id)) {
+                ctx.status(400).json(Map.of("message", "'ids' must be a comma-separated list of ids."));
+                return null;
+            }
+            ids.add(Integer.parseInt(id));
+        }
+        if (ids.size() > Pagination.MAX_LIMIT) {
+            ctx.status(400).json(Map.of("message", "At most " + Pagination.MAX_LIMIT + " ids can be requested."));
+            return null;
+        }
+        return List.copyOf(ids);
+    }
 
-        if (lastKnownModification == null) {
+    /**
+     * Read the expand query parameter (e.g. GET /results?expand=goal.team).
+     * An unknown relation is answered with a 400.
+     *
+     * @param ctx:  context to use
+     * @param type: type of the sent entities
+     * @return: relations to expand (none when the parameter is missing), null if the parameter is invalid
+     */
+    public static Expand getExpandParam(Context ctx, Class<?> type) {
+        try {
+            return Expand.parse(ctx.queryParam("expand"), type);
+        } catch (IllegalArgumentException e) {
+            ctx.status(400).json(Map.of("message", e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Get the tables a list is built from, with the tables of its expanded relations
+     *
+     * @param expand: expanded relations
+     * @param tables: tables of the listed entities
+     * @return: all the tables, to check the version of the list
+     */
+    public static String[] withExpanded(Expand expand, String... tables) {
+        Set<String> all = new LinkedHashSet<>(Arrays.asList(tables));
+        all.addAll(expand.tables());
+        return all.toArray(String[]::new);
+    }
+
+    /**
+     * Get the fields to send, with the expanded relations (sent even when the fields are restricted)
+     *
+     * @param fields: requested fields
+     * @param expand: expanded relations
+     * @return: fields to send
+     */
+    public static FieldSet withExpanded(FieldSet fields, Expand expand) {
+        for (String field : expand.fields()) {
+            fields = fields.with(field);
+        }
+        return fields;
+    }
+
+    /**
+     * Read the body of a batch request: a JSON array of at most Pagination.MAX_LIMIT items.
+     * An invalid body is answered with a 400.
+     *
+     * @param ctx:  context to use
+     * @param type: array type of the items
+     * @return: items of the batch, null if the body is invalid
+     */
+    public static <T> List<T> getBatchBody(Context ctx, Class<T[]> type) {
+        T[] items;
+        try {
+            items = ctx.bodyAsClass(type);
+        } catch (Exception e) {
+            ctx.status(400).json(Map.of("message", "The body must be a JSON array of items."));
+            return null;
+        }
+        if (items == null || items.length == 0) {
+            ctx.status(400).json(Map.of("message", "The batch is empty."));
+            return null;
+        }
+        if (items.length > Pagination.MAX_LIMIT) {
+            ctx.status(400).json(Map.of("message", "At most " + Pagination.MAX_LIMIT + " items can be sent in a batch."));
+            return null;
+        }
+        return Arrays.asList(items);
+    }
+
+    /**
+     * Answer a batch having failing items: the other items are reported as not applied
+     * (424) and the request is answered with the highest status of the failures, so the
+     * transaction of the request is rolled back (see UnitOfWork).
+     *
+     * @param ctx:    context to use
+     * @param report: outcome of each item
+     * @return: true if the batch failed and has been answered
+     */
+    public static boolean sendBatchFailure(Context ctx, List<BatchItemResult> report) {
+        int status = report.stream().mapToInt(BatchItemResult::getStatus).filter(s -> s >= 400).max().orElse(0);
+        if (status == 0) {
+            return false;
+        }
+        for (BatchItemResult item : report) {
+            if (item.getStatus() < 400) {
+                item.setStatus(424);
+                item.setId(null);
+                item.setMessage("Not applied, another item of the batch failed.");
+            }
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("message", "The batch has been rolled back.");
+        body.put("items", report);
+        ctx.status(status).json(body);
+        return true;
+    }
+
+    /**
+     * Format a date for the Last-Modified header (RFC 1123)
+     *
+     * @param dateTime: UTC date to format
+     * @return: formatted date
+     */
+    public static String formatHttpDate(LocalDateTime dateTime) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(dateTime.atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * Set the ETag and Last-Modified headers, and answer 304 if they match the
+     * If-None-Match (or else the If-Modified-Since) header of the request
+     *
+     * @param ctx:          context to use
+     * @param etag:         current ETag
+     * @param lastModified: current modification date (UTC)
+     */
+    private static void checkVersion(Context ctx, String etag, LocalDateTime lastModified) {
+        setVersionHeaders(ctx, etag, lastModified);
+
+        String ifNoneMatch = ctx.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since
+            if (matchesEtag(ifNoneMatch, etag)) {
+                throw new NotModifiedResponse();
+            }
             return;
         }
 
-        if (UtilsController.isModifiedSince(cache.get(id), lastKnownModification)) {
+        LocalDateTime lastKnownModification = UtilsController.getLastModifiedHeader(ctx);
+        if (lastKnownModification != null && !lastModified.withNano(0).isAfter(lastKnownModification)) {
             throw new NotModifiedResponse();
         }
     }
+
+    /**
+     * Set the ETag and Last-Modified headers of the response
+     *
+     * @param ctx:          context to use
+     * @param etag:         ETag to send
+     * @param lastModified: modification date to send (UTC)
+     */
+    private static void setVersionHeaders(Context ctx, String etag, LocalDateTime lastModified) {
+        ctx.header("ETag", etag);
+        ctx.header("Last-Modified", formatHttpDate(lastModified));
+    }
+
+    /**
+     * Build the (strong) ETag of a row
+     *
+     * @param version: version of the row
+     * @return: ETag of the row
+     */
+    private static String rowEtag(RowVersion version) {
+        return "\"" + version.getVersion() + "\"";
+    }
+
+    /**
+     * Check if an If-None-Match header matches an ETag (weak comparison)
+     *
+     * @param ifNoneMatch: content of the If-None-Match header
+     * @param etag:        current ETag
+     * @return: true if one of the ETags of the header matches
+     */
+    public static boolean matchesEtag(String ifNoneMatch, String etag) {
+        String current = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,162 @@
+package ch.heigvd.bdr.dao;
+
+import ch.heigvd.bdr.misc.ChangeNotifier;
+import ch.heigvd.bdr.misc.EnvHelper;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.LruCache;
+import ch.heigvd.bdr.misc.UnitOfWork;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Caches the entities read by id in front of another DAO (read-through), and
+ * invalidates them on every write made through it, by another instance or by
+ * a foreign key cascade (see ChangeNotifier).
+ * Reads made by a write request (in a transaction) bypass the cache, so
+ * uncommitted data is never cached.
+ *
+ * @param <T>:  entity
+ * @param <ID>: id
+ */
+public class CachedDAO<T, ID> implements GenericDAO<T, ID> {
+    private final GenericDAO<T, ID> dao;
+    private final Function<T, ID> idOf;
+    private final LruCache<ID, T> cache;
+
+    /**
+     * Wrap a DAO with a cache
+     *
+     * @param dao:     DAO to use on a cache miss and for the writes
+     * @param table:   table of the entities (used to receive the changes)
+     * @param idOf:    get the id of an entity
+     * @param maxSize: maximum number of cached entities
+     * @param ttl:     time after which a cached entity is read again
+     */
+    @SuppressWarnings("unchecked")
+    public CachedDAO(GenericDAO<T, ID> dao, String table, Function<T, ID> idOf, int maxSize, Duration ttl) {
+        this.dao = dao;
+        this.idOf = idOf;
+        this.cache = new LruCache<>("entities." + table, maxSize, ttl);
+
+        // The ids of the notifications are the integer primary keys of the table
+        ChangeNotifier.subscribe(table, change -> {
+            if (change.id() == null) {
+                cache.invalidateAll();
+            } else {
+                cache.invalidate((ID) change.id());
+            }
+        });
+        ChangeNotifier.onResync(cache::invalidateAll);
+    }
+
+    /**
+     * Wrap a DAO with a cache, whose size and time to live can be overridden with the
+     * ENTITY_CACHE_<TABLE>_SIZE and ENTITY_CACHE_<TABLE>_TTL_SECONDS environment variables
+     *
+     * @param dao:        DAO to use on a cache miss and for the writes
+     * @param table:      table of the entities
+     * @param idOf:       get the id of an entity
+     * @param maxSize:    default maximum number of cached entities
+     * @param ttlSeconds: default time to live of the cached entities
+     * @return cached DAO
+     */
+    public static <T, ID> CachedDAO<T, ID> of(GenericDAO<T, ID> dao, String table, Function<T, ID> idOf,
+                                              int maxSize, int ttlSeconds) {
+        String prefix = "ENTITY_CACHE_" + table.toUpperCase(Locale.ROOT) + "_";
+        return new CachedDAO<>(dao, table, idOf,
+                EnvHelper.getInt(prefix + "SIZE", maxSize),
+                Duration.ofSeconds(EnvHelper.getInt(prefix + "TTL_SECONDS", ttlSeconds)));
+    }
+
+    @Override
+    public T create(T entity) throws ClassNotFoundException, IOException, SQLException {
+        T created = dao.create(entity);
+        // The id may have been cached as unknown
+        invalidate(idOf.apply(created));
+        return created;
+    }
+
+    @Override
+    public T findById(ID id) throws ClassNotFoundException, IOException, SQLException {
+        UnitOfWork uow = UnitOfWork.current();
+        if (uow != null && uow.isTransactional()) {
+            return dao.findById(id);
+        }
+        return cache.get(id, () -> dao.findById(id));
+    }
+
+    @Override
+    public Map<ID, T> findByIds(Collection<ID> ids) throws ClassNotFoundException, IOException, SQLException {
+        UnitOfWork uow = UnitOfWork.current();
+        if (uow != null && uow.isTransactional()) {
+            return dao.findByIds(ids);
+        }
+        // Only the entities missing from the cache are read, with a single query
+        return cache.getAll(ids, dao::findByIds);
+    }
+
+    @Override
+    public List<T> findAll() throws ClassNotFoundException, IOException, SQLException {
+        return dao.findAll();
+    }
+
+    @Override
+    public List<T> findAll(ID after, int limit) throws ClassNotFoundException, IOException, SQLException {
+        return dao.findAll(after, limit);
+    }
+
+    @Override
+    public List<T> findAll(ID after, int limit, FieldSet fields) throws ClassNotFoundException, IOException, SQLException {
+        return dao.findAll(after, limit, fields);
+    }
+
+    @Override
+    public T update(T entity) throws ClassNotFoundException, IOException, SQLException {
+        T updated = dao.update(entity);
+        invalidate(idOf.apply(entity));
+        return updated;
+    }
+
+    @Override
+    public List<T> createAll(List<T> entities) throws ClassNotFoundException, IOException, SQLException {
+        List<T> created = dao.createAll(entities);
+        for (T entity : created) {
+            invalidate(idOf.apply(entity));
+        }
+        return created;
+    }
+
+    @Override
+    public List<T> updateAll(List<T> entities) throws ClassNotFoundException, IOException, SQLException {
+        List<T> updated = dao.updateAll(entities);
+        for (T entity : entities) {
+            invalidate(idOf.apply(entity));
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean delete(ID id) throws ClassNotFoundException, IOException, SQLException {
+        boolean deleted = dao.delete(id);
+        invalidate(id);
+        return deleted;
+    }
+
+    /**
+     * Forget a cached entity (must be called after a write made without this DAO)
+     *
+     * @param id: id of the entity
+     */
+    public void invalidate(ID id) {
+        cache.invalidate(id);
+        // Drop again what may have been read before the write was committed
+        UnitOfWork.afterCommit(() -> cache.invalidate(id));
+    }
+}
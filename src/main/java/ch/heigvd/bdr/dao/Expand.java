@@ -0,0 +1,188 @@
+package ch.heigvd.bdr.dao;
+
+import ch.heigvd.bdr.misc.UnitOfWork;
+import ch.heigvd.bdr.models.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Relations requested with the expand query parameter, e.g. GET /results?expand=goal.team.
+ * The related entities are loaded level by level: the foreign keys of all the entities of a level
+ * are collected and each relation is resolved with a single findByIds (one ANY(?) query), never
+ * once per entity. The loaded entities are kept in the identity map of the request (see
+ * UnitOfWork.findAll), so an entity needed by several relations or requests of a level is read once.
+ */
+public class Expand {
+    /**
+     * Relation of a model that can be expanded
+     *
+     * @param table:  table of the related entities
+     * @param type:   type of the related entities
+     * @param key:    foreign key of an entity (0 when there is no related entity)
+     * @param setter: sets the related entity of an entity
+     * @param dao:    DAO of the related entities
+     */
+    private record Relation<S, T>(String table, Class<T> type, ToIntFunction<S> key, BiConsumer<S, T> setter,
+                                  GenericDAO<T, Integer> dao) {
+    }
+
+    // Relations of each model, by field
+    private static final Map<Class<?>, Map<String, Relation<?, ?>>> RELATIONS = Map.of(
+            Result.class, Map.of(
+                    "goal", new Relation<>("Goal", Goal.class, Result::getGoalId, Result::setGoal, new GoalDAO())),
+            Goal.class, Map.of(
+                    "team", new Relation<>("Team", Team.class, Goal::getTeamId, Goal::setTeam, new TeamDAO()),
+                    "project", new Relation<>("Project", Project.class, Goal::getProjectId, Goal::setProject, new ProjectDAO())),
+            Team.class, Map.of(
+                    "manager", new Relation<>("User", User.class, Team::getManagerId, Team::setManager, new UserDAO())));
+
+    private final Class<?> type;
+    // Expanded relations, with the relations expanded on their entities (sorted, for stable keys)
+    private final Map<String, Expand> relations = new TreeMap<>();
+
+    private Expand(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * Parse the expand query parameter: comma-separated paths of relations, e.g. goal,goal.team
+     *
+     * @param parameter: value of the parameter, null or blank for none
+     * @param type:      type of the sent entities
+     * @throws IllegalArgumentException if a relation does not exist
+     * @return relations to expand
+     */
+    public static Expand parse(String parameter, Class<?> type) {
+        Expand root = new Expand(type);
+        if (parameter == null || parameter.isBlank()) {
+            return root;
+        }
+
+        for (String path : parameter.split(",")) {
+            path = path.trim();
+            if (path.isEmpty()) {
+                continue;
+            }
+            Expand current = root;
+            for (String name : path.split("\\.")) {
+                Relation<?, ?> relation = RELATIONS.getOrDefault(current.type, Map.of()).get(name);
+                if (relation == null) {
+                    throw new IllegalArgumentException("Unknown relation " + path + ", must be one of "
+                            + root.paths() + ".");
+                }
+                current = current.relations.computeIfAbsent(name, k -> new Expand(relation.type()));
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Check if no relation is expanded
+     *
+     * @return true if nothing has to be loaded
+     */
+    public boolean isEmpty() {
+        return relations.isEmpty();
+    }
+
+    /**
+     * Get the fields of the sent entities that are expanded (e.g. to send them when the fields are restricted)
+     *
+     * @return names of the expanded fields
+     */
+    public Set<String> fields() {
+        return relations.keySet();
+    }
+
+    /**
+     * Get the tables the expanded entities are read from (e.g. to compute the version of a list)
+     *
+     * @return names of the tables, without duplicates
+     */
+    public Set<String> tables() {
+        Set<String> tables = new LinkedHashSet<>();
+        relations.forEach((name, child) -> {
+            tables.add(RELATIONS.get(type).get(name).table());
+            tables.addAll(child.tables());
+        });
+        return tables;
+    }
+
+    /**
+     * Load the expanded relations of some entities and set them on the entities
+     *
+     * @param entities: entities of the type given to parse
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void load(Collection<?> entities) throws ClassNotFoundException, SQLException, IOException {
+        if (entities.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Expand> entry : relations.entrySet()) {
+            Collection<?> loaded = load(entities, RELATIONS.get(type).get(entry.getKey()));
+            // Next level, with all the entities of this relation at once
+            entry.getValue().load(loaded);
+        }
+    }
+
+    /**
+     * Load a relation of some entities with a single query
+     *
+     * @param entities: entities to set the relation of
+     * @param relation: relation to load
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return loaded entities
+     */
+    @SuppressWarnings("unchecked")
+    private static <S, T> Collection<T> load(Collection<?> entities, Relation<S, T> relation)
+            throws ClassNotFoundException, SQLException, IOException {
+        Set<Integer> keys = new LinkedHashSet<>();
+        for (Object entity : entities) {
+            int key = relation.key().applyAsInt((S) entity);
+            if (key != 0) {
+                keys.add(key);
+            }
+        }
+
+        Map<Integer, T> loaded = UnitOfWork.findAll(relation.type(), keys, relation.dao()::findByIds);
+        for (Object entity : entities) {
+            T related = loaded.get(relation.key().applyAsInt((S) entity));
+            if (related != null) {
+                relation.setter().accept((S) entity, related);
+            }
+        }
+        return loaded.values();
+    }
+
+    /**
+     * Get all the paths that can be expanded from the type of this expansion
+     *
+     * @return paths of the relations, e.g. [goal, goal.team]
+     */
+    private List<String> paths() {
+        List<String> paths = new ArrayList<>();
+        collectPaths(type, "", paths);
+        return paths;
+    }
+
+    private static void collectPaths(Class<?> type, String prefix, List<String> paths) {
+        new TreeMap<>(RELATIONS.getOrDefault(type, Map.of())).forEach((name, relation) -> {
+            paths.add(prefix + name);
+            collectPaths(relation.type(), prefix + name + ".", paths);
+        });
+    }
+}
@@ -0,0 +1,82 @@
+package ch.heigvd.bdr.dao;
+
+import ch.heigvd.bdr.misc.DatabaseUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports projects, goals, results and tasks with COPY (...) TO STDOUT: Postgres formats
+ * the rows itself (CSV or NDJSON) and they are written to the output as they arrive,
+ * without being mapped to objects nor serialized by the backend.
+ * The columns are named as the JSON fields, so an export can be imported again (see ImportDAO).
+ */
+public class ExportDAO {
+    public static final List<String> ENTITIES = List.of("projects", "goals", "results", "tasks");
+    public static final List<String> FORMATS = List.of("csv", "ndjson");
+
+    // Select list and joins of each entity (aliased by their initial: p, g, r and t)
+    private static final Map<String, String> QUERIES = Map.of(
+            "projects", """
+                    SELECT p.id, p.name, p.description
+                    FROM "Project" p
+                    """,
+            "goals", """
+                    SELECT g.id, g.name, g.description, g.note, g.tag, g.projectId AS "projectId", g.teamId AS "teamId"
+                    FROM "Goal" g
+                    """,
+            "results", """
+                    SELECT r.id, r.title, r.createdAt AS "createdAt", r.endsAt AS "endsAt", r.note, r.tag, r.goalId AS "goalId"
+                    FROM "Result" r
+                    INNER JOIN "Goal" g ON g.id = r.goalId
+                    """,
+            "tasks", """
+                    SELECT t.id, t.title, t.startsAt AS "startsAt", t.done, t.priority, t.deadline, t.note, t.tag,
+                        t.resultId AS "resultId"
+                    FROM "Task" t
+                    INNER JOIN "Result" r ON r.id = t.resultId
+                    INNER JOIN "Goal" g ON g.id = r.goalId
+                    """);
+
+    /**
+     * Export the rows of an entity, ordered by id
+     *
+     * @param entity:    entity to export, see ENTITIES
+     * @param format:    csv (with a header line) or ndjson (one JSON object per line)
+     * @param projectId: only the rows of this project, null for all
+     * @param teamId:    only the rows of the goals of this team, null for all
+     * @param out:       stream to write the rows to
+     * @return number of rows exported
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public long export(String entity, String format, Integer projectId, Integer teamId, OutputStream out)
+            throws ClassNotFoundException, IOException, SQLException {
+        // COPY does not take parameters: only integers are written in the query
+        List<String> conditions = new ArrayList<>();
+        if (projectId != null) {
+            conditions.add(entity.equals("projects") ? "p.id = " + projectId : "g.projectId = " + projectId);
+        }
+        if (teamId != null) {
+            conditions.add(entity.equals("projects")
+                    ? "EXISTS (SELECT 1 FROM \"Goal\" g WHERE g.projectId = p.id AND g.teamId = " + teamId + ")"
+                    : "g.teamId = " + teamId);
+        }
+        String query = QUERIES.get(entity)
+                + (conditions.isEmpty() ? "" : "WHERE " + String.join(" AND ", conditions) + "\n")
+                + "ORDER BY " + entity.charAt(0) + ".id";
+
+        if (format.equals("csv")) {
+            return DatabaseUtil.copyOut("COPY (" + query + ") TO STDOUT WITH (FORMAT csv, HEADER)", out);
+        }
+        // The CSV format does not escape backslashes (the text format would), and the JSON
+        // never contains these control characters, so each line is written as built
+        return DatabaseUtil.copyOut("COPY (SELECT row_to_json(x) FROM (" + query + ") x) TO STDOUT "
+                + "WITH (FORMAT csv, QUOTE E'\\x01', DELIMITER E'\\x02')", out);
+    }
+}
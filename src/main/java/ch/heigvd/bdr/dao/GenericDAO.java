@@ -1,8 +1,14 @@
 package ch.heigvd.bdr.dao;
 
+import ch.heigvd.bdr.misc.FieldSet;
+
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Generic interface for all DAOs
@@ -10,14 +16,94 @@ import java.util.List;
  * @param <T>:  entity
  * @param <ID>: id
  */
-interface GenericDAO<T, ID> {
+public interface GenericDAO<T, ID> {
     T create(T entity) throws ClassNotFoundException, IOException, SQLException;
 
     T findById(ID id) throws ClassNotFoundException, IOException, SQLException;
 
+    /**
+     * Find several entities with a single query
+     *
+     * @param ids: ids of the entities
+     * @return entities found by id, in the order of the ids (the missing ones are omitted)
+     */
+    Map<ID, T> findByIds(Collection<ID> ids) throws ClassNotFoundException, IOException, SQLException;
+
     List<T> findAll() throws ClassNotFoundException, IOException, SQLException;
 
+    /**
+     * Get a page of entities, ordered by id (keyset pagination)
+     *
+     * @param after: id after which the page starts, null for the first page
+     * @param limit: maximum number of entities
+     * @return entities of the page
+     */
+    List<T> findAll(ID after, int limit) throws ClassNotFoundException, IOException, SQLException;
+
+    /**
+     * Get a page of entities, reading only the requested fields (see FieldSet).
+     * By default all the fields are read, the others are then only removed from the JSON.
+     *
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of entities
+     * @param fields: requested fields
+     * @return entities of the page
+     */
+    default List<T> findAll(ID after, int limit, FieldSet fields) throws ClassNotFoundException, IOException, SQLException {
+        return findAll(after, limit);
+    }
+
     T update(T entity) throws ClassNotFoundException, IOException, SQLException;
 
+    /**
+     * Create several entities. By default they are created one by one, the DAOs
+     * of the tables written in bulk batch them (multi-row inserts).
+     * Must be called in a transaction for the entities to be created all or none.
+     *
+     * @param entities: entities to insert
+     * @return inserted entities (with their ids), in the same order
+     */
+    default List<T> createAll(List<T> entities) throws ClassNotFoundException, IOException, SQLException {
+        List<T> created = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            created.add(create(entity));
+        }
+        return created;
+    }
+
+    /**
+     * Update several entities. By default they are updated one by one, the DAOs
+     * of the tables written in bulk batch them (JDBC batch).
+     * Must be called in a transaction for the entities to be updated all or none.
+     *
+     * @param entities: entities to update with new values
+     * @return updated entities, in the same order (null for the ones that do not exist)
+     */
+    default List<T> updateAll(List<T> entities) throws ClassNotFoundException, IOException, SQLException {
+        List<T> updated = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            updated.add(update(entity));
+        }
+        return updated;
+    }
+
     boolean delete(ID id) throws ClassNotFoundException, IOException, SQLException;
+
+    /**
+     * Order the entities found by findByIds as their ids were requested
+     *
+     * @param ids:   requested ids
+     * @param found: entities found, by id
+     * @return entities found, in the order of the ids
+     */
+    static <T, ID> Map<ID, T> inOrder(Collection<ID> ids, Map<ID, T> found) {
+        Map<ID, T> ordered = new LinkedHashMap<>();
+        for (ID id : ids) {
+            T entity = found.get(id);
+            if (entity != null) {
+                ordered.put(id, entity);
+            }
+        }
+        return ordered;
+    }
 }
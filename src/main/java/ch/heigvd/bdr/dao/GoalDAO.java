@@ -1,12 +1,19 @@
 package ch.heigvd.bdr.dao;
 
+import ch.heigvd.bdr.misc.CollectionVersion;
 import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.*;
 
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class GoalDAO implements GenericDAO<Goal, Integer> {
     private static final String GOAL_QUERY = """
@@ -70,16 +77,66 @@ public class GoalDAO implements GenericDAO<Goal, Integer> {
             pstmt.setInt(5, goal.getProjectId());
             pstmt.setInt(6, goal.getTeamId());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Goal");
 
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
                 if (rs.next()) {
                     goal.setId(rs.getInt(1));
                 }
             }
+            UnitOfWork.evict(Goal.class, goal.getId());
+            UserListCache.invalidateTeams(goal.getTeamId());
             return goal;
         }
     }
 
+    /**
+     * Create several goals with multi-row inserts (DB_BATCH_SIZE rows per statement)
+     *
+     * @param goals: goals to insert
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return inserted goals, in the same order
+     */
+    @Override
+    public List<Goal> createAll(List<Goal> goals) throws ClassNotFoundException, SQLException, IOException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            for (int start = 0; start < goals.size(); start += DatabaseUtil.BATCH_SIZE) {
+                List<Goal> chunk = goals.subList(start, Math.min(start + DatabaseUtil.BATCH_SIZE, goals.size()));
+                String query = "INSERT INTO \"Goal\" (name, description, note, tag, projectId, teamId) VALUES "
+                        + DatabaseUtil.valuesList("(?, ?, ?, ?, ?, ?)", chunk.size()) + " RETURNING id";
+                try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                    int i = 1;
+                    for (Goal goal : chunk) {
+                        pstmt.setString(i++, goal.getName());
+                        pstmt.setString(i++, goal.getDescription());
+                        pstmt.setString(i++, goal.getNote());
+                        pstmt.setString(i++, goal.getTag());
+                        pstmt.setInt(i++, goal.getProjectId());
+                        pstmt.setInt(i++, goal.getTeamId());
+                    }
+
+                    // The ids are drawn from the sequence in the order of the rows
+                    List<Integer> ids = new ArrayList<>(chunk.size());
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getInt(1));
+                        }
+                    }
+                    Collections.sort(ids);
+                    for (int j = 0; j < chunk.size(); j++) {
+                        chunk.get(j).setId(ids.get(j));
+                        UnitOfWork.evict(Goal.class, ids.get(j));
+                    }
+                }
+            }
+        }
+        CollectionVersion.bumpAfterCommit("Goal");
+        UserListCache.invalidateTeams(goals.stream().map(Goal::getTeamId).toList());
+        return goals;
+    }
+
     /**
      * Find a goal by its id
      *
@@ -91,6 +148,78 @@ public class GoalDAO implements GenericDAO<Goal, Integer> {
      */
     @Override
     public Goal findById(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        return UnitOfWork.find(Goal.class, id, () -> loadById(id));
+    }
+
+    /**
+     * Find several goals with a single query
+     *
+     * @param ids: ids of the goals
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return goals found by id, in the order of the ids
+     */
+    @Override
+    public Map<Integer, Goal> findByIds(Collection<Integer> ids) throws ClassNotFoundException, SQLException, IOException {
+        Map<Integer, Goal> goals = new HashMap<>();
+        if (ids.isEmpty()) {
+            return goals;
+        }
+        String query = GOAL_QUERY + " WHERE g.id = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Goal goal = mapGoal(rs);
+                    goals.put(goal.getId(), goal);
+                }
+            }
+        }
+        return GenericDAO.inOrder(ids, goals);
+    }
+
+    /**
+     * Find the goals having some names with a single query (the name is unique)
+     *
+     * @param names: names to look for
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return ids of the goals found, by name
+     */
+    public Map<String, Integer> findIdsByNames(Collection<String> names)
+            throws ClassNotFoundException, SQLException, IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        if (names.isEmpty()) {
+            return ids;
+        }
+        String query = "SELECT id, name FROM \"Goal\" WHERE name = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("varchar", names.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.put(rs.getString("name"), rs.getInt("id"));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Load a goal from the database
+     *
+     * @param id: id to search for
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return goal found
+     */
+    private Goal loadById(Integer id) throws ClassNotFoundException, SQLException, IOException {
         String query = GOAL_QUERY + " WHERE g.id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
@@ -127,6 +256,34 @@ public class GoalDAO implements GenericDAO<Goal, Integer> {
         }
     }
 
+    /**
+     * Get a page of goals, ordered by id
+     *
+     * @param after: id after which the page starts, null for the first page
+     * @param limit: maximum number of goals
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return goals of the page
+     */
+    @Override
+    public List<Goal> findAll(Integer after, int limit) throws ClassNotFoundException, SQLException, IOException {
+        List<Goal> goals = new ArrayList<>();
+        String query = GOAL_QUERY + " WHERE g.id > ? ORDER BY g.id LIMIT ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, after == null ? 0 : after);
+            pstmt.setInt(2, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    goals.add(mapGoal(rs));
+                }
+            }
+            return goals;
+        }
+    }
+
     /**
      * Update a goal
      *
@@ -139,6 +296,8 @@ public class GoalDAO implements GenericDAO<Goal, Integer> {
     @Override
     public Goal update(Goal goal) throws ClassNotFoundException, SQLException, IOException {
         System.out.println(goal.getTeamId());
+        // The goal may move to another team, the members of both see the change
+        Integer previousTeamId = UserListCache.teamOfGoal(goal.getId());
         String query = "UPDATE \"Goal\" SET name = ?, description = ?, note = ?, tag = ?, projectId = ?, teamId = ? WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
@@ -150,10 +309,61 @@ public class GoalDAO implements GenericDAO<Goal, Integer> {
             pstmt.setInt(6, goal.getTeamId());
             pstmt.setInt(7, goal.getId());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Goal");
+            UnitOfWork.evict(Goal.class, goal.getId());
+            UserListCache.invalidateTeams(previousTeamId, goal.getTeamId());
             return goal;
         }
     }
 
+    /**
+     * Update several goals with JDBC batches (DB_BATCH_SIZE statements per round trip)
+     *
+     * @param goals: goals to update with new values
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return updated goals, in the same order (null for the ones that do not exist)
+     */
+    @Override
+    public List<Goal> updateAll(List<Goal> goals) throws ClassNotFoundException, SQLException, IOException {
+        // The goals may move to other teams, the members of all of them see the change
+        List<Integer> teamIds = new ArrayList<>(UserListCache.teamsOfGoals(goals.stream().map(Goal::getId).toList()));
+        String query = "UPDATE \"Goal\" SET name = ?, description = ?, note = ?, tag = ?, projectId = ?, teamId = ? WHERE id = ?";
+        List<Goal> updated = new ArrayList<>(goals.size());
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            for (int start = 0; start < goals.size(); start += DatabaseUtil.BATCH_SIZE) {
+                List<Goal> chunk = goals.subList(start, Math.min(start + DatabaseUtil.BATCH_SIZE, goals.size()));
+                for (Goal goal : chunk) {
+                    pstmt.setString(1, goal.getName());
+                    pstmt.setString(2, goal.getDescription());
+                    pstmt.setString(3, goal.getNote());
+                    pstmt.setString(4, goal.getTag());
+                    pstmt.setInt(5, goal.getProjectId());
+                    pstmt.setInt(6, goal.getTeamId());
+                    pstmt.setInt(7, goal.getId());
+                    pstmt.addBatch();
+                }
+
+                int[] counts;
+                try {
+                    counts = pstmt.executeBatch();
+                } catch (BatchUpdateException e) {
+                    throw DatabaseUtil.batchFailure(e);
+                }
+                for (int j = 0; j < chunk.size(); j++) {
+                    updated.add(counts[j] == 0 ? null : chunk.get(j));
+                    UnitOfWork.evict(Goal.class, chunk.get(j).getId());
+                }
+            }
+        }
+        goals.forEach(goal -> teamIds.add(goal.getTeamId()));
+        CollectionVersion.bumpAfterCommit("Goal");
+        UserListCache.invalidateTeams(teamIds);
+        return updated;
+    }
+
     /**
      * Delete a goal
      *
@@ -165,36 +375,66 @@ public class GoalDAO implements GenericDAO<Goal, Integer> {
      */
     @Override
     public boolean delete(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        Integer teamId = UserListCache.teamOfGoal(id);
         String query = "DELETE FROM \"Goal\" WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, id);
-            return pstmt.executeUpdate() > 0;
+            UnitOfWork.evict(Goal.class, id);
+            boolean deleted = pstmt.executeUpdate() > 0;
+            CollectionVersion.bumpAfterCommit("Goal", "Result", "Task");
+            UserListCache.invalidateTeams(teamId);
+            return deleted;
         }
     }
 
     /**
-     * Find goals related to an user's id
+     * Find goals related to an user's id (cached, see UserListCache)
+     *
+     * @param userId: user id to use for the research
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of entities
+     * @param fields: fields to read
+     * @return goals of the teams of the user (not modifiable)
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    public List<Goal> getGoalsByUserID(int userId, Integer after, int limit, FieldSet fields)
+            throws ClassNotFoundException, SQLException, IOException {
+        return UserListCache.goals.get(userId, after + ":" + limit + ":" + fields.key(),
+                () -> loadGoalsByUserID(userId, after, limit, fields));
+    }
+
+    /**
+     * Load the goals related to an user's id from the database
      *
      * @param userId: user id to use for the research
-     * @return
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of entities
+     * @param fields: fields to read
+     * @return goals of the teams of the user
      * @throws ClassNotFoundException
      * @throws SQLException
      * @throws IOException
      */
-    public List<Goal> getGoalsByUserID(int userId) throws ClassNotFoundException, SQLException, IOException {
+    private List<Goal> loadGoalsByUserID(int userId, Integer after, int limit, FieldSet fields) throws ClassNotFoundException, SQLException, IOException {
         List<Goal> goals = new ArrayList<>();
         String query = """
-                  SELECT g.*
+                  SELECT %s
                   FROM "User_Team" ut
                   INNER JOIN "Team" t ON t.id = ut.teamid
                   INNER JOIN "Goal" g ON g.teamid  = t.id
-                  WHERE ut.userid = ?;
-                """;
+                  WHERE ut.userid = ? AND g.id > ?
+                  ORDER BY g.id
+                  LIMIT ?
+                """.formatted(fields.select("g"));
 
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, userId);
+            pstmt.setInt(2, after == null ? 0 : after);
+            pstmt.setInt(3, limit);
 
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -0,0 +1,539 @@
+package ch.heigvd.bdr.dao;
+
+import ch.heigvd.bdr.misc.ChangeNotifier;
+import ch.heigvd.bdr.misc.CollectionVersion;
+import ch.heigvd.bdr.misc.CopyWriter;
+import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.EnvHelper;
+import ch.heigvd.bdr.misc.ImportReader;
+import ch.heigvd.bdr.models.ImportReport;
+import ch.heigvd.bdr.models.TaskDeadline;
+import ch.heigvd.bdr.models.TaskPriority;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Imports goals, results and tasks in bulk from a CSV or NDJSON file. The rows are read
+ * by chunks of IMPORT_CHUNK_SIZE, validated in Java (with a single query per chunk for
+ * their parents), copied into a temporary staging table with COPY, then merged into the
+ * table with a single INSERT ... SELECT. The rows that cannot be imported are reported
+ * with their line and the others are imported.
+ * <p>
+ * Must be called in a transaction: the staging table is dropped on commit, and the row
+ * triggers checking and notifying each row are skipped (the okr.bulk_import setting,
+ * see db.sql), their checks being made on the whole staging table instead.
+ */
+public class ImportDAO {
+    private static final int CHUNK_SIZE = EnvHelper.getInt("IMPORT_CHUNK_SIZE", 5_000);
+    private static final int MAX_TEXT_LENGTH = 10_000;
+
+    /**
+     * Parses and validates the rows of a chunk
+     */
+    @FunctionalInterface
+    private interface ChunkParser {
+        /**
+         * @param conn:   connection of the import
+         * @param rows:   rows of the chunk
+         * @param report: report of the import, completed with the rejected rows
+         * @return values of the accepted rows, in the order of the COPY statement (line first)
+         */
+        List<Object[]> parse(Connection conn, List<ImportReader.Row> rows, ImportReport report)
+                throws ClassNotFoundException, SQLException, IOException;
+    }
+
+    /**
+     * Import tasks. Columns: title, startsAt, resultId (required), done, priority, deadline, note, tag.
+     *
+     * @param reader: rows of the file
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return report of the import
+     */
+    public ImportReport importTasks(ImportReader reader) throws ClassNotFoundException, SQLException, IOException {
+        ImportReport report = new ImportReport();
+        // Creation and end dates of the results, by id (null for the missing ones)
+        Map<Integer, Timestamp[]> results = new HashMap<>();
+
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            begin(conn, """
+                    CREATE TEMP TABLE "Task_Import" (
+                        line INT NOT NULL,
+                        title VARCHAR(150),
+                        startsAt TIMESTAMP,
+                        done BOOLEAN,
+                        priority "TaskPriority",
+                        deadline "TaskDeadline",
+                        note TEXT,
+                        tag TEXT,
+                        resultId INT
+                    ) ON COMMIT DROP
+                    """);
+            stage(conn, reader, report, "Task_Import", "line, title, startsAt, done, priority, deadline, note, tag, resultId",
+                    (c, rows, r) -> parseTasks(c, rows, r, results));
+
+            // Checks of the constraints and of check_task_dates_trigger, on the whole file
+            reject(conn, "Task_Import", """
+                    SELECT i.line, CASE
+                        WHEN r.id IS NULL THEN 'Result ' || i.resultId || ' not found.'
+                        WHEN i.startsAt < r.createdAt OR i.startsAt > r.endsAt
+                            THEN '''startsAt'' must be between the creation and the end of result ' || i.resultId || '.'
+                        ELSE 'A task already starts at ' || i.startsAt || '.'
+                    END
+                    FROM "Task_Import" i
+                    LEFT JOIN "Result" r ON r.id = i.resultId
+                    LEFT JOIN "Task" t ON t.startsAt = i.startsAt
+                    WHERE r.id IS NULL OR i.startsAt < r.createdAt OR i.startsAt > r.endsAt OR t.id IS NOT NULL
+                    """, report);
+            // Once the rows above are removed, so a rejected row does not keep the date from a valid one
+            reject(conn, "Task_Import", """
+                    SELECT line, 'Another row starts at ' || startsAt || '.'
+                    FROM (
+                        SELECT line, startsAt, row_number() OVER (PARTITION BY startsAt ORDER BY line) AS rank
+                        FROM "Task_Import"
+                    ) i
+                    WHERE rank > 1
+                    """, report);
+
+            report.setImported(merge(conn, """
+                    INSERT INTO "Task" (title, startsAt, done, priority, deadline, note, tag, resultId)
+                    SELECT title, startsAt, done, priority, deadline, note, tag, resultId
+                    FROM "Task_Import"
+                    ORDER BY line
+                    """));
+            end(conn, "Task", """
+                    SELECT DISTINCT g.teamId
+                    FROM (SELECT DISTINCT resultId FROM "Task_Import") i
+                    INNER JOIN "Result" r ON r.id = i.resultId
+                    INNER JOIN "Goal" g ON g.id = r.goalId
+                    """);
+        }
+        return sorted(report);
+    }
+
+    /**
+     * Import results. Columns: title, goalId (required), createdAt (now by default), endsAt, note, tag.
+     *
+     * @param reader: rows of the file
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return report of the import
+     */
+    public ImportReport importResults(ImportReader reader) throws ClassNotFoundException, SQLException, IOException {
+        ImportReport report = new ImportReport();
+        // Existence of the goals, by id
+        Map<Integer, Boolean> goals = new HashMap<>();
+
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            begin(conn, """
+                    CREATE TEMP TABLE "Result_Import" (
+                        line INT NOT NULL,
+                        title VARCHAR(150),
+                        createdAt TIMESTAMP,
+                        endsAt TIMESTAMP,
+                        note TEXT,
+                        tag TEXT,
+                        goalId INT
+                    ) ON COMMIT DROP
+                    """);
+            stage(conn, reader, report, "Result_Import", "line, title, createdAt, endsAt, note, tag, goalId",
+                    (c, rows, r) -> parseResults(c, rows, r, goals));
+
+            reject(conn, "Result_Import", """
+                    SELECT i.line, CASE
+                        WHEN g.id IS NULL THEN 'Goal ' || i.goalId || ' not found.'
+                        ELSE '''endsAt'' must be after ''createdAt''.'
+                    END
+                    FROM "Result_Import" i
+                    LEFT JOIN "Goal" g ON g.id = i.goalId
+                    WHERE g.id IS NULL OR i.endsAt <= COALESCE(i.createdAt, NOW())
+                    """, report);
+
+            report.setImported(merge(conn, """
+                    INSERT INTO "Result" (title, createdAt, endsAt, note, tag, goalId)
+                    SELECT title, COALESCE(createdAt, NOW()), endsAt, note, tag, goalId
+                    FROM "Result_Import"
+                    ORDER BY line
+                    """));
+            end(conn, "Result", """
+                    SELECT DISTINCT g.teamId
+                    FROM (SELECT DISTINCT goalId FROM "Result_Import") i
+                    INNER JOIN "Goal" g ON g.id = i.goalId
+                    """);
+        }
+        return sorted(report);
+    }
+
+    /**
+     * Import goals. Columns: name, projectId, teamId (required), description, note, tag.
+     * The user must belong to the teams of the goals.
+     *
+     * @param reader: rows of the file
+     * @param userId: id of the user importing the goals
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return report of the import
+     */
+    public ImportReport importGoals(ImportReader reader, int userId) throws ClassNotFoundException, SQLException, IOException {
+        ImportReport report = new ImportReport();
+        // Existence of the projects, and rights of the user on the teams, by id
+        Map<Integer, Boolean> projects = new HashMap<>();
+        Map<Integer, Boolean> teams = new HashMap<>();
+
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            begin(conn, """
+                    CREATE TEMP TABLE "Goal_Import" (
+                        line INT NOT NULL,
+                        name VARCHAR(100),
+                        description TEXT,
+                        note TEXT,
+                        tag TEXT,
+                        projectId INT,
+                        teamId INT
+                    ) ON COMMIT DROP
+                    """);
+            stage(conn, reader, report, "Goal_Import", "line, name, description, note, tag, projectId, teamId",
+                    (c, rows, r) -> parseGoals(c, rows, r, userId, projects, teams));
+
+            reject(conn, "Goal_Import", """
+                    SELECT i.line, CASE
+                        WHEN p.id IS NULL THEN 'Project ' || i.projectId || ' not found.'
+                        WHEN t.id IS NULL THEN 'Team ' || i.teamId || ' not found.'
+                        ELSE 'A goal is already named ' || i.name || '.'
+                    END
+                    FROM "Goal_Import" i
+                    LEFT JOIN "Project" p ON p.id = i.projectId
+                    LEFT JOIN "Team" t ON t.id = i.teamId
+                    LEFT JOIN "Goal" g ON g.name = i.name
+                    WHERE p.id IS NULL OR t.id IS NULL OR g.id IS NOT NULL
+                    """, report);
+            // Once the rows above are removed, so a rejected row does not keep the name from a valid one
+            reject(conn, "Goal_Import", """
+                    SELECT line, 'Another row is named ' || name || '.'
+                    FROM (
+                        SELECT line, name, row_number() OVER (PARTITION BY name ORDER BY line) AS rank
+                        FROM "Goal_Import"
+                    ) i
+                    WHERE rank > 1
+                    """, report);
+
+            report.setImported(merge(conn, """
+                    INSERT INTO "Goal" (name, description, note, tag, projectId, teamId)
+                    SELECT name, description, note, tag, projectId, teamId
+                    FROM "Goal_Import"
+                    ORDER BY line
+                    """));
+            end(conn, "Goal", "SELECT DISTINCT teamId FROM \"Goal_Import\"");
+        }
+        return sorted(report);
+    }
+
+    private List<Object[]> parseTasks(Connection conn, List<ImportReader.Row> rows, ImportReport report,
+                                      Map<Integer, Timestamp[]> results) throws SQLException {
+        List<Object[]> parsed = new ArrayList<>(rows.size());
+        for (ImportReader.Row row : rows) {
+            parse(row, report, parsed, () -> new Object[]{
+                    row.line(),
+                    row.getString("title", 150, true),
+                    row.getTimestamp("startsAt", true),
+                    row.getBoolean("done", false),
+                    row.getEnum("priority", TaskPriority.class, TaskPriority.MEDIUM),
+                    row.getEnum("deadline", TaskDeadline.class, TaskDeadline.THREE_MONTHS),
+                    row.getString("note", MAX_TEXT_LENGTH, false),
+                    row.getString("tag", MAX_TEXT_LENGTH, false),
+                    row.getInt("resultId", true)
+            });
+        }
+
+        Set<Integer> missing = new HashSet<>();
+        for (Object[] values : parsed) {
+            if (!results.containsKey((Integer) values[8])) {
+                missing.add((Integer) values[8]);
+            }
+        }
+        if (!missing.isEmpty()) {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT id, createdAt, endsAt FROM \"Result\" WHERE id = ANY(?)")) {
+                pstmt.setArray(1, conn.createArrayOf("integer", missing.toArray()));
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        results.put(rs.getInt("id"), new Timestamp[]{rs.getTimestamp("createdAt"), rs.getTimestamp("endsAt")});
+                    }
+                }
+            }
+            missing.forEach(id -> results.putIfAbsent(id, null));
+        }
+
+        List<Object[]> accepted = new ArrayList<>(parsed.size());
+        for (Object[] values : parsed) {
+            Timestamp startsAt = (Timestamp) values[2];
+            Timestamp[] result = results.get((Integer) values[8]);
+            if (result == null) {
+                report.reject((Integer) values[0], "Result " + values[8] + " not found.");
+            } else if (startsAt.before(result[0]) || (result[1] != null && startsAt.after(result[1]))) {
+                report.reject((Integer) values[0], "'startsAt' must be between the creation and the end of result " + values[8] + ".");
+            } else {
+                accepted.add(values);
+            }
+        }
+        return accepted;
+    }
+
+    private List<Object[]> parseResults(Connection conn, List<ImportReader.Row> rows, ImportReport report,
+                                        Map<Integer, Boolean> goals) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Object[]> parsed = new ArrayList<>(rows.size());
+        for (ImportReader.Row row : rows) {
+            parse(row, report, parsed, () -> {
+                Timestamp createdAt = row.getTimestamp("createdAt", false);
+                Timestamp endsAt = row.getTimestamp("endsAt", false);
+                if (endsAt != null && !endsAt.after(createdAt == null ? now : createdAt)) {
+                    throw new IllegalArgumentException("'endsAt' must be after 'createdAt'.");
+                }
+                return new Object[]{
+                        row.line(),
+                        row.getString("title", 150, true),
+                        createdAt,
+                        endsAt,
+                        row.getString("note", MAX_TEXT_LENGTH, false),
+                        row.getString("tag", MAX_TEXT_LENGTH, false),
+                        row.getInt("goalId", true)
+                };
+            });
+        }
+
+        loadExisting(conn, "SELECT id FROM \"Goal\" WHERE id = ANY(?)", parsed, 6, goals);
+        return accepted(parsed, report, 6, goals, "Goal %d not found.");
+    }
+
+    private List<Object[]> parseGoals(Connection conn, List<ImportReader.Row> rows, ImportReport report, int userId,
+                                      Map<Integer, Boolean> projects, Map<Integer, Boolean> teams) throws SQLException {
+        List<Object[]> parsed = new ArrayList<>(rows.size());
+        for (ImportReader.Row row : rows) {
+            parse(row, report, parsed, () -> new Object[]{
+                    row.line(),
+                    row.getString("name", 100, true),
+                    row.getString("description", MAX_TEXT_LENGTH, false),
+                    row.getString("note", MAX_TEXT_LENGTH, false),
+                    row.getString("tag", MAX_TEXT_LENGTH, false),
+                    row.getInt("projectId", true),
+                    row.getInt("teamId", true)
+            });
+        }
+
+        loadExisting(conn, "SELECT id FROM \"Project\" WHERE id = ANY(?)", parsed, 5, projects);
+        loadExisting(conn, "SELECT teamId FROM \"User_Team\" WHERE teamId = ANY(?) AND userId = ?", parsed, 6, teams, userId);
+        return accepted(accepted(parsed, report, 5, projects, "Project %d not found."),
+                report, 6, teams, "Forbidden: team %d is not a team of the user.");
+    }
+
+    /**
+     * Parse a row, or reject it if it is invalid
+     *
+     * @param row:    row to parse
+     * @param report: report of the import
+     * @param parsed: values of the parsed rows, completed with the row
+     * @param parser: reads the values of the row, throws IllegalArgumentException if one is invalid
+     */
+    private static void parse(ImportReader.Row row, ImportReport report, List<Object[]> parsed,
+                              Supplier<Object[]> parser) {
+        if (row.error() != null) {
+            report.reject(row.line(), row.error());
+            return;
+        }
+        try {
+            parsed.add(parser.get());
+        } catch (IllegalArgumentException e) {
+            report.reject(row.line(), e.getMessage());
+        }
+    }
+
+    /**
+     * Check which parents of the parsed rows exist, with a single query for the ones not checked yet
+     *
+     * @param conn:       connection of the import
+     * @param query:      query selecting the ids that exist among an array of ids
+     * @param parsed:     values of the parsed rows
+     * @param column:     index of the id of the parent in the values
+     * @param known:      existence of the parents already checked, completed with the new ones
+     * @param parameters: other parameters of the query, after the array of ids
+     * @throws SQLException
+     */
+    private static void loadExisting(Connection conn, String query, List<Object[]> parsed, int column,
+                                     Map<Integer, Boolean> known, Object... parameters) throws SQLException {
+        Set<Integer> missing = new HashSet<>();
+        for (Object[] values : parsed) {
+            if (!known.containsKey((Integer) values[column])) {
+                missing.add((Integer) values[column]);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", missing.toArray()));
+            for (int i = 0; i < parameters.length; i++) {
+                pstmt.setObject(i + 2, parameters[i]);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    known.put(rs.getInt(1), true);
+                }
+            }
+        }
+        missing.forEach(id -> known.putIfAbsent(id, false));
+    }
+
+    /**
+     * Keep the parsed rows whose parent exists, and reject the others
+     *
+     * @param parsed:  values of the parsed rows
+     * @param report:  report of the import
+     * @param column:  index of the id of the parent in the values
+     * @param known:   existence of the parents
+     * @param message: error of the rejected rows, formatted with the id of the parent
+     * @return values of the accepted rows
+     */
+    private static List<Object[]> accepted(List<Object[]> parsed, ImportReport report, int column,
+                                           Map<Integer, Boolean> known, String message) {
+        List<Object[]> accepted = new ArrayList<>(parsed.size());
+        for (Object[] values : parsed) {
+            if (known.get((Integer) values[column])) {
+                accepted.add(values);
+            } else {
+                report.reject((Integer) values[0], message.formatted((Integer) values[column]));
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Create the staging table and skip the row triggers until the end of the transaction
+     *
+     * @param conn:    connection of the import
+     * @param staging: CREATE TEMP TABLE statement of the staging table
+     * @throws SQLException
+     */
+    private static void begin(Connection conn, String staging) throws SQLException {
+        if (conn.getAutoCommit()) {
+            throw new SQLException("An import must run in a transaction.");
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET LOCAL okr.bulk_import = 'on'");
+            stmt.execute(staging);
+        }
+    }
+
+    /**
+     * Read the file by chunks, and copy the valid rows into the staging table
+     *
+     * @param conn:    connection of the import
+     * @param reader:  rows of the file
+     * @param report:  report of the import
+     * @param staging: name of the staging table
+     * @param columns: columns of the staging table, in the order of the values of the rows
+     * @param parser:  parses and validates the rows of a chunk
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private static void stage(Connection conn, ImportReader reader, ImportReport report, String staging, String columns,
+                              ChunkParser parser) throws ClassNotFoundException, SQLException, IOException {
+        String copy = "COPY \"" + staging + "\" (" + columns + ") FROM STDIN";
+        List<ImportReader.Row> rows;
+        while (!(rows = reader.next(CHUNK_SIZE)).isEmpty()) {
+            // The parents are read between two COPY, the connection cannot run queries during one
+            List<Object[]> accepted = parser.parse(conn, rows, report);
+            if (accepted.isEmpty()) {
+                continue;
+            }
+            try (CopyWriter writer = CopyWriter.open(conn, copy)) {
+                for (Object[] values : accepted) {
+                    writer.writeRow(values);
+                }
+                writer.finish();
+            }
+        }
+
+        // Temporary tables are not analyzed automatically, the planner would misjudge their size
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ANALYZE \"" + staging + "\"");
+        }
+    }
+
+    /**
+     * Remove the staged rows that would violate a constraint, and report them
+     *
+     * @param conn:     connection of the import
+     * @param staging:  name of the staging table
+     * @param rejected: query selecting the line and the error of the rows to reject
+     * @param report:   report of the import
+     * @throws SQLException
+     */
+    private static void reject(Connection conn, String staging, String rejected, ImportReport report)
+            throws SQLException {
+        String query = "WITH rejected (line, message) AS (" + rejected + ") "
+                + "DELETE FROM \"" + staging + "\" s USING rejected r WHERE s.line = r.line RETURNING r.line, r.message";
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            while (rs.next()) {
+                report.reject(rs.getInt(1), rs.getString(2));
+            }
+        }
+    }
+
+    /**
+     * Insert the staged rows into their table
+     *
+     * @param conn:  connection of the import
+     * @param merge: INSERT ... SELECT statement
+     * @return number of rows inserted
+     * @throws SQLException
+     */
+    private static long merge(Connection conn, String merge) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            return stmt.executeLargeUpdate(merge);
+        }
+    }
+
+    /**
+     * Invalidate the lists of the teams that see the imported rows, on this instance
+     * and (once committed) on the others, with a single notification
+     *
+     * @param conn:  connection of the import
+     * @param table: table of the imported rows
+     * @param teams: query selecting the teams of the staged rows
+     * @throws SQLException
+     */
+    private static void end(Connection conn, String table, String teams) throws SQLException {
+        List<Integer> teamIds = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(teams)) {
+            while (rs.next()) {
+                int teamId = rs.getInt(1);
+                if (!rs.wasNull()) {
+                    teamIds.add(teamId);
+                }
+            }
+        }
+        UserListCache.invalidateTeams(teamIds);
+        CollectionVersion.bumpAfterCommit(table);
+        ChangeNotifier.notifyBulk(conn, table, "INSERT", teamIds);
+    }
+
+    private static ImportReport sorted(ImportReport report) {
+        report.getErrors().sort(Comparator.comparingInt(ImportReport.RowError::line));
+        return report;
+    }
+}
@@ -1,12 +1,19 @@
 package ch.heigvd.bdr.dao;
 
+import ch.heigvd.bdr.misc.CollectionVersion;
 import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.SqlConsumer;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.*;
 
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ProjectDAO implements GenericDAO<Project, Integer> {
 
@@ -43,12 +50,14 @@ public class ProjectDAO implements GenericDAO<Project, Integer> {
             pstmt.setString(1, project.getName());
             pstmt.setString(2, project.getDescription());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Project");
 
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
                 if (rs.next()) {
                     project.setId(rs.getInt(1));
                 }
             }
+            UnitOfWork.evict(Project.class, project.getId());
             return project;
         }
     }
@@ -64,6 +73,49 @@ public class ProjectDAO implements GenericDAO<Project, Integer> {
      */
     @Override
     public Project findById(Integer id) throws SQLException, IOException, ClassNotFoundException {
+        return UnitOfWork.find(Project.class, id, () -> loadById(id));
+    }
+
+    /**
+     * Find several projects with a single query
+     *
+     * @param ids: ids of the projects
+     * @throws SQLException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @return projects found by id, in the order of the ids
+     */
+    @Override
+    public Map<Integer, Project> findByIds(Collection<Integer> ids) throws SQLException, IOException, ClassNotFoundException {
+        Map<Integer, Project> projects = new HashMap<>();
+        if (ids.isEmpty()) {
+            return projects;
+        }
+        String query = "SELECT * FROM \"Project\" WHERE id = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Project project = mapToProject(rs);
+                    projects.put(project.getId(), project);
+                }
+            }
+        }
+        return GenericDAO.inOrder(ids, projects);
+    }
+
+    /**
+     * Load a project from the database
+     *
+     * @param id: id to search for
+     * @throws SQLException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @return: found project
+     */
+    private Project loadById(Integer id) throws SQLException, IOException, ClassNotFoundException {
         String query = "SELECT * FROM \"Project\" WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
@@ -103,6 +155,170 @@ public class ProjectDAO implements GenericDAO<Project, Integer> {
         }
     }
 
+    /**
+     * Get a page of projects, ordered by id
+     *
+     * @param after: id after which the page starts, null for the first page
+     * @param limit: maximum number of projects
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return projects of the page
+     */
+    @Override
+    public List<Project> findAll(Integer after, int limit) throws SQLException, IOException, ClassNotFoundException {
+        return findAll(after, limit, FieldSet.all(FieldSet.PROJECT));
+    }
+
+    /**
+     * Get a page of projects, ordered by id, reading only the requested fields
+     *
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of projects
+     * @param fields: requested fields
+     * @throws SQLException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @return projects of the page
+     */
+    @Override
+    public List<Project> findAll(Integer after, int limit, FieldSet fields) throws SQLException, IOException, ClassNotFoundException {
+        List<Project> projects = new ArrayList<>();
+        String query = "SELECT " + fields.select(null) + " FROM \"Project\" WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, after == null ? 0 : after);
+            pstmt.setInt(2, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Project project = mapToProject(rs);
+                    projects.add(project);
+                }
+            }
+            return projects;
+        }
+    }
+
+    /**
+     * Read all the projects, ordered by id, through a database cursor
+     *
+     * @param consumer: called for each project, as it is read
+     * @throws SQLException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void streamAll(SqlConsumer<Project> consumer) throws SQLException, IOException, ClassNotFoundException {
+        DatabaseUtil.streamPreparedQuery("SELECT * FROM \"Project\" ORDER BY id",
+                rs -> consumer.accept(mapToProject(rs)));
+    }
+
+    /**
+     * Build the tree of a project (goals, results, tasks, needs and subtask edges) as JSON,
+     * with a single query. The JSON is built by Postgres and returned as its UTF-8 bytes,
+     * the entities are not mapped to objects. The dates are sent as epoch milliseconds,
+     * as the other endpoints send them.
+     *
+     * @param projectId: id of the project
+     * @param userId:    id of the user, only the goals of their teams are sent
+     * @throws SQLException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @return JSON of the tree, null if the project does not exist
+     */
+    public byte[] getTree(int projectId, int userId) throws SQLException, IOException, ClassNotFoundException {
+        String query = """
+                SELECT json_build_object(
+                    'id', p.id,
+                    'name', p.name,
+                    'description', p.description,
+                    'goals', COALESCE((
+                        SELECT json_agg(json_build_object(
+                            'id', g.id,
+                            'name', g.name,
+                            'description', g.description,
+                            'note', g.note,
+                            'tag', g.tag,
+                            'projectId', g.projectId,
+                            'teamId', g.teamId,
+                            'results', COALESCE((
+                                SELECT json_agg(json_build_object(
+                                    'id', r.id,
+                                    'title', r.title,
+                                    'createdAt', %s,
+                                    'endsAt', %s,
+                                    'note', r.note,
+                                    'tag', r.tag,
+                                    'goalId', r.goalId,
+                                    'tasks', COALESCE((
+                                        SELECT json_agg(json_build_object(
+                                            'id', t.id,
+                                            'title', t.title,
+                                            'startsAt', %s,
+                                            'done', t.done,
+                                            'priority', t.priority,
+                                            'deadline', t.deadline,
+                                            'note', t.note,
+                                            'tag', t.tag,
+                                            'resultId', t.resultId,
+                                            'materialNeeds', COALESCE((
+                                                SELECT json_agg(json_build_object('type', mn.materialNeedType, 'quantity', mn.quantity)
+                                                                ORDER BY mn.materialNeedType)
+                                                FROM "Task_MaterialNeed" mn
+                                                WHERE mn.taskId = t.id
+                                            ), '[]'),
+                                            'collaboratorNeeds', COALESCE((
+                                                SELECT json_agg(json_build_object('type', cn.collaboratorNeedType, 'quantity', cn.quantity)
+                                                                ORDER BY cn.collaboratorNeedType)
+                                                FROM "Task_CollaboratorNeed" cn
+                                                WHERE cn.taskId = t.id
+                                            ), '[]'),
+                                            'subtasks', COALESCE((
+                                                SELECT json_agg(json_build_object('subtaskId', ts.subtaskId, 'required', ts.required)
+                                                                ORDER BY ts.subtaskId)
+                                                FROM "Task_Subtask" ts
+                                                WHERE ts.taskId = t.id
+                                            ), '[]')
+                                        ) ORDER BY t.id)
+                                        FROM "Task" t
+                                        WHERE t.resultId = r.id
+                                    ), '[]')
+                                ) ORDER BY r.id)
+                                FROM "Result" r
+                                WHERE r.goalId = g.id
+                            ), '[]')
+                        ) ORDER BY g.id)
+                        FROM "Goal" g
+                        INNER JOIN "User_Team" ut ON ut.teamId = g.teamId AND ut.userId = ?
+                        WHERE g.projectId = p.id
+                    ), '[]')
+                )::TEXT
+                FROM "Project" p
+                WHERE p.id = ?
+                """.formatted(epochMillis("r.createdAt"), epochMillis("r.endsAt"), epochMillis("t.startsAt"));
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, projectId);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                // The bytes received from the database, without decoding them to a String
+                return rs.next() ? rs.getBytes(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Build the SQL expression converting a TIMESTAMP column to epoch milliseconds, read in
+     * the time zone of the connection, i.e. the time zone the JDBC driver reads the dates in
+     *
+     * @param column: column to convert
+     * @return SQL expression
+     */
+    private static String epochMillis(String column) {
+        return "(EXTRACT(EPOCH FROM " + column + " AT TIME ZONE current_setting('TimeZone')) * 1000)::BIGINT";
+    }
+
     /**
      * Update a project
      *
@@ -121,6 +337,8 @@ public class ProjectDAO implements GenericDAO<Project, Integer> {
             pstmt.setString(2, project.getDescription());
             pstmt.setInt(3, project.getId());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Project");
+            UnitOfWork.evict(Project.class, project.getId());
             return project;
         }
     }
@@ -136,11 +354,17 @@ public class ProjectDAO implements GenericDAO<Project, Integer> {
      */
     @Override
     public boolean delete(Integer id) throws SQLException, IOException, ClassNotFoundException {
+        // The goals of the project (and their results and tasks) are deleted with it
+        List<Integer> teamIds = UserListCache.teamsOfProject(id);
         String query = "DELETE FROM \"Project\" WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, id);
-            return pstmt.executeUpdate() > 0;
+            UnitOfWork.evict(Project.class, id);
+            boolean deleted = pstmt.executeUpdate() > 0;
+            CollectionVersion.bumpAfterCommit("Project", "Goal", "Result", "Task");
+            UserListCache.invalidateTeams(teamIds);
+            return deleted;
         }
     }
 }
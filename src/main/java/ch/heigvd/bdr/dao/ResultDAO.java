@@ -1,12 +1,18 @@
 package ch.heigvd.bdr.dao;
 
+import ch.heigvd.bdr.misc.CollectionVersion;
 import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.*;
 
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ResultDAO implements GenericDAO<Result, Integer> {
 
@@ -56,12 +62,15 @@ public class ResultDAO implements GenericDAO<Result, Integer> {
             pstmt.setInt(6, result.getGoalId());
 
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Result");
 
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
                 if (rs.next()) {
                     result.setId(rs.getInt(1));
                 }
             }
+            UnitOfWork.evict(Result.class, result.getId());
+            UserListCache.invalidateTeams(UserListCache.teamOfGoal(result.getGoalId()));
             return result;
         }
     }
@@ -75,7 +84,51 @@ public class ResultDAO implements GenericDAO<Result, Integer> {
      * @throws IOException
      * @return found result
      */
+    @Override
     public Result findById(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        return UnitOfWork.find(Result.class, id, () -> loadById(id));
+    }
+
+    /**
+     * Find several results with a single query
+     *
+     * @param ids: ids of the results
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return results found by id, in the order of the ids
+     */
+    @Override
+    public Map<Integer, Result> findByIds(Collection<Integer> ids) throws ClassNotFoundException, SQLException, IOException {
+        Map<Integer, Result> results = new HashMap<>();
+        if (ids.isEmpty()) {
+            return results;
+        }
+        String query = "SELECT * FROM \"Result\" WHERE id = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Result result = mapToResult(rs);
+                    results.put(result.getId(), result);
+                }
+            }
+        }
+        return GenericDAO.inOrder(ids, results);
+    }
+
+    /**
+     * Load a result from the database
+     *
+     * @param id: id to use for the research
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return found result
+     */
+    private Result loadById(Integer id) throws ClassNotFoundException, SQLException, IOException {
         String query = "SELECT * FROM \"Result\" WHERE id = ?";
 
         try (Connection conn = DatabaseUtil.getConnection();
@@ -124,6 +177,38 @@ public class ResultDAO implements GenericDAO<Result, Integer> {
         }
     }
 
+    /**
+     * Get a page of results, ordered by id
+     *
+     * @param after: id after which the page starts, null for the first page
+     * @param limit: maximum number of results
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return results of the page
+     */
+    @Override
+    public List<Result> findAll(Integer after, int limit) throws ClassNotFoundException, SQLException, IOException {
+        List<Result> results = new ArrayList<>();
+        String query = "SELECT * FROM \"Result\" WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, after == null ? 0 : after);
+            pstmt.setInt(2, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Result r = mapToResult(rs);
+                    GoalDAO goalDAO = new GoalDAO();
+
+                    r.setGoal(goalDAO.findById(r.getGoalId()));
+                    results.add(r);
+                }
+            }
+            return results;
+        }
+    }
+
     /**
      * Update a result
      *
@@ -135,6 +220,8 @@ public class ResultDAO implements GenericDAO<Result, Integer> {
      */
     @Override
     public Result update(Result result) throws ClassNotFoundException, SQLException, IOException {
+        // The result may move to a goal of another team, the members of both see the change
+        Integer previousTeamId = UserListCache.teamOfResult(result.getId());
         String query = "UPDATE \"Result\" SET title = ?, endsAt = ?, note = ?, tag = ?, goalId = ? " +
                 "WHERE id = ?";
 
@@ -149,6 +236,9 @@ public class ResultDAO implements GenericDAO<Result, Integer> {
             pstmt.setInt(6, result.getId());
 
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Result");
+            UnitOfWork.evict(Result.class, result.getId());
+            UserListCache.invalidateTeams(previousTeamId, UserListCache.teamOfGoal(result.getGoalId()));
             return result;
         }
     }
@@ -164,39 +254,69 @@ public class ResultDAO implements GenericDAO<Result, Integer> {
      */
     @Override
     public boolean delete(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        Integer teamId = UserListCache.teamOfResult(id);
         String query = "DELETE FROM \"Result\" WHERE id = ?";
 
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             pstmt.setInt(1, id);
-            return pstmt.executeUpdate() > 0;
+            UnitOfWork.evict(Result.class, id);
+            boolean deleted = pstmt.executeUpdate() > 0;
+            CollectionVersion.bumpAfterCommit("Result", "Task");
+            UserListCache.invalidateTeams(teamId);
+            return deleted;
         }
     }
 
     /**
-     * Find all the results related to a user id
+     * Find all the results related to a user id (cached, see UserListCache)
+     *
+     * @param userId
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of entities
+     * @param fields: fields to read
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return: List of all the results (not modifiable)
+     */
+    public List<Result> getResultsByUserID(int userId, Integer after, int limit, FieldSet fields)
+            throws ClassNotFoundException, SQLException, IOException {
+        return UserListCache.results.get(userId, after + ":" + limit + ":" + fields.key(),
+                () -> loadResultsByUserID(userId, after, limit, fields));
+    }
+
+    /**
+     * Load all the results related to a user id from the database
      *
      * @param userId
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of entities
+     * @param fields: fields to read
      * @throws ClassNotFoundException
      * @throws SQLException
      * @throws IOException
-     * @return: List of all the users
+     * @return: List of all the results
      */
-    public List<Result> getResultsByUserID(int userId) throws ClassNotFoundException, SQLException, IOException {
+    private List<Result> loadResultsByUserID(int userId, Integer after, int limit, FieldSet fields) throws ClassNotFoundException, SQLException, IOException {
         List<Result> results = new ArrayList<>();
         String query = """
-                SELECT r.*
+                SELECT %s
                 FROM "User_Team" ut
                 INNER JOIN "Team" t ON t.id = ut.teamid
                 INNER JOIN "Goal" g ON g.teamid = t.id
                 INNER JOIN "Result" r ON r.goalid = g.id
-                WHERE ut.userid = ?
-                """;
+                WHERE ut.userid = ? AND r.id > ?
+                ORDER BY r.id
+                LIMIT ?
+                """.formatted(fields.select("r"));
 
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, userId);
+            pstmt.setInt(2, after == null ? 0 : after);
+            pstmt.setInt(3, limit);
 
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -1,12 +1,22 @@
 package ch.heigvd.bdr.dao;
 
+import ch.heigvd.bdr.misc.CollectionVersion;
 import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.Pagination;
+import ch.heigvd.bdr.misc.SqlConsumer;
+import ch.heigvd.bdr.misc.TaskFilter;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.*;
 
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class TaskDAO implements GenericDAO<Task, Integer> {
 
@@ -58,16 +68,69 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
             pstmt.setString(7, task.getTag());
             pstmt.setInt(8, task.getResultId());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Task");
 
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
                 if (rs.next()) {
                     task.setId(rs.getInt(1));
                 }
             }
+            UnitOfWork.evict(Task.class, task.getId());
+            UserListCache.invalidateTeams(UserListCache.teamOfResult(task.getResultId()));
             return task;
         }
     }
 
+    /**
+     * Create several tasks with multi-row inserts (DB_BATCH_SIZE rows per statement)
+     *
+     * @param tasks: tasks to insert
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return inserted tasks, in the same order
+     */
+    @Override
+    public List<Task> createAll(List<Task> tasks) throws ClassNotFoundException, SQLException, IOException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            for (int start = 0; start < tasks.size(); start += DatabaseUtil.BATCH_SIZE) {
+                List<Task> chunk = tasks.subList(start, Math.min(start + DatabaseUtil.BATCH_SIZE, tasks.size()));
+                String query = "INSERT INTO \"Task\" (title, startsAt, done, priority, deadline, note, tag, resultId) VALUES "
+                        + DatabaseUtil.valuesList("(?, ?, ?, ?::\"TaskPriority\", ?::\"TaskDeadline\", ?, ?, ?)", chunk.size())
+                        + " RETURNING id";
+                try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                    int i = 1;
+                    for (Task task : chunk) {
+                        pstmt.setString(i++, task.getTitle());
+                        pstmt.setTimestamp(i++, task.getStartsAt());
+                        pstmt.setBoolean(i++, task.getDone());
+                        pstmt.setString(i++, task.getPriority().name());
+                        pstmt.setString(i++, task.getDeadline().name());
+                        pstmt.setString(i++, task.getNote());
+                        pstmt.setString(i++, task.getTag());
+                        pstmt.setInt(i++, task.getResultId());
+                    }
+
+                    // The ids are drawn from the sequence in the order of the rows
+                    List<Integer> ids = new ArrayList<>(chunk.size());
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getInt(1));
+                        }
+                    }
+                    Collections.sort(ids);
+                    for (int j = 0; j < chunk.size(); j++) {
+                        chunk.get(j).setId(ids.get(j));
+                        UnitOfWork.evict(Task.class, ids.get(j));
+                    }
+                }
+            }
+        }
+        CollectionVersion.bumpAfterCommit("Task");
+        UserListCache.invalidateTeams(UserListCache.teamsOfResults(tasks.stream().map(Task::getResultId).toList()));
+        return tasks;
+    }
+
     /**
      * Find a task by its id
      *
@@ -79,6 +142,78 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
      */
     @Override
     public Task findById(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        return UnitOfWork.find(Task.class, id, () -> loadById(id));
+    }
+
+    /**
+     * Find several tasks with a single query
+     *
+     * @param ids: ids of the tasks
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return tasks found by id, in the order of the ids
+     */
+    @Override
+    public Map<Integer, Task> findByIds(Collection<Integer> ids) throws ClassNotFoundException, SQLException, IOException {
+        Map<Integer, Task> tasks = new HashMap<>();
+        if (ids.isEmpty()) {
+            return tasks;
+        }
+        String query = "SELECT * FROM \"Task\" WHERE id = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Task task = mapToTask(rs);
+                    tasks.put(task.getId(), task);
+                }
+            }
+        }
+        return GenericDAO.inOrder(ids, tasks);
+    }
+
+    /**
+     * Find the tasks starting at some dates with a single query (startsAt is unique)
+     *
+     * @param startsAt: start dates to look for
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return ids of the tasks found, by start date
+     */
+    public Map<Timestamp, Integer> findIdsByStartsAt(Collection<Timestamp> startsAt)
+            throws ClassNotFoundException, SQLException, IOException {
+        Map<Timestamp, Integer> ids = new HashMap<>();
+        if (startsAt.isEmpty()) {
+            return ids;
+        }
+        String query = "SELECT id, startsAt FROM \"Task\" WHERE startsAt = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("timestamp", startsAt.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.put(rs.getTimestamp("startsAt"), rs.getInt("id"));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Load a task from the database
+     *
+     * @param id: id to use for the research
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return found task
+     */
+    private Task loadById(Integer id) throws ClassNotFoundException, SQLException, IOException {
         String query = "SELECT * FROM \"Task\" WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
@@ -94,6 +229,58 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
         }
     }
 
+    /**
+     * Find a task with its needs and its subtasks. The four queries are sent together on the
+     * connection of the request and their result sets are read in a single round trip.
+     *
+     * @param id: id of the task
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return task with its needs and subtasks, null if the task does not exist
+     */
+    public TaskDetail findDetailById(int id) throws ClassNotFoundException, SQLException, IOException {
+        String query = """
+                SELECT * FROM "Task" WHERE id = ?;
+                SELECT * FROM "Task_MaterialNeed" WHERE taskId = ?;
+                SELECT * FROM "Task_CollaboratorNeed" WHERE taskId = ?;
+                SELECT t.*, ts.required
+                FROM "Task" t
+                INNER JOIN "Task_Subtask" ts ON ts.subtaskId = t.id
+                WHERE ts.taskId = ?
+                """;
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            for (int i = 1; i <= 4; i++) {
+                pstmt.setInt(i, id);
+            }
+            // The driver sends the statements with a single sync, all the result sets come back at once
+            pstmt.execute();
+
+            Task task;
+            try (ResultSet rs = pstmt.getResultSet()) {
+                task = rs.next() ? mapToTask(rs) : null;
+            }
+            pstmt.getMoreResults();
+            List<MaterialNeed> materialNeeds;
+            try (ResultSet rs = pstmt.getResultSet()) {
+                materialNeeds = readMaterialNeeds(rs);
+            }
+            pstmt.getMoreResults();
+            List<CollaboratorNeed> collaboratorNeeds;
+            try (ResultSet rs = pstmt.getResultSet()) {
+                collaboratorNeeds = readCollaboratorNeeds(rs);
+            }
+            pstmt.getMoreResults();
+            List<SubtaskInfo> subtasks;
+            try (ResultSet rs = pstmt.getResultSet()) {
+                subtasks = readSubtasks(rs);
+            }
+
+            return task == null ? null : new TaskDetail(task, materialNeeds, collaboratorNeeds, subtasks);
+        }
+    }
+
     /**
      * Find all the tasks
      *
@@ -118,6 +305,35 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
         }
     }
 
+    /**
+     * Get a page of tasks, ordered by id
+     *
+     * @param after: id after which the page starts, null for the first page
+     * @param limit: maximum number of tasks
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return tasks of the page
+     */
+    @Override
+    public List<Task> findAll(Integer after, int limit) throws ClassNotFoundException, SQLException, IOException {
+        List<Task> tasks = new ArrayList<>();
+        String query = "SELECT * FROM \"Task\" WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, after == null ? 0 : after);
+            pstmt.setInt(2, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Task task = mapToTask(rs);
+                    tasks.add(task);
+                }
+            }
+            return tasks;
+        }
+    }
+
     /**
      * Update a task
      *
@@ -129,6 +345,8 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
      */
     @Override
     public Task update(Task task) throws ClassNotFoundException, SQLException, IOException {
+        // The task may move to a result of another team, the members of both see the change
+        Integer previousTeamId = UserListCache.teamOfTask(task.getId());
         String query = "UPDATE \"Task\" SET title = ?, startsAt = ?, done = ?, priority = ?::\"TaskPriority\", deadline = ?::\"TaskDeadline\", " +
                 "note = ?, tag = ?, resultId = ? WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
@@ -143,10 +361,65 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
             pstmt.setInt(8, task.getResultId());
             pstmt.setInt(9, task.getId());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Task");
+            UnitOfWork.evict(Task.class, task.getId());
+            UserListCache.invalidateTeams(previousTeamId, UserListCache.teamOfResult(task.getResultId()));
             return task;
         }
     }
 
+    /**
+     * Update several tasks with JDBC batches (DB_BATCH_SIZE statements per round trip)
+     *
+     * @param tasks: tasks to update with new values
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return updated tasks, in the same order (null for the ones that do not exist)
+     */
+    @Override
+    public List<Task> updateAll(List<Task> tasks) throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = tasks.stream().map(Task::getId).toList();
+        // The tasks may move to results of other teams, the members of all of them see the change
+        List<Integer> teamIds = new ArrayList<>(UserListCache.teamsOfTasks(ids));
+        String query = "UPDATE \"Task\" SET title = ?, startsAt = ?, done = ?, priority = ?::\"TaskPriority\", deadline = ?::\"TaskDeadline\", " +
+                "note = ?, tag = ?, resultId = ? WHERE id = ?";
+        List<Task> updated = new ArrayList<>(tasks.size());
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            for (int start = 0; start < tasks.size(); start += DatabaseUtil.BATCH_SIZE) {
+                List<Task> chunk = tasks.subList(start, Math.min(start + DatabaseUtil.BATCH_SIZE, tasks.size()));
+                for (Task task : chunk) {
+                    pstmt.setString(1, task.getTitle());
+                    pstmt.setTimestamp(2, task.getStartsAt());
+                    pstmt.setBoolean(3, task.getDone());
+                    pstmt.setString(4, task.getPriority().name());
+                    pstmt.setString(5, task.getDeadline().name());
+                    pstmt.setString(6, task.getNote());
+                    pstmt.setString(7, task.getTag());
+                    pstmt.setInt(8, task.getResultId());
+                    pstmt.setInt(9, task.getId());
+                    pstmt.addBatch();
+                }
+
+                int[] counts;
+                try {
+                    counts = pstmt.executeBatch();
+                } catch (BatchUpdateException e) {
+                    throw DatabaseUtil.batchFailure(e);
+                }
+                for (int j = 0; j < chunk.size(); j++) {
+                    updated.add(counts[j] == 0 ? null : chunk.get(j));
+                    UnitOfWork.evict(Task.class, chunk.get(j).getId());
+                }
+            }
+        }
+        teamIds.addAll(UserListCache.teamsOfResults(tasks.stream().map(Task::getResultId).toList()));
+        CollectionVersion.bumpAfterCommit("Task");
+        UserListCache.invalidateTeams(teamIds);
+        return updated;
+    }
+
     /**
      * Delete a task
      *
@@ -158,11 +431,16 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
      */
     @Override
     public boolean delete(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        Integer teamId = UserListCache.teamOfTask(id);
         String query = "DELETE FROM \"Task\" WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, id);
-            return pstmt.executeUpdate() > 0;
+            UnitOfWork.evict(Task.class, id);
+            boolean deleted = pstmt.executeUpdate() > 0;
+            CollectionVersion.bumpAfterCommit("Task");
+            UserListCache.invalidateTeams(teamId);
+            return deleted;
         }
     }
 
@@ -285,22 +563,32 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
      */
     public List<MaterialNeed> getTaskMaterialNeeds(Task task)
             throws ClassNotFoundException, SQLException, IOException {
-        List<MaterialNeed> materialNeeds = new ArrayList<>();
         String query = "SELECT * FROM \"Task_MaterialNeed\" WHERE taskId = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, task.getId());
 
             try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    MaterialNeed need = new MaterialNeed(Material.valueOf(rs.getString("materialNeedType")), rs.getInt("quantity"));
-                    materialNeeds.add(need);
-                }
+                return readMaterialNeeds(rs);
             }
-            return materialNeeds;
         }
     }
 
+    /**
+     * Read the material needs of a result set of "Task_MaterialNeed"
+     *
+     * @param rs: rows to read
+     * @throws SQLException
+     * @return List of the material needs
+     */
+    private List<MaterialNeed> readMaterialNeeds(ResultSet rs) throws SQLException {
+        List<MaterialNeed> materialNeeds = new ArrayList<>();
+        while (rs.next()) {
+            materialNeeds.add(new MaterialNeed(Material.valueOf(rs.getString("materialNeedType")), rs.getInt("quantity")));
+        }
+        return materialNeeds;
+    }
+
     /**
      * Get all the collaborator needs of a task
      *
@@ -312,22 +600,32 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
      */
     public List<CollaboratorNeed> getTaskCollaboratorNeeds(Task task)
             throws ClassNotFoundException, SQLException, IOException {
-        List<CollaboratorNeed> collaboratorNeeds = new ArrayList<>();
         String query = "SELECT * FROM \"Task_CollaboratorNeed\" WHERE taskId = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, task.getId());
 
             try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    CollaboratorNeed need = new CollaboratorNeed(UserRole.valueOf(rs.getString("collaboratorNeedType")), rs.getInt("quantity"));
-                    collaboratorNeeds.add(need);
-                }
+                return readCollaboratorNeeds(rs);
             }
-            return collaboratorNeeds;
         }
     }
 
+    /**
+     * Read the collaborator needs of a result set of "Task_CollaboratorNeed"
+     *
+     * @param rs: rows to read
+     * @throws SQLException
+     * @return List of the collaborator needs
+     */
+    private List<CollaboratorNeed> readCollaboratorNeeds(ResultSet rs) throws SQLException {
+        List<CollaboratorNeed> collaboratorNeeds = new ArrayList<>();
+        while (rs.next()) {
+            collaboratorNeeds.add(new CollaboratorNeed(UserRole.valueOf(rs.getString("collaboratorNeedType")), rs.getInt("quantity")));
+        }
+        return collaboratorNeeds;
+    }
+
     /**
      * Delete a certain material need of a task
      *
@@ -383,7 +681,6 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
      */
     public List<SubtaskInfo> getSubtasks(Task t)
             throws ClassNotFoundException, SQLException, IOException {
-        List<SubtaskInfo> subtasks = new ArrayList<>();
         String query = "SELECT t.*, ts.required " +
                 "FROM \"Task\" t " +
                 "INNER JOIN \"Task_Subtask\" ts ON ts.subtaskid = t.id " +
@@ -393,18 +690,32 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
             pstmt.setInt(1, t.getId());
 
             try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    Task task = mapToTask(rs);
-
-                    boolean isRequired = rs.getBoolean("required");
-                    SubtaskInfo taskWithRequiredInfo = new SubtaskInfo(task, isRequired);
-                    subtasks.add(taskWithRequiredInfo);
-                }
+                return readSubtasks(rs);
             }
-            return subtasks;
         }
     }
 
+    /**
+     * Read the subtasks of a result set of tasks joined with "Task_Subtask"
+     *
+     * @param rs: rows to read
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return list of the subtasks
+     */
+    private List<SubtaskInfo> readSubtasks(ResultSet rs) throws ClassNotFoundException, SQLException, IOException {
+        List<SubtaskInfo> subtasks = new ArrayList<>();
+        while (rs.next()) {
+            Task task = mapToTask(rs);
+
+            boolean isRequired = rs.getBoolean("required");
+            SubtaskInfo taskWithRequiredInfo = new SubtaskInfo(task, isRequired);
+            subtasks.add(taskWithRequiredInfo);
+        }
+        return subtasks;
+    }
+
     /**
      * Create a relationship between a task and subtask
      *
@@ -475,29 +786,58 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
     }
 
     /**
-     * Find all the tasks related to a specific user
+     * Find all the tasks related to a specific user (cached, see UserListCache)
      *
      * @param userId: user id to use for the research
+     * @param filter:     filters and sort order of the tasks
+     * @param pagination: page to read
+     * @param fields:     fields to read
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return List of all the tasks (not modifiable)
+     */
+    public List<Task> getTasksByUserID(int userId, TaskFilter filter, Pagination pagination, FieldSet fields)
+            throws ClassNotFoundException, SQLException, IOException {
+        // The sort field is needed to build the cursor of the next page
+        FieldSet read = fields.with(filter.sort());
+        String page = pagination.after() + ":" + pagination.afterKey() + ":" + pagination.limit()
+                + ":" + read.key() + ":" + filter.key();
+        return UserListCache.tasks.get(userId, page, () -> loadTasksByUserID(userId, filter, pagination, read));
+    }
+
+    /**
+     * Load all the tasks related to a specific user from the database
+     *
+     * @param userId:     user id to use for the research
+     * @param filter:     filters and sort order of the tasks
+     * @param pagination: page to read
+     * @param fields:     fields to read
      * @throws ClassNotFoundException
      * @throws SQLException
      * @throws IOException
      * @return List of all the tasks
      */
-    public List<Task> getTasksByUserID(int userId) throws ClassNotFoundException, SQLException, IOException {
+    private List<Task> loadTasksByUserID(int userId, TaskFilter filter, Pagination pagination, FieldSet fields)
+            throws ClassNotFoundException, SQLException, IOException {
         List<Task> tasks = new ArrayList<>();
-        String query = """
-                SELECT t.*
+        StringBuilder query = new StringBuilder("""
+                SELECT %s
                 FROM "User_Team" ut
-                INNER JOIN "Team" tm ON tm.id = ut.teamid
-                INNER JOIN "Goal" g ON g.teamid = tm.id
+                INNER JOIN "Goal" g ON g.teamid = ut.teamid
                 INNER JOIN "Result" r ON r.goalid = g.id
                 INNER JOIN "Task" t ON t.resultid = r.id
                 WHERE ut.userid = ?
-                """;
+                """.formatted(fields.select("t")));
+        List<Object> parameters = new ArrayList<>();
+        parameters.add(userId);
+        appendFilter(query, parameters, filter, pagination);
 
         try (Connection conn = DatabaseUtil.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setInt(1, userId);
+             PreparedStatement pstmt = conn.prepareStatement(query.toString())) {
+            for (int i = 0; i < parameters.size(); i++) {
+                pstmt.setObject(i + 1, parameters.get(i));
+            }
 
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -518,4 +858,95 @@ public class TaskDAO implements GenericDAO<Task, Integer> {
         }
     }
 
+    /**
+     * Append the conditions, the order and the limit of a task list to its query.
+     * Only whitelisted columns are written in the query, every value is a parameter.
+     *
+     * @param query:      query selecting the tasks (alias t), ending with its WHERE clause
+     * @param parameters: parameters of the query, completed with the values of the filter
+     * @param filter:     filters and sort order of the tasks
+     * @param pagination: page to read
+     */
+    private void appendFilter(StringBuilder query, List<Object> parameters, TaskFilter filter, Pagination pagination) {
+        if (filter.done() != null) {
+            query.append(" AND t.done = ?");
+            parameters.add(filter.done());
+        }
+        if (!filter.priorities().isEmpty()) {
+            query.append(" AND t.priority IN (")
+                    .append(String.join(", ", Collections.nCopies(filter.priorities().size(), "?::\"TaskPriority\"")))
+                    .append(')');
+            filter.priorities().forEach(priority -> parameters.add(priority.name()));
+        }
+        if (!filter.deadlines().isEmpty()) {
+            query.append(" AND t.deadline IN (")
+                    .append(String.join(", ", Collections.nCopies(filter.deadlines().size(), "?::\"TaskDeadline\"")))
+                    .append(')');
+            filter.deadlines().forEach(deadline -> parameters.add(deadline.name()));
+        }
+        if (filter.tag() != null) {
+            query.append(" AND t.tag = ?");
+            parameters.add(filter.tag());
+        }
+        if (filter.startsFrom() != null) {
+            query.append(" AND t.startsAt >= ?");
+            parameters.add(filter.startsFrom());
+        }
+        if (filter.startsTo() != null) {
+            query.append(" AND t.startsAt < ?");
+            parameters.add(filter.startsTo());
+        }
+
+        // Keyset pagination on (sort field, id)
+        String column = "t." + filter.sort();
+        String direction = filter.descending() ? "DESC" : "ASC";
+        String comparison = filter.descending() ? "<" : ">";
+        if (pagination.after() != null) {
+            Object afterValue = filter.afterValue(pagination);
+            if (afterValue == null) {
+                query.append(" AND t.id ").append(comparison).append(" ?");
+            } else {
+                String cast = switch (filter.sort()) {
+                    case "priority" -> "::\"TaskPriority\"";
+                    case "deadline" -> "::\"TaskDeadline\"";
+                    default -> "";
+                };
+                query.append(" AND (").append(column).append(", t.id) ").append(comparison)
+                        .append(" (?").append(cast).append(", ?)");
+                parameters.add(afterValue instanceof Enum<?> value ? value.name() : afterValue);
+            }
+            parameters.add(pagination.after());
+        }
+
+        query.append(" ORDER BY ");
+        if (!filter.sort().equals("id")) {
+            query.append(column).append(' ').append(direction).append(", ");
+        }
+        query.append("t.id ").append(direction).append(" LIMIT ?");
+        parameters.add(pagination.limit());
+    }
+
+    /**
+     * Read all the tasks related to a specific user, ordered by id, through a database cursor
+     *
+     * @param userId:   user id to use for the research
+     * @param consumer: called for each task, as it is read
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void streamTasksByUserID(int userId, SqlConsumer<Task> consumer)
+            throws ClassNotFoundException, SQLException, IOException {
+        String query = """
+                SELECT t.*
+                FROM "User_Team" ut
+                INNER JOIN "Goal" g ON g.teamid = ut.teamid
+                INNER JOIN "Result" r ON r.goalid = g.id
+                INNER JOIN "Task" t ON t.resultid = r.id
+                WHERE ut.userid = ?
+                ORDER BY t.id
+                """;
+        DatabaseUtil.streamPreparedQuery(query, rs -> consumer.accept(mapToTask(rs)), userId);
+    }
+
 }
@@ -1,12 +1,18 @@
 package ch.heigvd.bdr.dao;
 
+import ch.heigvd.bdr.misc.CollectionVersion;
 import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.*;
 
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class TeamDAO implements GenericDAO<Team, Integer> {
 
@@ -26,12 +32,14 @@ public class TeamDAO implements GenericDAO<Team, Integer> {
              PreparedStatement pstmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
             pstmt.setString(1, team.getName());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Team");
 
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
                 if (rs.next()) {
                     team.setId(rs.getInt(1));
                 }
             }
+            UnitOfWork.evict(Team.class, team.getId());
             return team;
         }
     }
@@ -47,6 +55,52 @@ public class TeamDAO implements GenericDAO<Team, Integer> {
      */
     @Override
     public Team findById(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        return UnitOfWork.find(Team.class, id, () -> loadById(id));
+    }
+
+    /**
+     * Find several teams with a single query
+     *
+     * @param ids: ids of the teams
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return teams found by id, in the order of the ids
+     */
+    @Override
+    public Map<Integer, Team> findByIds(Collection<Integer> ids) throws ClassNotFoundException, SQLException, IOException {
+        Map<Integer, Team> teams = new HashMap<>();
+        if (ids.isEmpty()) {
+            return teams;
+        }
+        String query = "SELECT * FROM \"Team\" WHERE id = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Team team = new Team();
+                    team.setId(rs.getInt("id"));
+                    team.setName(rs.getString("name"));
+                    team.setManagerId(rs.getInt("managerId"));
+                    teams.put(team.getId(), team);
+                }
+            }
+        }
+        return GenericDAO.inOrder(ids, teams);
+    }
+
+    /**
+     * Load a team from the database
+     *
+     * @param id: id to use for research
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return found team
+     */
+    private Team loadById(Integer id) throws ClassNotFoundException, SQLException, IOException {
         String query = "SELECT * FROM \"Team\" WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
@@ -93,6 +147,54 @@ public class TeamDAO implements GenericDAO<Team, Integer> {
         }
     }
 
+    /**
+     * Get a page of teams, ordered by id
+     *
+     * @param after: id after which the page starts, null for the first page
+     * @param limit: maximum number of teams
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return teams of the page
+     */
+    @Override
+    public List<Team> findAll(Integer after, int limit) throws ClassNotFoundException, SQLException, IOException {
+        return findAll(after, limit, FieldSet.all(FieldSet.TEAM));
+    }
+
+    /**
+     * Get a page of teams, ordered by id, reading only the requested fields
+     *
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of teams
+     * @param fields: requested fields
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return teams of the page
+     */
+    @Override
+    public List<Team> findAll(Integer after, int limit, FieldSet fields) throws ClassNotFoundException, SQLException, IOException {
+        List<Team> teams = new ArrayList<>();
+        String query = "SELECT " + fields.select(null) + " FROM \"Team\" WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, after == null ? 0 : after);
+            pstmt.setInt(2, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Team team = new Team();
+                    team.setId(rs.getInt("id"));
+                    team.setName(rs.getString("name"));
+                    team.setManagerId(rs.getInt("managerId"));
+                    teams.add(team);
+                }
+            }
+            return teams;
+        }
+    }
+
     /**
      * Update a specific team
      *
@@ -110,6 +212,8 @@ public class TeamDAO implements GenericDAO<Team, Integer> {
             pstmt.setString(1, team.getName());
             pstmt.setInt(2, team.getId());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Team");
+            UnitOfWork.evict(Team.class, team.getId());
             return team;
         }
     }
@@ -129,7 +233,12 @@ public class TeamDAO implements GenericDAO<Team, Integer> {
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, id);
-            return pstmt.executeUpdate() > 0;
+            UnitOfWork.evict(Team.class, id);
+            boolean deleted = pstmt.executeUpdate() > 0;
+            CollectionVersion.bumpAfterCommit("Team", "User_Team", "Goal");
+            // The members lose the goals of the team
+            UserListCache.invalidateTeams(id);
+            return deleted;
         }
     }
 
@@ -182,6 +291,8 @@ public class TeamDAO implements GenericDAO<Team, Integer> {
             pstmt.setInt(2, teamId);
 
             int rowsAffected = pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Team");
+            UnitOfWork.evict(Team.class, teamId);
             return rowsAffected > 0;
         }
     }
@@ -202,6 +313,8 @@ public class TeamDAO implements GenericDAO<Team, Integer> {
             pstmt.setInt(1, teamId);
 
             int rowsAffected = pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("Team");
+            UnitOfWork.evict(Team.class, teamId);
             return rowsAffected > 0;
         }
     }
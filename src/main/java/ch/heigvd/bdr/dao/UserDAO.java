@@ -1,12 +1,19 @@
 package ch.heigvd.bdr.dao;
 
+import ch.heigvd.bdr.misc.CollectionVersion;
 import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.FieldSet;
+import ch.heigvd.bdr.misc.SqlConsumer;
+import ch.heigvd.bdr.misc.UnitOfWork;
 import ch.heigvd.bdr.models.*;
 
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UserDAO implements GenericDAO<User, Integer> {
 
@@ -29,12 +36,14 @@ public class UserDAO implements GenericDAO<User, Integer> {
             pstmt.setString(3, user.getEmail());
             pstmt.setString(4, user.getRole().name());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("User");
 
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
                 if (rs.next()) {
                     user.setId(rs.getInt(1));
                 }
             }
+            UnitOfWork.evict(User.class, user.getId());
             return user;
         }
     }
@@ -50,6 +59,54 @@ public class UserDAO implements GenericDAO<User, Integer> {
      */
     @Override
     public User findById(Integer id) throws ClassNotFoundException, SQLException, IOException {
+        return UnitOfWork.find(User.class, id, () -> loadById(id));
+    }
+
+    /**
+     * Find several users with a single query
+     *
+     * @param ids: ids of the users
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return users found by id, in the order of the ids
+     */
+    @Override
+    public Map<Integer, User> findByIds(Collection<Integer> ids) throws ClassNotFoundException, SQLException, IOException {
+        Map<Integer, User> users = new HashMap<>();
+        if (ids.isEmpty()) {
+            return users;
+        }
+        String query = "SELECT * FROM \"User\" WHERE id = ANY(?)";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    User user = new User();
+                    user.setId(rs.getInt("id"));
+                    user.setFirstname(rs.getString("firstname"));
+                    user.setLastname(rs.getString("lastname"));
+                    user.setEmail(rs.getString("email"));
+                    user.setRole(UserRole.valueOf(rs.getString("role")));
+                    users.put(user.getId(), user);
+                }
+            }
+        }
+        return GenericDAO.inOrder(ids, users);
+    }
+
+    /**
+     * Load a user from the database
+     *
+     * @param id: id of the user to use for research
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return found users
+     */
+    private User loadById(Integer id) throws ClassNotFoundException, SQLException, IOException {
         String query = "SELECT * FROM \"User\" WHERE id = ?";
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
@@ -129,6 +186,76 @@ public class UserDAO implements GenericDAO<User, Integer> {
         }
     }
 
+    /**
+     * Get a page of users, ordered by id
+     *
+     * @param after: id after which the page starts, null for the first page
+     * @param limit: maximum number of users
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return users of the page
+     */
+    @Override
+    public List<User> findAll(Integer after, int limit) throws ClassNotFoundException, SQLException, IOException {
+        return findAll(after, limit, FieldSet.all(FieldSet.USER));
+    }
+
+    /**
+     * Get a page of users, ordered by id, reading only the requested fields
+     *
+     * @param after:  id after which the page starts, null for the first page
+     * @param limit:  maximum number of users
+     * @param fields: requested fields
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return users of the page
+     */
+    @Override
+    public List<User> findAll(Integer after, int limit, FieldSet fields) throws ClassNotFoundException, SQLException, IOException {
+        List<User> users = new ArrayList<>();
+        String query = "SELECT " + fields.select(null) + " FROM \"User\" WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, after == null ? 0 : after);
+            pstmt.setInt(2, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    User user = new User();
+                    user.setId(rs.getInt("id"));
+                    user.setFirstname(rs.getString("firstname"));
+                    user.setLastname(rs.getString("lastname"));
+                    user.setEmail(rs.getString("email"));
+                    user.setRole(UserRole.valueOf(rs.getString("role")));
+                    users.add(user);
+                }
+            }
+            return users;
+        }
+    }
+
+    /**
+     * Read all the users, ordered by id, through a database cursor
+     *
+     * @param consumer: called for each user, as it is read
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void streamAll(SqlConsumer<User> consumer) throws ClassNotFoundException, SQLException, IOException {
+        DatabaseUtil.streamPreparedQuery("SELECT * FROM \"User\" ORDER BY id", rs -> {
+            User user = new User();
+            user.setId(rs.getInt("id"));
+            user.setFirstname(rs.getString("firstname"));
+            user.setLastname(rs.getString("lastname"));
+            user.setEmail(rs.getString("email"));
+            user.setRole(UserRole.valueOf(rs.getString("role")));
+            consumer.accept(user);
+        });
+    }
+
     /**
      * Update a user
      *
@@ -149,6 +276,8 @@ public class UserDAO implements GenericDAO<User, Integer> {
             pstmt.setString(4, user.getRole().name());
             pstmt.setInt(5, user.getId());
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("User");
+            UnitOfWork.evict(User.class, user.getId());
             return user;
         }
     }
@@ -168,7 +297,11 @@ public class UserDAO implements GenericDAO<User, Integer> {
         try (Connection conn = DatabaseUtil.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setInt(1, id);
-            return pstmt.executeUpdate() > 0;
+            UnitOfWork.evict(User.class, id);
+            boolean deleted = pstmt.executeUpdate() > 0;
+            CollectionVersion.bumpAfterCommit("User", "User_Team", "Team");
+            UserListCache.invalidateUser(id);
+            return deleted;
         }
     }
 
@@ -188,6 +321,8 @@ public class UserDAO implements GenericDAO<User, Integer> {
             pstmt.setInt(1, userId);
             pstmt.setInt(2, teamId);
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("User_Team");
+            UserListCache.invalidateUser(userId);
         }
     }
 
@@ -207,6 +342,8 @@ public class UserDAO implements GenericDAO<User, Integer> {
             pstmt.setInt(1, userId);
             pstmt.setInt(2, teamId);
             pstmt.executeUpdate();
+            CollectionVersion.bumpAfterCommit("User_Team");
+            UserListCache.invalidateUser(userId);
         }
     }
 
@@ -0,0 +1,368 @@
+package ch.heigvd.bdr.dao;
+
+import ch.heigvd.bdr.misc.ChangeNotifier;
+import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.misc.EnvHelper;
+import ch.heigvd.bdr.misc.LruCache;
+import ch.heigvd.bdr.misc.SingleFlight;
+import ch.heigvd.bdr.misc.SqlSupplier;
+import ch.heigvd.bdr.misc.UnitOfWork;
+import ch.heigvd.bdr.models.Goal;
+import ch.heigvd.bdr.models.Result;
+import ch.heigvd.bdr.models.Task;
+
+import java.io.IOException;
+import java.sql.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Caches the lists built for a user from the teams they belong to (goals, results and tasks),
+ * page by page: all the pages of a user are kept (and dropped) together.
+ * A dependency index (team -> users) lets a write invalidate only the lists of the
+ * members of the affected teams, and a membership change only the lists of the user.
+ *
+ * @param <T>: type of the listed entities
+ */
+class UserListCache<T> {
+    private static final List<UserListCache<?>> caches = new CopyOnWriteArrayList<>();
+    // Dependency index: team -> users whose cached lists are built from it
+    private static final Map<Integer, Set<Integer>> usersByTeam = new ConcurrentHashMap<>();
+    // Maximum number of pages kept for a user, they are all dropped beyond
+    private static final int MAX_PAGES_PER_USER = 32;
+    // Held to update the index with the lists, so a map of pages never exists without its index entries
+    private static final Object index = new Object();
+    // Incremented by every invalidation (under the index lock)
+    private static volatile long generation = 0;
+
+    static final UserListCache<Goal> goals = new UserListCache<>("userLists.goals");
+    static final UserListCache<Result> results = new UserListCache<>("userLists.results");
+    static final UserListCache<Task> tasks = new UserListCache<>("userLists.tasks");
+
+    static {
+        // Writes of the other instances, and foreign key cascades
+        ChangeNotifier.subscribe("User_Team", change -> {
+            if (change.userId() != null) {
+                invalidateUser(change.userId());
+            }
+        });
+        ChangeNotifier.subscribe("User", change -> {
+            if (change.op().equals("DELETE") && change.id() != null) {
+                invalidateUser(change.id());
+            }
+        });
+        for (String table : List.of("Goal", "Result", "Task")) {
+            ChangeNotifier.subscribe(table, change -> {
+                if (change.teamIds() == null) {
+                    invalidateAll();
+                } else {
+                    invalidateTeams(change.teamIds());
+                }
+            });
+        }
+        ChangeNotifier.onResync(UserListCache::invalidateAll);
+    }
+
+    // User -> (page -> list)
+    private final LruCache<Integer, Map<String, List<T>>> lists;
+
+    private UserListCache(String name) {
+        this.lists = new LruCache<>(name,
+                EnvHelper.getInt("USER_LIST_CACHE_SIZE", 1_000),
+                Duration.ofSeconds(EnvHelper.getInt("USER_LIST_CACHE_TTL_SECONDS", 300)));
+        caches.add(this);
+    }
+
+    /**
+     * Get a page of the list of a user, loading (and caching) it when missing
+     *
+     * @param userId: id of the user
+     * @param page:   identifies the page (position, size, fields read, filters...)
+     * @param loader: used to load the page from the database
+     * @return page of the list of the user (not modifiable)
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    List<T> get(int userId, String page, SqlSupplier<List<T>> loader)
+            throws ClassNotFoundException, SQLException, IOException {
+        UnitOfWork uow = UnitOfWork.current();
+        if (uow != null && uow.isTransactional()) {
+            // May see uncommitted data, must not be cached
+            return loader.get();
+        }
+
+        Map<String, List<T>> pages = lists.get(userId);
+        if (pages == null) {
+            long indexedAt = generation;
+            List<Integer> teams = findTeams(userId);
+            synchronized (index) {
+                if (generation != indexedAt) {
+                    // Invalidated while the teams were read, they may be outdated: not cached
+                    return loader.get();
+                }
+                // Indexed with the creation of the map, so no write can fall in between
+                for (int teamId : teams) {
+                    usersByTeam.computeIfAbsent(teamId, k -> ConcurrentHashMap.newKeySet()).add(userId);
+                }
+                pages = lists.get(userId, ConcurrentHashMap::new);
+            }
+        }
+        // An invalidation drops the whole map: a page loaded meanwhile goes to the dropped map
+        List<T> list = pages.get(page);
+        if (list == null) {
+            String flight = lists.getName() + ":" + userId + ":" + page + "@" + System.identityHashCode(pages);
+            list = SingleFlight.run(flight, () -> List.copyOf(loader.get()));
+            if (pages.size() >= MAX_PAGES_PER_USER) {
+                pages.clear();
+            }
+            pages.put(page, list);
+        }
+        return list;
+    }
+
+    /**
+     * Forget the lists of a user (e.g. after a membership change), now and once the transaction is committed
+     *
+     * @param userId: id of the user
+     */
+    static void invalidateUser(int userId) {
+        invalidateUserNow(userId);
+        UnitOfWork.afterCommit(() -> invalidateUserNow(userId));
+    }
+
+    /**
+     * Forget the lists of the members of some teams, now and once the transaction is committed
+     *
+     * @param teamIds: ids of the teams (null values are ignored)
+     */
+    static void invalidateTeams(Integer... teamIds) {
+        invalidateTeams(Arrays.asList(teamIds));
+    }
+
+    /**
+     * Forget the lists of the members of some teams, now and once the transaction is committed
+     *
+     * @param teamIds: ids of the teams (null values are ignored)
+     */
+    static void invalidateTeams(Collection<Integer> teamIds) {
+        List<Integer> teams = new ArrayList<>(teamIds);
+        invalidateTeamsNow(teams);
+        UnitOfWork.afterCommit(() -> invalidateTeamsNow(teams));
+    }
+
+    /**
+     * Forget all the lists
+     */
+    static void invalidateAll() {
+        synchronized (index) {
+            generation++;
+            usersByTeam.clear();
+            for (UserListCache<?> cache : caches) {
+                cache.lists.invalidateAll();
+            }
+        }
+    }
+
+    private static void invalidateUserNow(int userId) {
+        synchronized (index) {
+            generation++;
+            for (UserListCache<?> cache : caches) {
+                cache.lists.invalidate(userId);
+            }
+        }
+    }
+
+    private static void invalidateTeamsNow(Collection<Integer> teamIds) {
+        synchronized (index) {
+            generation++;
+            for (Integer teamId : teamIds) {
+                if (teamId == null) {
+                    continue;
+                }
+                Set<Integer> users = usersByTeam.remove(teamId);
+                if (users != null) {
+                    users.forEach(UserListCache::invalidateUserNow);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the teams of a user
+     *
+     * @param userId: id of the user
+     * @return ids of the teams
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    private static List<Integer> findTeams(int userId) throws ClassNotFoundException, SQLException, IOException {
+        return findIds("SELECT teamId FROM \"User_Team\" WHERE userId = ?", userId);
+    }
+
+    /**
+     * Find the team of a goal
+     *
+     * @param goalId: id of the goal
+     * @return id of the team, null if none
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    static Integer teamOfGoal(int goalId) throws ClassNotFoundException, SQLException, IOException {
+        return firstOrNull(findIds("SELECT teamId FROM \"Goal\" WHERE id = ?", goalId));
+    }
+
+    /**
+     * Find the team of a result (through its goal)
+     *
+     * @param resultId: id of the result
+     * @return id of the team, null if none
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    static Integer teamOfResult(int resultId) throws ClassNotFoundException, SQLException, IOException {
+        return firstOrNull(findIds("""
+                SELECT g.teamId
+                FROM "Result" r
+                INNER JOIN "Goal" g ON g.id = r.goalId
+                WHERE r.id = ?
+                """, resultId));
+    }
+
+    /**
+     * Find the team of a task (through its result and goal)
+     *
+     * @param taskId: id of the task
+     * @return id of the team, null if none
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    static Integer teamOfTask(int taskId) throws ClassNotFoundException, SQLException, IOException {
+        return firstOrNull(findIds("""
+                SELECT g.teamId
+                FROM "Task" t
+                INNER JOIN "Result" r ON r.id = t.resultId
+                INNER JOIN "Goal" g ON g.id = r.goalId
+                WHERE t.id = ?
+                """, taskId));
+    }
+
+    /**
+     * Find the teams having goals in a project
+     *
+     * @param projectId: id of the project
+     * @return ids of the teams
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    static List<Integer> teamsOfProject(int projectId) throws ClassNotFoundException, SQLException, IOException {
+        return findIds("SELECT DISTINCT teamId FROM \"Goal\" WHERE projectId = ? AND teamId IS NOT NULL", projectId);
+    }
+
+    /**
+     * Find the teams of several goals
+     *
+     * @param goalIds: ids of the goals
+     * @return ids of the teams
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    static List<Integer> teamsOfGoals(Collection<Integer> goalIds) throws ClassNotFoundException, SQLException, IOException {
+        return findIds("SELECT DISTINCT teamId FROM \"Goal\" WHERE id = ANY(?)", goalIds);
+    }
+
+    /**
+     * Find the teams of several results (through their goals)
+     *
+     * @param resultIds: ids of the results
+     * @return ids of the teams
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    static List<Integer> teamsOfResults(Collection<Integer> resultIds) throws ClassNotFoundException, SQLException, IOException {
+        return findIds("""
+                SELECT DISTINCT g.teamId
+                FROM "Result" r
+                INNER JOIN "Goal" g ON g.id = r.goalId
+                WHERE r.id = ANY(?)
+                """, resultIds);
+    }
+
+    /**
+     * Find the teams of several tasks (through their results and goals)
+     *
+     * @param taskIds: ids of the tasks
+     * @return ids of the teams
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     */
+    static List<Integer> teamsOfTasks(Collection<Integer> taskIds) throws ClassNotFoundException, SQLException, IOException {
+        return findIds("""
+                SELECT DISTINCT g.teamId
+                FROM "Task" t
+                INNER JOIN "Result" r ON r.id = t.resultId
+                INNER JOIN "Goal" g ON g.id = r.goalId
+                WHERE t.id = ANY(?)
+                """, taskIds);
+    }
+
+    private static List<Integer> findIds(String query, int parameter)
+            throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, parameter);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    if (!rs.wasNull()) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static List<Integer> findIds(String query, Collection<Integer> parameter)
+            throws ClassNotFoundException, SQLException, IOException {
+        List<Integer> ids = new ArrayList<>();
+        if (parameter.isEmpty()) {
+            return ids;
+        }
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", parameter.toArray()));
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    if (!rs.wasNull()) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static Integer firstOrNull(List<Integer> ids) {
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+}
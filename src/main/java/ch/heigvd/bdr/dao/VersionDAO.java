@@ -0,0 +1,63 @@
+package ch.heigvd.bdr.dao;
+
+import ch.heigvd.bdr.misc.DatabaseUtil;
+import ch.heigvd.bdr.models.RowVersion;
+
+import java.io.IOException;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Set;
+
+/**
+ * Reads the versions maintained by the database triggers, without loading the rows themselves
+ */
+public class VersionDAO {
+    // Tables having a version and an updatedAt column
+    private static final Set<String> versionedTables = Set.of("Project", "User", "Team", "Goal", "Result", "Task");
+
+    /**
+     * Get the version of a row
+     *
+     * @param table: table of the row
+     * @param id:    id of the row
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @throws IOException
+     * @return version of the row, null if it does not exist
+     */
+    public RowVersion findRowVersion(String table, int id) throws ClassNotFoundException, SQLException, IOException {
+        if (!versionedTables.contains(table)) {
+            throw new IllegalArgumentException("Table without version: " + table);
+        }
+
+        String query = "SELECT version, updatedAt FROM \"" + table + "\" WHERE id = ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, id);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return mapToRowVersion(rs);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Map a result set to a row version
+     *
+     * @param rs: result set to use
+     * @throws SQLException
+     * @return version (with an UTC date)
+     */
+    private RowVersion mapToRowVersion(ResultSet rs) throws SQLException {
+        OffsetDateTime updatedAt = rs.getObject("updatedAt", OffsetDateTime.class);
+        LocalDateTime utc = updatedAt == null
+                ? LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC)
+                : updatedAt.withOffsetSameInstant(ZoneOffset.UTC).toLocalDateTime();
+        return new RowVersion(rs.getLong("version"), utc);
+    }
+}
@@ -1,5 +1,6 @@
 package ch.heigvd.bdr.misc;
 
+import ch.heigvd.bdr.models.UserRole;
 import io.javalin.security.RouteRole;
 
 /**
@@ -20,4 +21,17 @@ public enum AuthRole implements RouteRole {
         return this.value;
     }
 
+    /**
+     * Get the authorizations granted to a user role
+     *
+     * @param role: role of the user
+     * @return authorizations of the role
+     */
+    public static AuthRole fromUserRole(UserRole role) {
+        if (role == UserRole.ADMIN || role == UserRole.MANAGER) {
+            return SUPER;
+        }
+        return NORMAL;
+    }
+
 }
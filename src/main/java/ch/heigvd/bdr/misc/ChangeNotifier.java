@@ -0,0 +1,297 @@
+package ch.heigvd.bdr.misc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Listens to the changes notified by the database triggers (channel okr_changes)
+ * on a dedicated connection, so every backend instance can invalidate its
+ * in-memory caches when another instance writes.
+ * The connection is reopened when lost, and the caches are resynchronized
+ * (cleared) since the notifications sent in the meantime are lost.
+ */
+public class ChangeNotifier {
+    public static final String CHANNEL = "okr_changes";
+    private static final Logger log = LoggerFactory.getLogger(ChangeNotifier.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Delay between two checks of the connection when nothing is received
+    private static final int POLL_TIMEOUT_MS = 10_000;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final int MAX_NOTIFIED_TEAMS = 500;
+
+    private static final Map<String, List<Consumer<Change>>> listeners = new ConcurrentHashMap<>();
+    private static final List<Runnable> resyncListeners = new CopyOnWriteArrayList<>();
+
+    private static volatile Thread thread;
+    private static volatile boolean running;
+    private static volatile boolean connected;
+
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong local = new AtomicLong();
+    private static final AtomicLong reconnections = new AtomicLong();
+    private static final AtomicLong resyncs = new AtomicLong();
+
+    /**
+     * Change of a row, as sent by the notify_change trigger
+     *
+     * @param table:       table of the row
+     * @param op:          INSERT, UPDATE or DELETE
+     * @param id:          id of the row (null for the association tables)
+     * @param userId:      userId column of the row, if any
+     * @param teamId:      teamId column of the row, if any
+     * @param teamIds:     teams whose members see the row (goals, results and tasks), null if unknown
+     * @param roleChanged: true if the role column has been updated
+     * @param local:       true if the change was made by this instance (its caches are usually
+     *                     already up to date, except for the rows changed by the foreign key cascades)
+     */
+    public record Change(String table, String op, Integer id, Integer userId, Integer teamId,
+                         List<Integer> teamIds, boolean roleChanged, boolean local) {
+    }
+
+    /**
+     * Register an action to run when a row of a table is changed
+     *
+     * @param table:    table to watch
+     * @param listener: action to run
+     */
+    public static void subscribe(String table, Consumer<Change> listener) {
+        listeners.computeIfAbsent(table, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Notify a bulk change made without the row notifications (see the okr.bulk_import
+     * setting in db.sql). It is sent on commit, like the notifications of the triggers.
+     *
+     * @param conn:    connection of the transaction that made the change
+     * @param table:   table of the rows
+     * @param op:      INSERT, UPDATE or DELETE
+     * @param teamIds: teams whose members see the rows, null if unknown
+     * @throws SQLException
+     */
+    public static void notifyBulk(Connection conn, String table, String op, Collection<Integer> teamIds)
+            throws SQLException {
+        ObjectNode payload = mapper.createObjectNode();
+        payload.put("table", table);
+        payload.put("op", op);
+        payload.putNull("id");
+        // A payload must stay under 8000 bytes, too many teams are sent as unknown
+        if (teamIds == null || teamIds.size() > MAX_NOTIFIED_TEAMS) {
+            payload.putNull("teamIds");
+        } else {
+            teamIds.forEach(payload.putArray("teamIds")::add);
+        }
+        payload.put("origin", DatabaseUtil.getNodeId());
+
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT pg_notify(?, ?)")) {
+            pstmt.setString(1, CHANNEL);
+            pstmt.setString(2, payload.toString());
+            pstmt.execute();
+        }
+    }
+
+    /**
+     * Register an action to run when some notifications may have been lost
+     * (the listener connection has been reopened): the caches must be cleared
+     *
+     * @param listener: action to run
+     */
+    public static void onResync(Runnable listener) {
+        resyncListeners.add(listener);
+    }
+
+    /**
+     * Start listening in a background thread
+     */
+    public static synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(ChangeNotifier::run, "change-notifier");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop listening
+     */
+    public static synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Check if the changes are currently received (when not, the caches may miss some of them)
+     *
+     * @return true if the listener is connected
+     */
+    public static boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Get the state of the listener
+     *
+     * @return connection state and notification counters
+     */
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("node", DatabaseUtil.getNodeId());
+        metrics.put("connected", connected);
+        metrics.put("received", received.get());
+        metrics.put("local", local.get());
+        metrics.put("reconnections", reconnections.get());
+        metrics.put("resyncs", resyncs.get());
+        return metrics;
+    }
+
+    /**
+     * Listen until stopped, reopening the connection (with an exponential backoff) when it is lost
+     */
+    private static void run() {
+        long backoff = 500;
+        boolean firstConnection = true;
+        while (running) {
+            try (Connection conn = DatabaseUtil.openDedicatedConnection()) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+                connected = true;
+                backoff = 500;
+                if (!firstConnection) {
+                    reconnections.incrementAndGet();
+                }
+                firstConnection = false;
+                // Notifications sent while disconnected (or before the first connection) are lost
+                resync();
+
+                listen(conn);
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.warn("Change listener disconnected, retrying in {} ms: {}", backoff, e.getMessage());
+            } finally {
+                connected = false;
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * Dispatch the notifications received on an open connection
+     *
+     * @param conn: connection listening to the channel
+     * @throws SQLException
+     */
+    private static void listen(Connection conn) throws SQLException {
+        PGConnection pgConn = conn.unwrap(PGConnection.class);
+        while (running) {
+            PGNotification[] notifications = pgConn.getNotifications(POLL_TIMEOUT_MS);
+            if (notifications == null || notifications.length == 0) {
+                // Detect half-open connections, that would silently stop receiving notifications
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SELECT 1");
+                }
+                continue;
+            }
+
+            for (PGNotification notification : notifications) {
+                received.incrementAndGet();
+                dispatch(notification.getParameter());
+            }
+        }
+    }
+
+    /**
+     * Parse a notification and run the listeners of its table
+     *
+     * @param payload: JSON content of the notification
+     */
+    private static void dispatch(String payload) {
+        try {
+            JsonNode json = mapper.readTree(payload);
+            boolean isLocal = DatabaseUtil.getNodeId().equals(json.path("origin").asText());
+            if (isLocal) {
+                local.incrementAndGet();
+            }
+
+            Change change = new Change(
+                    json.path("table").asText(),
+                    json.path("op").asText(),
+                    intOrNull(json.get("id")),
+                    intOrNull(json.get("userId")),
+                    intOrNull(json.get("teamId")),
+                    intListOrNull(json.get("teamIds")),
+                    json.path("roleChanged").asBoolean(false),
+                    isLocal);
+
+            for (Consumer<Change> listener : listeners.getOrDefault(change.table(), List.of())) {
+                listener.accept(change);
+            }
+        } catch (Exception e) {
+            log.warn("Invalid change notification {}: {}", payload, e.getMessage());
+        }
+    }
+
+    /**
+     * Run the resync listeners
+     */
+    private static void resync() {
+        resyncs.incrementAndGet();
+        for (Runnable listener : resyncListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                log.warn("Cache resync failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static Integer intOrNull(JsonNode node) {
+        return node == null || node.isNull() ? null : node.asInt();
+    }
+
+    private static List<Integer> intListOrNull(JsonNode node) {
+        if (node == null || !node.isArray()) {
+            return null;
+        }
+        List<Integer> values = new ArrayList<>();
+        for (JsonNode value : node) {
+            if (!value.isNull()) {
+                values.add(value.asInt());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,122 @@
+package ch.heigvd.bdr.misc;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Version of a whole table (e.g. all the tasks): a counter and the date of the last write.
+ * The DAOs bump the tables they write once their transaction is committed (bumpAfterCommit),
+ * so a client always sees its own writes, and the change notifications of the database
+ * triggers (see ChangeNotifier) bump them for the writes of the other instances and the
+ * rows changed by the foreign key cascades.
+ * Used to answer conditional requests on the lists without reading them, and without
+ * any shared row to update in the transactions of the writers.
+ * <p>
+ * The versions are kept in memory: the ETags contain the start of the process, so two
+ * instances (or two runs) never send the same ETag for different data. While the
+ * notifications are not received (see ChangeNotifier.isConnected), the writes of the
+ * other instances are not counted: the versions must then not be trusted to answer a 304.
+ */
+public class CollectionVersion {
+    private static final ConcurrentHashMap<String, CollectionVersion> versions = new ConcurrentHashMap<>();
+    // Distinguishes the versions of this process from the ones of another instance or run
+    private static final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    static {
+        // Notifications may have been lost: every table may have changed
+        ChangeNotifier.onResync(() -> versions.values().forEach(CollectionVersion::bump));
+    }
+
+    private long version = 0;
+    // UTC epoch seconds (the precision of the HTTP dates), unknown changes before the start count as now
+    private long lastModified = Instant.now().getEpochSecond();
+
+    /**
+     * Get the version of a table, counting its changes from the first call
+     *
+     * @param table: name of the table
+     * @return version of the table
+     */
+    public static CollectionVersion of(String table) {
+        return versions.computeIfAbsent(table, CollectionVersion::watch);
+    }
+
+    /**
+     * Get the most recent modification date of several tables
+     *
+     * @param tables: names of the tables
+     * @return last modification date (UTC)
+     */
+    public static LocalDateTime lastModified(String... tables) {
+        long max = 0;
+        for (String table : tables) {
+            max = Math.max(max, of(table).getLastModifiedSeconds());
+        }
+        return LocalDateTime.ofEpochSecond(max, 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * Build a weak ETag from the versions of several tables.
+     * Unlike the modification date, it changes even for two writes in the same second.
+     *
+     * @param tables: names of the tables
+     * @return ETag of the data built from the tables
+     */
+    public static String etag(String... tables) {
+        StringBuilder etag = new StringBuilder("W/\"").append(epoch);
+        for (String table : tables) {
+            etag.append('-').append(of(table).getVersion());
+        }
+        return etag.append('"').toString();
+    }
+
+    /**
+     * Bump the versions of some tables once the current transaction is committed
+     * (immediately without transaction). Their notifications bump them again later,
+     * which only changes the ETags once more.
+     *
+     * @param tables: names of the written tables (including the ones changed by a cascade)
+     */
+    public static void bumpAfterCommit(String... tables) {
+        UnitOfWork.afterCommit(() -> {
+            for (String table : tables) {
+                of(table).bump();
+            }
+        });
+    }
+
+    /**
+     * Start counting the changes of a table
+     *
+     * @param table: name of the table
+     * @return version of the table
+     */
+    private static CollectionVersion watch(String table) {
+        CollectionVersion version = new CollectionVersion();
+        ChangeNotifier.subscribe(table, change -> version.bump());
+        return version;
+    }
+
+    /**
+     * Increment the version and set the modification date to now
+     */
+    public synchronized void bump() {
+        version++;
+        lastModified = Instant.now().getEpochSecond();
+    }
+
+    /**
+     * Get the number of changes received since the table is watched
+     *
+     * @return version of the table
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    private synchronized long getLastModifiedSeconds() {
+        return lastModified;
+    }
+}
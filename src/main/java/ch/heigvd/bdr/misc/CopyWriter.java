@@ -0,0 +1,111 @@
+package ch.heigvd.bdr.misc;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Writes rows to a table with COPY ... FROM STDIN (text format), the fastest way to
+ * load many rows into Postgres: the rows are sent as a stream, by buffers of 64 KB,
+ * without a statement per row.
+ */
+public class CopyWriter implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CopyIn copy;
+    private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+
+    private CopyWriter(CopyIn copy) {
+        this.copy = copy;
+    }
+
+    /**
+     * Start a COPY
+     *
+     * @param conn:  connection to use (it cannot run other statements until the COPY ends)
+     * @param query: COPY "Table" (columns) FROM STDIN statement
+     * @return writer of the rows
+     * @throws SQLException
+     */
+    public static CopyWriter open(Connection conn, String query) throws SQLException {
+        return new CopyWriter(conn.unwrap(PGConnection.class).getCopyAPI().copyIn(query));
+    }
+
+    /**
+     * Write a row
+     *
+     * @param values: values of the columns, in the order of the COPY statement (null for NULL)
+     * @throws SQLException
+     */
+    public void writeRow(Object... values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                buffer.append('\t');
+            }
+            appendValue(values[i]);
+        }
+        buffer.append('\n');
+        if (buffer.length() >= BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the last rows and end the COPY
+     *
+     * @return number of rows copied
+     * @throws SQLException
+     */
+    public long finish() throws SQLException {
+        flush();
+        return copy.endCopy();
+    }
+
+    /**
+     * Cancel the COPY if it has not been finished (e.g. after an error)
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        if (copy.isActive()) {
+            copy.cancelCopy();
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        byte[] data = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copy.writeToCopy(data, 0, data.length);
+        buffer.setLength(0);
+    }
+
+    /**
+     * Append a value escaped for the text format: \N for NULL, and backslashes,
+     * tabs and line breaks escaped with a backslash
+     *
+     * @param value: value to append
+     */
+    private void appendValue(Object value) {
+        if (value == null) {
+            buffer.append("\\N");
+            return;
+        }
+        String text = value instanceof Enum<?> constant ? constant.name() : value.toString();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\' -> buffer.append("\\\\");
+                case '\t' -> buffer.append("\\t");
+                case '\n' -> buffer.append("\\n");
+                case '\r' -> buffer.append("\\r");
+                default -> buffer.append(c);
+            }
+        }
+    }
+}
@@ -1,17 +1,77 @@
 package ch.heigvd.bdr.misc;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
 import java.sql.*;
 
+import org.postgresql.PGConnection;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
 public class DatabaseUtil {
+    // Maximum number of rows written by a single statement or JDBC batch (see the createAll/updateAll of the DAOs)
+    public static final int BATCH_SIZE = EnvHelper.getInt("DB_BATCH_SIZE", 500);
+    // Shared connection pool, created once by init()
+    private static volatile HikariDataSource dataSource;
+    // Identifies the connections of this backend instance (application_name in Postgres)
+    private static final String nodeId = buildNodeId();
 
     /**
-     * Method to establish and return a database connection
+     * Create the connection pool. Must be called once at startup, before any DAO is used.
+     * Sizing and timeouts can be tuned with the DB_POOL_* environment variables.
+     *
+     * @throws IOException
+     */
+    public static synchronized void init() throws IOException {
+        if (dataSource != null) {
+            return;
+        }
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("okr-pool");
+        config.setDriverClassName("org.postgresql.Driver");
+        config.setJdbcUrl(getUrl());
+        config.setDataSourceProperties(getProperties());
+        config.addDataSourceProperty("ApplicationName", nodeId);
+
+        config.setMinimumIdle(EnvHelper.getInt("DB_POOL_MIN_IDLE", 2));
+        config.setMaximumPoolSize(EnvHelper.getInt("DB_POOL_MAX_SIZE", 10));
+        // Idle connections above the minimum are evicted after this delay
+        config.setIdleTimeout(EnvHelper.getInt("DB_POOL_IDLE_TIMEOUT_MS", 60_000));
+        // Maximum time a caller waits to borrow a connection before failing
+        config.setConnectionTimeout(EnvHelper.getInt("DB_POOL_BORROW_TIMEOUT_MS", 5_000));
+        // Connections are validated (Connection.isValid) when borrowed after being idle
+        config.setValidationTimeout(EnvHelper.getInt("DB_POOL_VALIDATION_TIMEOUT_MS", 2_000));
+        config.setMaxLifetime(EnvHelper.getInt("DB_POOL_MAX_LIFETIME_MS", 1_800_000));
+        config.setRegisterMbeans(true);
+
+        dataSource = new HikariDataSource(config);
+    }
+
+    /**
+     * Close the connection pool
+     */
+    public static synchronized void close() {
+        if (dataSource != null) {
+            dataSource.close();
+            dataSource = null;
+        }
+    }
+
+    /**
+     * Method to get a database connection. Inside a unit of work, the connection
+     * bound to the current request is returned, otherwise one is borrowed from the pool.
+     * Closing the returned connection gives it back to the pool.
      *
      * @return
      * @throws ClassNotFoundException
@@ -19,11 +79,108 @@ public class DatabaseUtil {
      * @throws SQLException
      */
     public static Connection getConnection() throws ClassNotFoundException, IOException, SQLException {
-        String url = String.format(
+        UnitOfWork uow = UnitOfWork.current();
+        if (uow != null) {
+            return uow.getConnection();
+        }
+        return borrowConnection();
+    }
+
+    /**
+     * Borrow a connection directly from the pool
+     *
+     * @return pooled connection
+     * @throws IOException
+     * @throws SQLException
+     */
+    static Connection borrowConnection() throws IOException, SQLException {
+        if (dataSource == null) {
+            init();
+        }
+        return dataSource.getConnection();
+    }
+
+    /**
+     * Open a connection outside of the pool, for long-lived usages (e.g. LISTEN).
+     * The caller is responsible for closing it.
+     *
+     * @return new connection
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static Connection openDedicatedConnection() throws IOException, SQLException {
+        Properties props = getProperties();
+        props.setProperty("ApplicationName", nodeId);
+        props.setProperty("tcpKeepAlive", "true");
+        return DriverManager.getConnection(getUrl(), props);
+    }
+
+    /**
+     * Get the identifier of this backend instance, set as application_name on its connections
+     *
+     * @return id of the node
+     */
+    public static String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Get the current state of the connection pool
+     *
+     * @return pool metrics (active, idle, total and waiting connections)
+     */
+    public static Map<String, Object> getPoolMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        HikariDataSource ds = dataSource;
+        if (ds == null || ds.getHikariPoolMXBean() == null) {
+            metrics.put("status", "NOT_INITIALIZED");
+            return metrics;
+        }
+
+        HikariPoolMXBean pool = ds.getHikariPoolMXBean();
+        metrics.put("active", pool.getActiveConnections());
+        metrics.put("idle", pool.getIdleConnections());
+        metrics.put("total", pool.getTotalConnections());
+        metrics.put("waiting", pool.getThreadsAwaitingConnection());
+        metrics.put("minIdle", ds.getMinimumIdle());
+        metrics.put("maxSize", ds.getMaximumPoolSize());
+        return metrics;
+    }
+
+    /**
+     * Build the identifier of this backend instance from the NODE_ID environment variable,
+     * or from the host name (the container id with docker) and a random suffix
+     *
+     * @return id of the node
+     */
+    private static String buildNodeId() {
+        String id = System.getenv("NODE_ID");
+        if (id == null || id.isBlank()) {
+            String host = System.getenv("HOSTNAME");
+            id = "okr-" + (host == null ? "api" : host) + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        return id;
+    }
+
+    /**
+     * Build the JDBC url from the environment
+     *
+     * @return jdbc url of the database
+     */
+    private static String getUrl() {
+        return String.format(
                 "jdbc:postgresql://db:%s/%s?options=-c%%20search_path=public",
                 System.getenv("DB_PORT"),
                 System.getenv("DB_NAME"));
+    }
 
+    /**
+     * Build the connection properties (credentials are read once from the docker secret)
+     *
+     * @return connection properties
+     * @throws IOException
+     */
+    private static Properties getProperties() throws IOException {
         Properties props = new Properties();
         String dbUser = System.getenv("DB_USER");
         String dbPassword = new String(Files.readAllBytes(Paths.get("/run/secrets/db_password"))).trim();
@@ -32,10 +189,7 @@ public class DatabaseUtil {
         props.setProperty("user", dbUser);
         props.setProperty("password", dbPassword);
         props.setProperty("ssl", dbSsl);
-
-        Class.forName("org.postgresql.Driver");
-
-        return DriverManager.getConnection(url, props);
+        return props;
     }
 
     // Method to execute a prepared SELECT statement
@@ -62,6 +216,85 @@ public class DatabaseUtil {
         }
     }
 
+    /**
+     * Execute a prepared SELECT statement through a server-side cursor: the rows are fetched
+     * from the database by batches of STREAM_FETCH_SIZE (default 500) while they are handled,
+     * so they are never all held in memory
+     *
+     * @param query:      query to execute
+     * @param rowHandler: called for each row
+     * @param parameters: parameters of the query
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static void streamPreparedQuery(String query, SqlConsumer<ResultSet> rowHandler, Object... parameters)
+            throws ClassNotFoundException, IOException, SQLException {
+        try (Connection connection = getConnection()) {
+            // The driver only uses a cursor outside of the autocommit mode
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement pstmt = connection.prepareStatement(query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                pstmt.setFetchSize(EnvHelper.getInt("STREAM_FETCH_SIZE", 500));
+                for (int i = 0; i < parameters.length; i++) {
+                    pstmt.setObject(i + 1, parameters[i]);
+                }
+
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        rowHandler.accept(rs);
+                    }
+                }
+            } finally {
+                if (autoCommit) {
+                    // Ends the read-only transaction of the cursor
+                    connection.setAutoCommit(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Execute a COPY ... TO STDOUT statement, writing its output as the database sends it,
+     * so it is never held in memory
+     *
+     * @param query: COPY statement to execute
+     * @param out:   stream to write the output to
+     * @return number of rows copied
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static long copyOut(String query, OutputStream out)
+            throws ClassNotFoundException, IOException, SQLException {
+        try (Connection connection = getConnection()) {
+            return connection.unwrap(PGConnection.class).getCopyAPI().copyOut(query, out);
+        }
+    }
+
+    /**
+     * Build the VALUES list of a multi-row INSERT
+     *
+     * @param row:   placeholders of a row, e.g. "(?, ?::\"TaskPriority\")"
+     * @param count: number of rows
+     * @return rows separated by commas
+     */
+    public static String valuesList(String row, int count) {
+        return String.join(", ", Collections.nCopies(count, row));
+    }
+
+    /**
+     * Get the error of a failed JDBC batch. The driver reports it as the next exception
+     * of the BatchUpdateException, which carries the SQL state (see DatabaseExceptionHandler).
+     *
+     * @param e: exception thrown by executeBatch
+     * @return error of the failing statement
+     */
+    public static SQLException batchFailure(BatchUpdateException e) {
+        return e.getNextException() != null ? e.getNextException() : e;
+    }
+
     // Method to execute a prepared INSERT/UPDATE/DELETE statement
     public static int executePreparedUpdate(String query, Object... parameters)
             throws ClassNotFoundException, IOException, SQLException {
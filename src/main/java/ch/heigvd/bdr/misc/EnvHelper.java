@@ -0,0 +1,19 @@
+package ch.heigvd.bdr.misc;
+
+public class EnvHelper {
+    /**
+     * Read an integer from the environment
+     *
+     * @param name:         name of the variable
+     * @param defaultValue: value used when the variable is missing or invalid
+     * @return value of the variable
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || !StringHelper.isInteger(value)) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+}
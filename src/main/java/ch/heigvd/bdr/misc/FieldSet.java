@@ -0,0 +1,199 @@
+package ch.heigvd.bdr.misc;
+
+import io.javalin.http.Context;
+import io.javalin.json.JavalinJackson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Fields requested with the fields query parameter (sparse fieldsets), e.g. ?fields=id,title,done.
+ * The large columns of the fields that are not requested are not read from the database
+ * (see select), and the fields that are not requested are removed from the JSON (see filter).
+ * The id is always sent, as it is needed to page through the lists.
+ */
+public class FieldSet {
+    /**
+     * Fields that can be requested for a model
+     *
+     * @param columns: columns of the table, named as the fields of the model
+     * @param lazy:    columns that are only read when their field is requested (read as NULL otherwise)
+     * @param others:  other fields of the model (e.g. embedded entities), only removed from the JSON
+     */
+    public record Model(List<String> columns, Set<String> lazy, Set<String> others) {
+        /**
+         * Check if a field can be requested
+         *
+         * @param field: name of the field
+         * @return true if the field exists
+         */
+        public boolean has(String field) {
+            return columns.contains(field) || others.contains(field);
+        }
+    }
+
+    public static final Model PROJECT = new Model(List.of("id", "name", "description"),
+            Set.of("name", "description"), Set.of());
+    public static final Model TEAM = new Model(List.of("id", "name", "managerId"),
+            Set.of("name"), Set.of("manager"));
+    public static final Model USER = new Model(List.of("id", "firstname", "lastname", "email", "role"),
+            Set.of("firstname", "lastname", "email"), Set.of());
+    public static final Model GOAL = new Model(List.of("id", "name", "description", "note", "tag", "projectId", "teamId"),
+            Set.of("name", "description", "note", "tag"), Set.of("team", "project"));
+    public static final Model RESULT = new Model(List.of("id", "title", "createdAt", "endsAt", "note", "tag", "goalId"),
+            Set.of("title", "createdAt", "endsAt", "note", "tag"), Set.of("goal"));
+    public static final Model TASK = new Model(List.of("id", "title", "startsAt", "done", "note", "tag", "priority", "deadline", "resultId"),
+            Set.of("title", "startsAt", "note", "tag"), Set.of());
+
+    private final Model model;
+    // Requested fields, null for all
+    private final Set<String> fields;
+    private final ObjectMapper mapper;
+
+    private FieldSet(Model model, Set<String> fields, ObjectMapper mapper) {
+        this.model = model;
+        this.fields = fields;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Get the set of all the fields of a model
+     *
+     * @param model: model of the entities
+     * @return set of all the fields
+     */
+    public static FieldSet all(Model model) {
+        return new FieldSet(model, null, null);
+    }
+
+    /**
+     * Read the fields query parameter of a request. An invalid parameter is answered with a 400.
+     *
+     * @param ctx:   context of the request
+     * @param model: model of the sent entities
+     * @return requested fields (all when the parameter is missing), null if the parameter is invalid
+     */
+    public static FieldSet from(Context ctx, Model model) {
+        String parameter = ctx.queryParam("fields");
+        if (parameter == null || parameter.isBlank()) {
+            return all(model);
+        }
+
+        // Sorted, so the same fields in another order share the cached lists
+        Set<String> fields = new TreeSet<>();
+        fields.add("id");
+        for (String field : parameter.split(",")) {
+            field = field.trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            if (!model.has(field)) {
+                ctx.status(400).json(Map.of("message", "Unknown field " + field));
+                return null;
+            }
+            fields.add(field);
+        }
+
+        // Same configuration as the responses sent with ctx.json()
+        ObjectMapper mapper = ctx.jsonMapper() instanceof JavalinJackson jackson
+                ? jackson.getMapper()
+                : JavalinJackson.defaultMapper();
+        return new FieldSet(model, fields, mapper);
+    }
+
+    /**
+     * Get the set of the requested fields and of another field (e.g. needed to sort)
+     *
+     * @param field: field to add
+     * @return fields to read
+     */
+    public FieldSet with(String field) {
+        if (isAll() || fields.contains(field)) {
+            return this;
+        }
+        Set<String> extended = new TreeSet<>(fields);
+        extended.add(field);
+        return new FieldSet(model, extended, mapper);
+    }
+
+    /**
+     * Check if all the fields are requested
+     *
+     * @return true if the fields are not restricted
+     */
+    public boolean isAll() {
+        return fields == null;
+    }
+
+    /**
+     * Build the select list of a query reading the table of the model: the lazy
+     * columns of the fields that are not requested are replaced by NULL
+     *
+     * @param alias: alias of the table in the query, null if none
+     * @return select list, the columns keep their names
+     */
+    public String select(String alias) {
+        String prefix = alias == null ? "" : alias + ".";
+        if (isAll()) {
+            return prefix + "*";
+        }
+        return model.columns().stream()
+                .map(column -> model.lazy().contains(column) && !fields.contains(column)
+                        ? "NULL AS " + column
+                        : prefix + column)
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Get a key identifying the requested fields (e.g. to cache what is read with them)
+     *
+     * @return key of the fields
+     */
+    public String key() {
+        return isAll() ? "*" : String.join(",", fields);
+    }
+
+    /**
+     * Remove the fields that are not requested from an entity, a list or a page of entities
+     *
+     * @param data: data to send
+     * @return data to send as JSON
+     */
+    public Object filter(Object data) {
+        if (isAll() || data == null) {
+            return data;
+        }
+        if (data instanceof Page<?> page) {
+            return new Page<>(filterAll(page.items()), page.nextCursor());
+        }
+        if (data instanceof Collection<?> collection) {
+            return filterAll(collection);
+        }
+        return filterOne(data);
+    }
+
+    private List<JsonNode> filterAll(Collection<?> entities) {
+        List<JsonNode> nodes = new ArrayList<>(entities.size());
+        for (Object entity : entities) {
+            nodes.add(filterOne(entity));
+        }
+        return nodes;
+    }
+
+    private JsonNode filterOne(Object entity) {
+        JsonNode node = mapper.valueToTree(entity);
+        if (node instanceof ObjectNode object) {
+            object.retain(fields);
+        }
+        return node;
+    }
+}
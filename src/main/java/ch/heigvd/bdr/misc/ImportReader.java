@@ -0,0 +1,326 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads the rows of an uploaded file (CSV with a header line, or NDJSON: one JSON object
+ * per line) one at a time, so a large import is never held in memory.
+ */
+public class ImportReader implements Closeable {
+    public static final List<String> FORMATS = List.of("csv", "ndjson");
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final BufferedReader reader;
+    private final boolean csv;
+    private List<String> header;
+    // Number of the last line read
+    private int line = 0;
+
+    /**
+     * Row of the file
+     *
+     * @param line:   number of the line the row starts on (1 is the first line of the file)
+     * @param values: values by column, null for the empty ones
+     * @param error:  why the row could not be read, null if it has been read
+     */
+    public record Row(int line, Map<String, String> values, String error) {
+        /**
+         * Get a text value
+         *
+         * @param name:      column of the value
+         * @param maxLength: maximum number of characters
+         * @param required:  true if the value cannot be missing
+         * @return value, null if missing
+         * @throws IllegalArgumentException if the value is invalid
+         */
+        public String getString(String name, int maxLength, boolean required) {
+            String value = values.get(name);
+            if (value == null || value.isBlank()) {
+                if (required) {
+                    throw new IllegalArgumentException("'" + name + "' is required.");
+                }
+                return null;
+            }
+            if (value.length() > maxLength) {
+                throw new IllegalArgumentException("'" + name + "' is longer than " + maxLength + " characters.");
+            }
+            return value;
+        }
+
+        /**
+         * Get an integer value
+         *
+         * @param name:     column of the value
+         * @param required: true if the value cannot be missing
+         * @return value, null if missing
+         * @throws IllegalArgumentException if the value is invalid
+         */
+        public Integer getInt(String name, boolean required) {
+            String value = getString(name, Integer.MAX_VALUE, required);
+            if (value == null) {
+                return null;
+            }
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("'" + name + "' must be an integer.");
+            }
+        }
+
+        /**
+         * Get a boolean value
+         *
+         * @param name:         column of the value
+         * @param defaultValue: value used when it is missing
+         * @return value
+         * @throws IllegalArgumentException if the value is invalid
+         */
+        public boolean getBoolean(String name, boolean defaultValue) {
+            String value = getString(name, Integer.MAX_VALUE, false);
+            if (value == null) {
+                return defaultValue;
+            }
+            return switch (value.trim().toLowerCase()) {
+                case "true", "t", "1" -> true;
+                case "false", "f", "0" -> false;
+                default -> throw new IllegalArgumentException("'" + name + "' must be true or false.");
+            };
+        }
+
+        /**
+         * Get an enum value
+         *
+         * @param name:         column of the value
+         * @param type:         enum of the value
+         * @param defaultValue: value used when it is missing
+         * @return value
+         * @throws IllegalArgumentException if the value is invalid
+         */
+        public <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+            String value = getString(name, Integer.MAX_VALUE, false);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Enum.valueOf(type, value.trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("'" + name + "' must be among " + EnumSet.allOf(type) + ".");
+            }
+        }
+
+        /**
+         * Get a date: ISO-8601 date (2025-01-31) or date-time (2025-01-31T08:00:00 or 2025-01-31 08:00:00)
+         *
+         * @param name:     column of the value
+         * @param required: true if the value cannot be missing
+         * @return value, null if missing
+         * @throws IllegalArgumentException if the value is invalid
+         */
+        public Timestamp getTimestamp(String name, boolean required) {
+            String value = getString(name, Integer.MAX_VALUE, required);
+            if (value == null) {
+                return null;
+            }
+            value = value.trim();
+            try {
+                if (value.length() == 10) {
+                    return Timestamp.valueOf(LocalDate.parse(value).atStartOfDay());
+                }
+                return Timestamp.valueOf(LocalDateTime.parse(value.replace(' ', 'T')));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("'" + name + "' must be an ISO-8601 date.");
+            }
+        }
+    }
+
+    private ImportReader(InputStream in, boolean csv) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        this.csv = csv;
+    }
+
+    /**
+     * Start reading a file
+     *
+     * @param in:     content of the file
+     * @param format: format of the file, see FORMATS
+     * @return reader of the rows
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    public static ImportReader open(InputStream in, String format) {
+        if (!FORMATS.contains(format)) {
+            throw new IllegalArgumentException("The format must be one of " + FORMATS + ".");
+        }
+        return new ImportReader(in, format.equals("csv"));
+    }
+
+    /**
+     * Read the next rows
+     *
+     * @param count: maximum number of rows
+     * @return rows read, empty at the end of the file
+     * @throws IOException
+     */
+    public List<Row> next(int count) throws IOException {
+        List<Row> rows = new ArrayList<>(count);
+        Row row;
+        while (rows.size() < count && (row = next()) != null) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Read the next row, skipping the blank lines
+     *
+     * @return row, null at the end of the file
+     * @throws IOException
+     */
+    public Row next() throws IOException {
+        if (csv && header == null) {
+            List<String> names = readCsvRecord();
+            if (names == null) {
+                return null;
+            }
+            header = names.stream().map(name -> name == null ? "" : name.trim()).toList();
+        }
+
+        while (true) {
+            int start = line + 1;
+            if (csv) {
+                List<String> fields = readCsvRecord();
+                if (fields == null) {
+                    return null;
+                }
+                if (fields.size() == 1 && fields.get(0) == null) {
+                    continue;
+                }
+                if (fields.size() != header.size()) {
+                    return new Row(start, Map.of(), "Expected " + header.size() + " fields, found " + fields.size() + ".");
+                }
+                Map<String, String> values = new HashMap<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    values.put(header.get(i), fields.get(i));
+                }
+                return new Row(start, values, null);
+            }
+
+            String text = reader.readLine();
+            if (text == null) {
+                return null;
+            }
+            line++;
+            if (text.isBlank()) {
+                continue;
+            }
+            return parseJson(line, text);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Parse a line of an NDJSON file
+     *
+     * @param number: number of the line
+     * @param text:   content of the line
+     * @return row
+     */
+    private static Row parseJson(int number, String text) {
+        JsonNode json;
+        try {
+            json = mapper.readTree(text);
+        } catch (IOException e) {
+            return new Row(number, Map.of(), "Invalid JSON.");
+        }
+        if (json == null || !json.isObject()) {
+            return new Row(number, Map.of(), "The line must be a JSON object.");
+        }
+        Map<String, String> values = new HashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = json.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode value = field.getValue();
+            values.put(field.getKey(), value.isNull() ? null : value.isValueNode() ? value.asText() : value.toString());
+        }
+        return new Row(number, values, null);
+    }
+
+    /**
+     * Read a CSV record (RFC 4180): fields separated by commas, optionally quoted with
+     * double quotes, in which case they may contain commas, quotes (doubled) and line breaks
+     *
+     * @return fields (null for the empty unquoted ones), null at the end of the file
+     * @throws IOException
+     */
+    private List<String> readCsvRecord() throws IOException {
+        int c = reader.read();
+        if (c == -1) {
+            return null;
+        }
+        line++;
+
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean inQuotes = false;
+        while (true) {
+            if (inQuotes) {
+                if (c == -1) {
+                    // Unterminated quote: the rest of the file is the field
+                    break;
+                }
+                if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        inQuotes = false;
+                        reader.reset();
+                    }
+                } else {
+                    if (c == '\n') {
+                        line++;
+                    }
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.isEmpty() && !quoted) {
+                quoted = true;
+                inQuotes = true;
+            } else if (c == ',') {
+                fields.add(quoted || !field.isEmpty() ? field.toString() : null);
+                field.setLength(0);
+                quoted = false;
+            } else if (c == '\n' || c == -1) {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+        fields.add(quoted || !field.isEmpty() ? field.toString() : null);
+        return fields;
+    }
+}
@@ -0,0 +1,50 @@
+package ch.heigvd.bdr.misc;
+
+import io.javalin.http.Context;
+import io.javalin.json.JavalinJackson;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sends a JSON array written element by element on the response stream, as the rows
+ * are read from the database, instead of building the whole list in memory first
+ */
+public class JsonStream {
+    /**
+     * Source of the elements of a stream (e.g. a DAO method reading through a cursor)
+     *
+     * @param <T>: type of the elements
+     */
+    @FunctionalInterface
+    public interface Source<T> {
+        void forEach(SqlConsumer<T> consumer) throws ClassNotFoundException, IOException, SQLException;
+    }
+
+    /**
+     * Stream a JSON array to the response
+     *
+     * @param ctx:    context to use
+     * @param source: elements of the array
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static <T> void send(Context ctx, Source<T> source)
+            throws ClassNotFoundException, IOException, SQLException {
+        // Same configuration as the responses sent with ctx.json()
+        ObjectMapper mapper = ctx.jsonMapper() instanceof JavalinJackson jackson
+                ? jackson.getMapper()
+                : JavalinJackson.defaultMapper();
+
+        ctx.contentType("application/json");
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(ctx.outputStream())) {
+            generator.writeStartArray();
+            source.forEach(generator::writeObject);
+            generator.writeEndArray();
+        }
+    }
+}
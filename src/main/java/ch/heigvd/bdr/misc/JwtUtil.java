@@ -0,0 +1,205 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+
+import ch.heigvd.bdr.models.User;
+
+/**
+ * Issues and verifies the signed tokens used to authenticate the users.
+ * Verification is done in memory, without any database access.
+ */
+public class JwtUtil {
+    private static final String ISSUER = "okr-api";
+    private static final String ROLE_CLAIM = "role";
+    // Issue date in milliseconds, the standard iat claim only has seconds
+    private static final String ISSUED_AT_CLAIM = "iatMillis";
+
+    // Signing key and verifier are built once and reused for every request
+    private static volatile Algorithm algorithm;
+    private static volatile JWTVerifier verifier;
+
+    // Tokens of a user issued before this instant (epoch milliseconds) are rejected
+    private static final Map<Integer, Long> revokedBefore = new ConcurrentHashMap<>();
+
+    /**
+     * Data carried by a valid token
+     *
+     * @param userId: id of the authenticated user
+     * @param role:   authorizations of the user
+     */
+    public record AuthToken(int userId, AuthRole role) {
+    }
+
+    /**
+     * Issue a new token for a user
+     *
+     * @param user: user to authenticate
+     * @return signed token
+     * @throws IOException
+     */
+    public static String issue(User user) throws IOException {
+        Instant now = Instant.now();
+        return JWT.create()
+                .withIssuer(ISSUER)
+                .withSubject(String.valueOf(user.getId()))
+                .withClaim(ROLE_CLAIM, AuthRole.fromUserRole(user.getRole()).name())
+                .withClaim(ISSUED_AT_CLAIM, now.toEpochMilli())
+                .withIssuedAt(Date.from(now))
+                .withExpiresAt(Date.from(now.plusSeconds(getTtl())))
+                .sign(getAlgorithm());
+    }
+
+    /**
+     * Verify a token
+     *
+     * @param token: token sent by the client
+     * @return data of the token, null if the token is invalid, expired or revoked
+     * @throws IOException
+     */
+    public static AuthToken verify(String token) throws IOException {
+        DecodedJWT jwt;
+        try {
+            jwt = getVerifier().verify(token);
+        } catch (JWTVerificationException e) {
+            return null;
+        }
+
+        if (jwt.getSubject() == null || !StringHelper.isInteger(jwt.getSubject())) {
+            return null;
+        }
+        int userId = Integer.parseInt(jwt.getSubject());
+
+        Long revokedAt = revokedBefore.get(userId);
+        if (revokedAt != null && getIssuedAtMillis(jwt) < revokedAt) {
+            return null;
+        }
+
+        try {
+            return new AuthToken(userId, AuthRole.valueOf(jwt.getClaim(ROLE_CLAIM).asString()));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Revoke all the tokens issued to a user so far (e.g. after a role change).
+     * Must be called once the change is committed: a token issued before the commit
+     * still carries the old role.
+     *
+     * @param userId: user whose tokens are revoked
+     */
+    public static void revoke(int userId) {
+        long now = System.currentTimeMillis();
+        revokedBefore.put(userId, now);
+
+        // Revocations older than the token lifetime are useless: those tokens already expired
+        long expired = now - getTtl() * 1000;
+        revokedBefore.values().removeIf(revokedAt -> revokedAt < expired);
+    }
+
+    /**
+     * Check that a signing secret is configured, to fail at startup rather than on the first token
+     *
+     * @throws IOException
+     */
+    public static void init() throws IOException {
+        getVerifier();
+    }
+
+    /**
+     * Get the lifetime of the tokens
+     *
+     * @return lifetime in seconds (JWT_TTL_SECONDS, one hour by default)
+     */
+    public static long getTtl() {
+        return EnvHelper.getInt("JWT_TTL_SECONDS", 3600);
+    }
+
+    /**
+     * Get the issue date of a token
+     *
+     * @param jwt: verified token
+     * @return issue date in epoch milliseconds
+     */
+    private static long getIssuedAtMillis(DecodedJWT jwt) {
+        Long millis = jwt.getClaim(ISSUED_AT_CLAIM).asLong();
+        if (millis != null) {
+            return millis;
+        }
+        // Issued without the claim: the start of its second
+        Instant issuedAt = jwt.getIssuedAtAsInstant();
+        return issuedAt == null ? 0 : issuedAt.toEpochMilli();
+    }
+
+    /**
+     * Get the signing algorithm, built once from the secret
+     *
+     * @return HMAC256 algorithm
+     * @throws IOException
+     */
+    private static Algorithm getAlgorithm() throws IOException {
+        if (algorithm == null) {
+            synchronized (JwtUtil.class) {
+                if (algorithm == null) {
+                    algorithm = Algorithm.HMAC256(getSecret());
+                }
+            }
+        }
+        return algorithm;
+    }
+
+    /**
+     * Get the token verifier, built once
+     *
+     * @return verifier
+     * @throws IOException
+     */
+    private static JWTVerifier getVerifier() throws IOException {
+        if (verifier == null) {
+            synchronized (JwtUtil.class) {
+                if (verifier == null) {
+                    verifier = JWT.require(getAlgorithm()).withIssuer(ISSUER).build();
+                }
+            }
+        }
+        return verifier;
+    }
+
+    /**
+     * Read the signing secret from the JWT_SECRET variable or the jwt_secret docker secret.
+     * It must be shared by all the instances, so there is no generated fallback.
+     *
+     * @throws IllegalStateException if no secret is configured
+     * @throws IOException
+     * @return secret
+     */
+    private static String getSecret() throws IOException {
+        String secret = System.getenv("JWT_SECRET");
+        if (secret != null && !secret.isBlank()) {
+            return secret;
+        }
+
+        Path secretFile = Paths.get("/run/secrets/jwt_secret");
+        if (Files.exists(secretFile)) {
+            secret = new String(Files.readAllBytes(secretFile)).trim();
+            if (!secret.isEmpty()) {
+                return secret;
+            }
+        }
+
+        throw new IllegalStateException("No JWT secret configured: set JWT_SECRET or the jwt_secret docker secret");
+    }
+}
@@ -0,0 +1,273 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Thread-safe in-memory cache bounded in size (least recently used entries are
+ * evicted first), whose entries can expire after a time to live.
+ * Every cache is registered by name to expose its hit/miss/eviction counters.
+ *
+ * @param <K>: key
+ * @param <V>: value
+ */
+public class LruCache<K, V> {
+    // All the caches of the application, by name
+    private static final Map<String, LruCache<?, ?>> registry = new ConcurrentSkipListMap<>();
+
+    private final String name;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    // Incremented on every invalidation, used to drop values loaded before it
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private record Entry<V>(V value, long expiresAt) {
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param name:    name of the cache (used for the metrics)
+     * @param maxSize: maximum number of entries
+     * @param ttl:     time to live of the entries, null if they never expire
+     */
+    public LruCache(String name, int maxSize, Duration ttl) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl == null ? 0 : ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > LruCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        registry.put(name, this);
+    }
+
+    /**
+     * Get a value from the cache
+     *
+     * @param key: key of the value
+     * @return cached value, null if missing or expired
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt() != 0 && entry.expiresAt() - System.nanoTime() < 0) {
+            entries.remove(key);
+            evictions++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value();
+    }
+
+    /**
+     * Get a value from the cache, loading (and caching) it when missing.
+     * Concurrent loads of the same key are coalesced (see SingleFlight).
+     *
+     * @param key:    key of the value
+     * @param loader: used to load the value, a null value is not cached
+     * @return cached or loaded value
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public V get(K key, SqlSupplier<V> loader) throws ClassNotFoundException, IOException, SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            V value = get(key);
+            if (value != null) {
+                return value;
+            }
+            loadGeneration = generation;
+        }
+
+        // The generation is part of the key: a load started before an invalidation is not shared after it
+        V value = SingleFlight.run(name + "#" + loadGeneration + ":" + key, loader);
+        if (value != null) {
+            synchronized (this) {
+                // Do not cache a value read before an invalidation that happened during the load
+                if (loadGeneration == generation) {
+                    put(key, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Get several values, loading (and caching) the missing ones with a single call of the loader
+     *
+     * @param keys:   keys of the values
+     * @param loader: used to load the missing values, by key (the values not found are omitted)
+     * @return values found, in the order of the keys
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public Map<K, V> getAll(Collection<K> keys, SqlFunction<Collection<K>, Map<K, V>> loader)
+            throws ClassNotFoundException, IOException, SQLException {
+        Map<K, V> found = new HashMap<>();
+        List<K> missing = new ArrayList<>();
+        long loadGeneration;
+        synchronized (this) {
+            for (K key : keys) {
+                V value = get(key);
+                if (value != null) {
+                    found.put(key, value);
+                } else if (!missing.contains(key)) {
+                    missing.add(key);
+                }
+            }
+            loadGeneration = generation;
+        }
+
+        if (!missing.isEmpty()) {
+            Map<K, V> loaded = loader.apply(missing);
+            found.putAll(loaded);
+            synchronized (this) {
+                // Do not cache values read before an invalidation that happened during the load
+                if (loadGeneration == generation) {
+                    loaded.forEach(this::put);
+                }
+            }
+        }
+
+        Map<K, V> values = new LinkedHashMap<>();
+        for (K key : keys) {
+            V value = found.get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Check if a value is cached, without updating the counters nor the recency of the entry
+     *
+     * @param key: key of the value
+     * @return true if the value is cached and not expired
+     */
+    public synchronized boolean contains(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && (entry.expiresAt() == 0 || entry.expiresAt() - System.nanoTime() >= 0);
+    }
+
+    /**
+     * Add or replace a value
+     *
+     * @param key:   key of the value
+     * @param value: value to cache
+     */
+    public synchronized void put(K key, V value) {
+        long expiresAt = 0;
+        if (ttlNanos != 0) {
+            // 0 is reserved for entries without expiration
+            expiresAt = System.nanoTime() + ttlNanos;
+            if (expiresAt == 0) {
+                expiresAt = 1;
+            }
+        }
+        entries.put(key, new Entry<>(value, expiresAt));
+    }
+
+    /**
+     * Add a value if none is cached yet
+     *
+     * @param key:   key of the value
+     * @param value: value to cache
+     */
+    public synchronized void putIfAbsent(K key, V value) {
+        if (!contains(key)) {
+            put(key, value);
+        }
+    }
+
+    /**
+     * Remove a value
+     *
+     * @param key: key of the value
+     */
+    public synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all the values
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Get the number of cached values (including the expired ones not evicted yet)
+     *
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the counters of the cache
+     *
+     * @return size, hits, misses, hit ratio and evictions of the cache
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", entries.size());
+        stats.put("maxSize", maxSize);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    /**
+     * Get the counters of all the caches of the application
+     *
+     * @return counters by cache name
+     */
+    public static Map<String, Object> getAllStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, LruCache<?, ?>> cache : registry.entrySet()) {
+            stats.put(cache.getKey(), cache.getValue().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Get the name of the cache
+     *
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,44 @@
+package ch.heigvd.bdr.misc;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Page of a list (see Pagination), sent as a JSON array with a Link header to the next page
+ *
+ * @param items:      entities of the page
+ * @param nextCursor: cursor of the next page, null if it is the last page
+ * @param <T>:        entity
+ */
+public record Page<T>(List<T> items, String nextCursor) {
+    /**
+     * Build a page from the entities loaded for a pagination
+     *
+     * @param items:      entities loaded (at most the limit of the pagination)
+     * @param pagination: pagination of the request
+     * @param idOf:       get the id of an entity
+     * @return page, with a next cursor if it is full
+     */
+    public static <T> Page<T> of(List<T> items, Pagination pagination, Function<T, Integer> idOf) {
+        return of(items, pagination, idOf, item -> null);
+    }
+
+    /**
+     * Build a page from the entities loaded for a pagination, in a list ordered by another field than the id
+     *
+     * @param items:      entities loaded (at most the limit of the pagination)
+     * @param pagination: pagination of the request
+     * @param idOf:       get the id of an entity
+     * @param keyOf:      get the sort key of an entity ("<field>:<value>", null if ordered by id)
+     * @return page, with a next cursor if it is full
+     */
+    public static <T> Page<T> of(List<T> items, Pagination pagination, Function<T, Integer> idOf,
+                                 Function<T, String> keyOf) {
+        String nextCursor = null;
+        if (!items.isEmpty() && items.size() >= pagination.limit()) {
+            T last = items.get(items.size() - 1);
+            nextCursor = Pagination.encodeCursor(idOf.apply(last), keyOf.apply(last));
+        }
+        return new Page<>(items, nextCursor);
+    }
+}
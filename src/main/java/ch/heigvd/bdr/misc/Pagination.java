@@ -0,0 +1,147 @@
+package ch.heigvd.bdr.misc;
+
+import io.javalin.http.Context;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keyset pagination of a list request (?after=<cursor>&limit=<n>).
+ * The lists are ordered by id (or by another field, then by id), and the cursors are
+ * opaque to the clients: they encode the id (and sort key) of the last entity of the previous page.
+ *
+ * @param after:    id after which the page starts, null for the first page
+ * @param afterKey: sort key ("<field>:<value>") of the entity after which the page starts,
+ *                  null if the list is ordered by id
+ * @param limit:    maximum number of entities in the page
+ */
+public record Pagination(Integer after, String afterKey, int limit) {
+    public static final int DEFAULT_LIMIT = EnvHelper.getInt("PAGE_SIZE", 100);
+    public static final int MAX_LIMIT = EnvHelper.getInt("MAX_PAGE_SIZE", 1_000);
+
+    private static final String CURSOR_PREFIX = "id:";
+    private static final String KEY_CURSOR_PREFIX = "key:";
+
+    /**
+     * Content of a cursor
+     *
+     * @param id:  id of the last entity of the previous page
+     * @param key: sort key of this entity, null if the list is ordered by id
+     */
+    public record Cursor(int id, String key) {
+    }
+
+    /**
+     * Get the pagination of a request
+     *
+     * @param ctx: context to use
+     * @return pagination, null if the parameters are invalid (400 has been answered)
+     */
+    public static Pagination from(Context ctx) {
+        Cursor after = null;
+        String cursor = ctx.queryParam("after");
+        if (cursor != null && !cursor.isEmpty()) {
+            after = decodeCursor(cursor);
+            if (after == null) {
+                ctx.status(400).json(Map.of("message", "Invalid 'after' cursor."));
+                return null;
+            }
+        }
+
+        int limit = DEFAULT_LIMIT;
+        String limitParam = ctx.queryParam("limit");
+        if (limitParam != null) {
+            if (!StringHelper.isInteger(limitParam) || Integer.parseInt(limitParam) < 1
+                    || Integer.parseInt(limitParam) > MAX_LIMIT) {
+                ctx.status(400).json(Map.of("message", "'limit' must be between 1 and " + MAX_LIMIT + "."));
+                return null;
+            }
+            limit = Integer.parseInt(limitParam);
+        }
+        return after == null ? new Pagination(null, null, limit) : new Pagination(after.id(), after.key(), limit);
+    }
+
+    /**
+     * Encode the cursor of the page following an entity
+     *
+     * @param id: id of the last entity of the page
+     * @return opaque cursor
+     */
+    public static String encodeCursor(int id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((CURSOR_PREFIX + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encode the cursor of the page following an entity, in a list ordered by another field than the id
+     *
+     * @param id:  id of the last entity of the page
+     * @param key: sort key of this entity ("<field>:<value>"), null if the list is ordered by id
+     * @return opaque cursor
+     */
+    public static String encodeCursor(int id, String key) {
+        if (key == null) {
+            return encodeCursor(id);
+        }
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((KEY_CURSOR_PREFIX + id + ":" + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a cursor
+     *
+     * @param cursor: cursor sent by the client
+     * @return content of the cursor, null if the cursor is invalid
+     */
+    public static Cursor decodeCursor(String cursor) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (decoded.startsWith(CURSOR_PREFIX)) {
+                return new Cursor(Integer.parseInt(decoded.substring(CURSOR_PREFIX.length())), null);
+            }
+            if (decoded.startsWith(KEY_CURSOR_PREFIX)) {
+                // key:<id>:<field>:<value>, the value may contain colons
+                String[] parts = decoded.substring(KEY_CURSOR_PREFIX.length()).split(":", 2);
+                if (parts.length < 2 || !parts[1].contains(":")) {
+                    return null;
+                }
+                return new Cursor(Integer.parseInt(parts[0]), parts[1]);
+            }
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set the Link header pointing to the next page (same route and parameters, other cursor)
+     *
+     * @param ctx:        context to use
+     * @param nextCursor: cursor of the next page, null if it is the last page
+     */
+    public static void setLinkHeader(Context ctx, String nextCursor) {
+        if (nextCursor == null) {
+            return;
+        }
+        StringBuilder url = new StringBuilder(ctx.path()).append("?after=").append(nextCursor);
+        for (Map.Entry<String, List<String>> param : ctx.queryParamMap().entrySet()) {
+            if (param.getKey().equals("after")) {
+                continue;
+            }
+            for (String value : param.getValue()) {
+                url.append('&').append(encode(param.getKey())).append('=').append(encode(value));
+            }
+        }
+        if (ctx.queryParam("limit") == null) {
+            url.append("&limit=").append(DEFAULT_LIMIT);
+        }
+        ctx.header("Link", "<" + url + ">; rel=\"next\"");
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
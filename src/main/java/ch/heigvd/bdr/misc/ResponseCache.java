@@ -0,0 +1,333 @@
+package ch.heigvd.bdr.misc;
+
+import io.javalin.http.Context;
+import io.javalin.json.JsonMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the serialized (and gzipped) JSON bodies of the hot GET endpoints, so an
+ * unchanged resource is sent from memory instead of being serialized again.
+ * The keys contain the versions of the data (ETags), so a write makes the
+ * cached bodies unreachable: they are never served stale and simply age out.
+ * Concurrent misses of the same key are coalesced into a single load (see SingleFlight).
+ * <p>
+ * The last body sent for each list is also kept as a snapshot, which is served:
+ * - without querying the database while no change has been notified since it was
+ * built and it is younger than STALE_WHILE_REVALIDATE_SECONDS (it is then
+ * refreshed in the background);
+ * - when the database fails, if it is younger than STALE_IF_ERROR_SECONDS.
+ */
+public class ResponseCache {
+    private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+
+    // Smaller bodies are not worth compressing
+    private static final int GZIP_MIN_SIZE = 1_024;
+    private static final long STALE_WHILE_REVALIDATE_MS =
+            EnvHelper.getInt("STALE_WHILE_REVALIDATE_SECONDS", 5) * 1_000L;
+    private static final long STALE_IF_ERROR_MS = EnvHelper.getInt("STALE_IF_ERROR_SECONDS", 300) * 1_000L;
+
+    private static final LruCache<String, Body> bodies = new LruCache<>("responses",
+            EnvHelper.getInt("RESPONSE_CACHE_SIZE", 500),
+            Duration.ofSeconds(EnvHelper.getInt("RESPONSE_CACHE_TTL_SECONDS", 600)));
+    // Last snapshot of each resource (route, parameters and scope, without the version)
+    private static final LruCache<String, Snapshot> snapshots = new LruCache<>("responses.snapshots",
+            EnvHelper.getInt("RESPONSE_CACHE_SIZE", 500),
+            Duration.ofMillis(Math.max(STALE_WHILE_REVALIDATE_MS, STALE_IF_ERROR_MS)));
+
+    // Changes notified by table, and number of resynchronizations (changes may have been lost)
+    private static final Map<String, AtomicLong> changes = new ConcurrentHashMap<>();
+    private static final AtomicLong resyncs = new AtomicLong();
+
+    private static final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService refresher = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "response-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ChangeNotifier.onResync(resyncs::incrementAndGet);
+    }
+
+    /**
+     * Serialized body
+     *
+     * @param json:       JSON encoded in UTF-8
+     * @param gzip:       gzipped JSON, null if the body is too small to be compressed
+     * @param nextCursor: cursor of the next page if the body is a page (see Page), null otherwise
+     */
+    public record Body(byte[] json, byte[] gzip, String nextCursor) {
+    }
+
+    /**
+     * Last body sent for a resource
+     *
+     * @param body:         serialized body
+     * @param etag:         ETag of the body
+     * @param lastModified: modification date of the body (UTC)
+     * @param changes:      changes counted (see changeCount) before the body was loaded
+     * @param createdAt:    time the snapshot was built (ms)
+     */
+    public record Snapshot(Body body, String etag, LocalDateTime lastModified, long changes, long createdAt) {
+        /**
+         * Get the age of the snapshot
+         *
+         * @return age in ms
+         */
+        public long age() {
+            return System.currentTimeMillis() - createdAt;
+        }
+    }
+
+    /**
+     * Build the key of a response
+     *
+     * @param ctx:      context of the request
+     * @param versions: versions (ETags) of the data sent in the response
+     * @return key of the response
+     */
+    public static String key(Context ctx, String... versions) {
+        StringBuilder key = new StringBuilder(ctx.method().name()).append(' ').append(ctx.path());
+        if (ctx.queryString() != null) {
+            key.append('?').append(ctx.queryString());
+        }
+        for (String version : versions) {
+            key.append(' ').append(version);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Send a cached response, or load, serialize and cache it when missing.
+     * Identical concurrent requests share the same load and serialization.
+     * The cache is not used while the changes of the other instances are not received,
+     * as the versions of the tables in the key may be outdated (see CollectionVersion).
+     *
+     * @param ctx:    context to use
+     * @param key:    key of the response
+     * @param loader: used to load the object to send as JSON
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static void send(Context ctx, String key, SqlSupplier<?> loader)
+            throws ClassNotFoundException, IOException, SQLException {
+        JsonMapper mapper = ctx.jsonMapper();
+        Body body = ChangeNotifier.isConnected()
+                ? bodies.get(key, () -> serialize(mapper, loader.get()))
+                : serialize(mapper, loader.get());
+        write(ctx, body);
+    }
+
+    /**
+     * Load (or get from the cache) the body of a resource, and keep it as its last snapshot.
+     * While the changes of the other instances are not received, the ETag may be outdated:
+     * the body is then loaded without using (or filling) the cache.
+     *
+     * @param mapper:       JSON mapper to use
+     * @param resource:     resource (key without the version)
+     * @param etag:         ETag of the data
+     * @param lastModified: modification date of the data (UTC)
+     * @param changes:      changes counted before the version of the data was read
+     * @param loader:       used to load the object to send as JSON
+     * @return snapshot, null if the loader returned null
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static Snapshot load(JsonMapper mapper, String resource, String etag, LocalDateTime lastModified,
+                                long changes, SqlSupplier<?> loader)
+            throws ClassNotFoundException, IOException, SQLException {
+        Body body = ChangeNotifier.isConnected()
+                ? bodies.get(resource + " " + etag, () -> serialize(mapper, loader.get()))
+                : serialize(mapper, loader.get());
+        if (body == null) {
+            snapshots.invalidate(resource);
+            return null;
+        }
+        Snapshot snapshot = new Snapshot(body, etag, lastModified, changes, System.currentTimeMillis());
+        snapshots.put(resource, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Find the snapshot of a resource that can be served without querying the database:
+     * no change has been notified since it was built (and the changes are being received)
+     *
+     * @param resource: resource (key without the version)
+     * @param changes:  changes currently counted for the tables of the resource
+     * @return snapshot, null if none can be served
+     */
+    public static Snapshot findFresh(String resource, long changes) {
+        if (STALE_WHILE_REVALIDATE_MS <= 0 || !ChangeNotifier.isConnected()) {
+            return null;
+        }
+        Snapshot snapshot = snapshots.get(resource);
+        if (snapshot == null || snapshot.changes() != changes || snapshot.age() > STALE_WHILE_REVALIDATE_MS) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Find the snapshot of a resource that can be served when the database fails
+     *
+     * @param resource: resource (key without the version)
+     * @return snapshot, null if none is recent enough
+     */
+    public static Snapshot findStale(String resource) {
+        Snapshot snapshot = snapshots.get(resource);
+        if (snapshot == null || snapshot.age() > STALE_IF_ERROR_MS) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Check if a fresh snapshot should be refreshed (once it has spent half of its window)
+     *
+     * @param snapshot: snapshot served
+     * @return true if it should be refreshed
+     */
+    public static boolean shouldRefresh(Snapshot snapshot) {
+        return snapshot.age() * 2 >= STALE_WHILE_REVALIDATE_MS;
+    }
+
+    /**
+     * Refresh the snapshot of a resource in the background, unless it is already being refreshed
+     *
+     * @param resource: resource (key without the version)
+     * @param refresh:  loads the resource again (see load)
+     */
+    public static void refresh(String resource, SqlSupplier<?> refresh) {
+        if (!refreshing.add(resource)) {
+            return;
+        }
+        refresher.execute(() -> {
+            try {
+                refresh.get();
+            } catch (Exception e) {
+                // The snapshot is kept, it may still be served while the database fails
+                log.warn("Background refresh of {} failed: {}", resource, e.getMessage());
+            } finally {
+                refreshing.remove(resource);
+            }
+        });
+    }
+
+    /**
+     * Count the changes that may affect data built from some tables: changes notified on
+     * these tables, transactions committed by this instance and lost notifications
+     *
+     * @param tables: tables the data is built from
+     * @return counter that changes whenever the data may have changed
+     */
+    public static long changeCount(String... tables) {
+        long count = resyncs.get() + UnitOfWork.getCommitCount();
+        for (String table : tables) {
+            count += changes.computeIfAbsent(table, ResponseCache::watch).get();
+        }
+        return count;
+    }
+
+    /**
+     * Write a serialized body, compressed if the client accepts it
+     *
+     * @param ctx:  context to use
+     * @param body: body to write
+     */
+    public static void write(Context ctx, Body body) {
+        Pagination.setLinkHeader(ctx, body.nextCursor());
+        ctx.contentType("application/json");
+        ctx.header("Vary", "Accept-Encoding");
+        if (body.gzip() != null && acceptsGzip(ctx.header("Accept-Encoding"))) {
+            // Javalin does not compress again a response having a Content-Encoding
+            ctx.header("Content-Encoding", "gzip");
+            ctx.result(body.gzip());
+        } else {
+            ctx.result(body.json());
+        }
+    }
+
+    /**
+     * Start counting the changes of a table
+     *
+     * @param table: table to watch
+     * @return counter of the changes
+     */
+    private static AtomicLong watch(String table) {
+        AtomicLong counter = new AtomicLong();
+        ChangeNotifier.subscribe(table, change -> counter.incrementAndGet());
+        return counter;
+    }
+
+    /**
+     * Serialize an object to JSON (and gzip)
+     *
+     * @param mapper: JSON mapper to use
+     * @param data:   object to serialize
+     * @return serialized body, null if there is no object
+     */
+    private static Body serialize(JsonMapper mapper, Object data) {
+        if (data == null) {
+            return null;
+        }
+        String nextCursor = null;
+        if (data instanceof Page<?> page) {
+            // Sent as an array, the next page is given in the Link header
+            nextCursor = page.nextCursor();
+            data = page.items();
+        }
+        byte[] json = mapper.toJsonString(data, data.getClass()).getBytes(StandardCharsets.UTF_8);
+        return new Body(json, json.length >= GZIP_MIN_SIZE ? gzip(json) : null, nextCursor);
+    }
+
+    /**
+     * Check if an Accept-Encoding header allows gzip
+     *
+     * @param acceptEncoding: content of the header
+     * @return true if gzip is accepted
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            // gzip;q=0 means refused
+            return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,49 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+
+/**
+ * Caches the authorizations of the users identified by the X-User-ID header,
+ * so the role check does not query the database on every request.
+ * Unknown ids are cached as well (with the NONE role).
+ */
+public class RoleCache {
+    private static final LruCache<Integer, AuthRole> roles = new LruCache<>("roles",
+            EnvHelper.getInt("ROLE_CACHE_SIZE", 10_000),
+            Duration.ofSeconds(EnvHelper.getInt("ROLE_CACHE_TTL_SECONDS", 60)));
+
+    /**
+     * Get the authorizations of a user
+     *
+     * @param userId: id of the user
+     * @param loader: used to read the authorizations from the database on a cache miss
+     * @return authorizations of the user, NONE if the user does not exist
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static AuthRole get(int userId, SqlSupplier<AuthRole> loader)
+            throws ClassNotFoundException, IOException, SQLException {
+        return roles.get(userId, loader);
+    }
+
+    /**
+     * Forget the authorizations of a user (must be called when the user is created, updated or deleted)
+     *
+     * @param userId: id of the user
+     */
+    public static void invalidate(int userId) {
+        roles.invalidate(userId);
+        // Drop again what may have been read before the write was committed
+        UnitOfWork.afterCommit(() -> roles.invalidate(userId));
+    }
+
+    /**
+     * Forget the authorizations of all the users
+     */
+    public static void invalidateAll() {
+        roles.invalidateAll();
+    }
+}
@@ -0,0 +1,113 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent reads: while a value is being loaded, the other
+ * requests asking for the same key wait for it instead of querying the database again.
+ * Reads made in a transaction are never shared, as they may see uncommitted data.
+ */
+public class SingleFlight {
+    private static final Map<String, CompletableFuture<Object>> flights = new ConcurrentHashMap<>();
+
+    private static final AtomicLong calls = new AtomicLong();
+    private static final AtomicLong executions = new AtomicLong();
+
+    /**
+     * Load a value, or wait for the identical load already running
+     *
+     * @param key:    identifies the load (must contain everything the value depends on)
+     * @param loader: used to load the value
+     * @return loaded value
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static <V> V run(String key, SqlSupplier<V> loader)
+            throws ClassNotFoundException, IOException, SQLException {
+        calls.incrementAndGet();
+        UnitOfWork uow = UnitOfWork.current();
+        if (uow != null && uow.isTransactional()) {
+            executions.incrementAndGet();
+            return loader.get();
+        }
+
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            return await(running);
+        }
+
+        executions.incrementAndGet();
+        try {
+            V value = loader.get();
+            flight.complete(value);
+            return value;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Get the counters of the coalescing
+     *
+     * @return number of calls, of loads actually run, and ratio of the calls served by another load
+     */
+    public static Map<String, Object> getMetrics() {
+        long callCount = calls.get();
+        long executionCount = executions.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("calls", callCount);
+        metrics.put("executions", executionCount);
+        metrics.put("coalesced", callCount - executionCount);
+        metrics.put("coalescingRatio", callCount == 0 ? 0.0 : (double) (callCount - executionCount) / callCount);
+        metrics.put("inFlight", flights.size());
+        return metrics;
+    }
+
+    /**
+     * Wait for a load run by another request
+     *
+     * @param flight: load to wait for
+     * @return loaded value
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> V await(CompletableFuture<Object> flight)
+            throws ClassNotFoundException, IOException, SQLException {
+        try {
+            return (V) flight.join();
+        } catch (CompletionException e) {
+            // Rethrow the error of the load as is
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof ClassNotFoundException classNotFoundException) {
+                throw classNotFoundException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Consumer of values read from the database
+ *
+ * @param <T>: type of the consumed value
+ */
+@FunctionalInterface
+public interface SqlConsumer<T> {
+    void accept(T value) throws ClassNotFoundException, IOException, SQLException;
+}
@@ -0,0 +1,15 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Function reading values from the database
+ *
+ * @param <T>: type of the argument
+ * @param <R>: type of the result
+ */
+@FunctionalInterface
+public interface SqlFunction<T, R> {
+    R apply(T value) throws ClassNotFoundException, IOException, SQLException;
+}
@@ -0,0 +1,14 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Supplier of a value read from the database
+ *
+ * @param <T>: type of the supplied value
+ */
+@FunctionalInterface
+public interface SqlSupplier<T> {
+    T get() throws ClassNotFoundException, IOException, SQLException;
+}
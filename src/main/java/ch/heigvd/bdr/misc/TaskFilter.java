@@ -0,0 +1,183 @@
+package ch.heigvd.bdr.misc;
+
+import ch.heigvd.bdr.models.Task;
+import ch.heigvd.bdr.models.TaskDeadline;
+import ch.heigvd.bdr.models.TaskPriority;
+import io.javalin.http.Context;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filters and sort order of a task list, e.g. GET /tasks?done=false&priority=HIGH,MEDIUM&sort=-startsAt.
+ * Only whitelisted fields can be filtered and sorted on: the DAO builds the SQL from
+ * these values, never from the raw parameters.
+ *
+ * @param done:       done state of the tasks, null for any
+ * @param priorities: accepted priorities, empty for any
+ * @param deadlines:  accepted deadlines, empty for any
+ * @param tag:        tag of the tasks, null for any
+ * @param startsFrom: earliest start date (included), null for none
+ * @param startsTo:   latest start date (excluded), null for none
+ * @param sort:       field the tasks are ordered by (then by id), see SORTS
+ * @param descending: true for a descending order
+ */
+public record TaskFilter(Boolean done, Set<TaskPriority> priorities, Set<TaskDeadline> deadlines, String tag,
+                         Timestamp startsFrom, Timestamp startsTo, String sort, boolean descending) {
+    // NOT NULL columns only: the keyset condition (field, id) > (?, ?) would skip the NULL values
+    public static final List<String> SORTS = List.of("id", "title", "startsAt", "priority", "deadline");
+
+    /**
+     * Read the filters and sort order of a request. Invalid parameters are answered with a 400.
+     *
+     * @param ctx:        context of the request
+     * @param pagination: pagination of the request, its cursor must have been built with the same sort order
+     * @return filter, null if the parameters are invalid
+     */
+    public static TaskFilter from(Context ctx, Pagination pagination) {
+        try {
+            Boolean done = null;
+            String doneParam = ctx.queryParam("done");
+            if (doneParam != null) {
+                if (!doneParam.equals("true") && !doneParam.equals("false")) {
+                    throw new IllegalArgumentException("'done' must be true or false.");
+                }
+                done = Boolean.parseBoolean(doneParam);
+            }
+
+            Set<TaskPriority> priorities = parseEnums(ctx, "priority", TaskPriority.class);
+            Set<TaskDeadline> deadlines = parseEnums(ctx, "deadline", TaskDeadline.class);
+
+            String tag = ctx.queryParam("tag");
+            Timestamp startsFrom = parseDate(ctx.queryParam("startsFrom"));
+            Timestamp startsTo = parseDate(ctx.queryParam("startsTo"));
+
+            String sort = ctx.queryParam("sort") == null ? "id" : ctx.queryParam("sort");
+            boolean descending = sort.startsWith("-");
+            if (descending) {
+                sort = sort.substring(1);
+            }
+            if (!SORTS.contains(sort)) {
+                throw new IllegalArgumentException("'sort' must be one of " + SORTS + ", prefixed by - for a descending order.");
+            }
+
+            TaskFilter filter = new TaskFilter(done, priorities, deadlines, tag, startsFrom, startsTo, sort, descending);
+            if (pagination.after() != null) {
+                filter.afterValue(pagination);
+            }
+            return filter;
+        } catch (IllegalArgumentException e) {
+            // Otherwise thrown while reading the value of a forged cursor
+            String message = e.getMessage() != null && e.getMessage().startsWith("'")
+                    ? e.getMessage()
+                    : "Invalid 'after' cursor.";
+            ctx.status(400).json(Map.of("message", message));
+            return null;
+        }
+    }
+
+    /**
+     * Get the sort key of a task, to build the cursor of the next page
+     *
+     * @param task: last task of a page
+     * @return sort key ("<field>:<value>"), null if the tasks are ordered by id
+     */
+    public String sortKey(Task task) {
+        Object value = switch (sort) {
+            case "title" -> task.getTitle();
+            case "startsAt" -> task.getStartsAt();
+            case "priority" -> task.getPriority();
+            case "deadline" -> task.getDeadline();
+            default -> null;
+        };
+        return value == null ? null : sort + ":" + value;
+    }
+
+    /**
+     * Get the value of the sort field of the task after which a page starts
+     *
+     * @param pagination: pagination of the request
+     * @return value to compare the sort field with, null if the tasks are ordered by id
+     * @throws IllegalArgumentException if the cursor has been built for another sort order
+     */
+    public Object afterValue(Pagination pagination) {
+        if (sort.equals("id")) {
+            if (pagination.afterKey() != null) {
+                throw new IllegalArgumentException("'after' cursor built for another sort order.");
+            }
+            return null;
+        }
+        String prefix = sort + ":";
+        if (pagination.afterKey() == null || !pagination.afterKey().startsWith(prefix)) {
+            throw new IllegalArgumentException("'after' cursor built for another sort order.");
+        }
+        String value = pagination.afterKey().substring(prefix.length());
+        return switch (sort) {
+            case "startsAt" -> Timestamp.valueOf(value);
+            case "priority" -> TaskPriority.valueOf(value);
+            case "deadline" -> TaskDeadline.valueOf(value);
+            default -> value;
+        };
+    }
+
+    /**
+     * Get a key identifying the filters and the sort order (e.g. to cache what is read with them)
+     *
+     * @return key of the filter
+     */
+    public String key() {
+        return "done=" + done + "&priority=" + priorities + "&deadline=" + deadlines
+                + "&tag=" + tag + "&startsFrom=" + startsFrom + "&startsTo=" + startsTo
+                + "&sort=" + (descending ? "-" : "") + sort;
+    }
+
+    /**
+     * Parse a comma-separated list of enum constants
+     *
+     * @param ctx:   context of the request
+     * @param name:  name of the parameter
+     * @param type:  enum of the values
+     * @return values, empty if the parameter is missing
+     */
+    private static <E extends Enum<E>> Set<E> parseEnums(Context ctx, String name, Class<E> type) {
+        Set<E> values = EnumSet.noneOf(type);
+        String parameter = ctx.queryParam(name);
+        if (parameter == null || parameter.isBlank()) {
+            return values;
+        }
+        for (String value : parameter.trim().split("\\s*,\\s*")) {
+            try {
+                values.add(Enum.valueOf(type, value));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("'" + name + "' must be among " + EnumSet.allOf(type) + ".");
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Parse an ISO-8601 date (2025-01-31) or date-time (2025-01-31T08:00:00)
+     *
+     * @param value: value of the parameter
+     * @return timestamp, null if there is no value
+     */
+    private static Timestamp parseDate(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            if (value.length() == 10) {
+                return Timestamp.valueOf(LocalDate.parse(value).atStartOfDay());
+            }
+            return Timestamp.valueOf(LocalDateTime.parse(value));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("'" + value + "' is not an ISO-8601 date.");
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package ch.heigvd.bdr.misc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binds a single database connection (and optionally a single transaction)
+ * to the current HTTP request. Every DAO call made while a unit of work is
+ * active reuses the same connection, and entities loaded by id are kept in
+ * an identity map so they are read only once per request.
+ */
+public class UnitOfWork {
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+    // Number of transactions committed by this instance
+    private static final AtomicLong commits = new AtomicLong();
+
+    private final boolean transactional;
+    private Connection connection;
+    private Connection sharedConnection;
+    // Identity map: entity type -> (id -> entity), null values mean "not found"
+    private final Map<Class<?>, Map<Object, Object>> identityMap = new HashMap<>();
+    // Actions to run once the transaction is committed
+    private final List<Runnable> afterCommit = new ArrayList<>();
+
+    private UnitOfWork(boolean transactional) {
+        this.transactional = transactional;
+    }
+
+    /**
+     * Start a unit of work for the current thread
+     *
+     * @param transactional: true to run all the statements in one transaction
+     * @throws SQLException
+     */
+    public static void begin(boolean transactional) throws SQLException {
+        if (current.get() != null) {
+            // Left over by a previous request that did not end properly
+            end(false);
+        }
+        current.set(new UnitOfWork(transactional));
+    }
+
+    /**
+     * End the unit of work of the current thread and release its connection
+     *
+     * @param success: true to commit the transaction, false to roll it back
+     * @throws SQLException
+     */
+    public static void end(boolean success) throws SQLException {
+        UnitOfWork uow = current.get();
+        current.remove();
+        if (uow != null) {
+            uow.release(success);
+            if (success) {
+                uow.afterCommit.forEach(Runnable::run);
+            }
+        }
+    }
+
+    /**
+     * Get the unit of work of the current thread
+     *
+     * @return current unit of work, null if none is active
+     */
+    public static UnitOfWork current() {
+        return current.get();
+    }
+
+    /**
+     * Find an entity in the identity map of the current request, loading it on the first lookup
+     *
+     * @param type:   type of the entity
+     * @param id:     id of the entity
+     * @param loader: used to load the entity from the database
+     * @return found entity, null if it does not exist
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static <T> T find(Class<T> type, Object id, SqlSupplier<T> loader)
+            throws ClassNotFoundException, IOException, SQLException {
+        UnitOfWork uow = current.get();
+        if (uow == null) {
+            return loader.get();
+        }
+
+        Map<Object, Object> entities = uow.identityMap.computeIfAbsent(type, k -> new HashMap<>());
+        if (entities.containsKey(id)) {
+            return type.cast(entities.get(id));
+        }
+
+        T entity = loader.get();
+        entities.put(id, entity);
+        return entity;
+    }
+
+    /**
+     * Find several entities in the identity map of the current request. The entities that have
+     * not been looked up yet are loaded together, with a single call to the loader.
+     *
+     * @param type:   type of the entities
+     * @param ids:    ids of the entities
+     * @param loader: used to load the missing entities from the database (e.g. a findByIds)
+     * @return found entities by id, the entities that do not exist are left out
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static <T, ID> Map<ID, T> findAll(Class<T> type, Collection<ID> ids, SqlFunction<Collection<ID>, Map<ID, T>> loader)
+            throws ClassNotFoundException, IOException, SQLException {
+        UnitOfWork uow = current.get();
+        if (uow == null) {
+            return loader.apply(ids);
+        }
+
+        Map<Object, Object> entities = uow.identityMap.computeIfAbsent(type, k -> new HashMap<>());
+        List<ID> missing = new ArrayList<>();
+        for (ID id : ids) {
+            if (!entities.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<ID, T> loaded = loader.apply(missing);
+            for (ID id : missing) {
+                // Remembered as not found too
+                entities.put(id, loaded.get(id));
+            }
+        }
+
+        Map<ID, T> found = new LinkedHashMap<>();
+        for (ID id : ids) {
+            T entity = type.cast(entities.get(id));
+            if (entity != null) {
+                found.put(id, entity);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Remove an entity from the identity map of the current request (after a write)
+     *
+     * @param type: type of the entity
+     * @param id:   id of the entity
+     */
+    public static void evict(Class<?> type, Object id) {
+        UnitOfWork uow = current.get();
+        if (uow == null) {
+            return;
+        }
+
+        Map<Object, Object> entities = uow.identityMap.get(type);
+        if (entities != null) {
+            entities.remove(id);
+        }
+    }
+
+    /**
+     * Run an action once the current transaction is committed (e.g. invalidate a cache,
+     * so other requests cannot cache data read before the commit).
+     * The action is run immediately when no transaction is active.
+     *
+     * @param action: action to run
+     */
+    public static void afterCommit(Runnable action) {
+        UnitOfWork uow = current.get();
+        if (uow == null || !uow.transactional) {
+            action.run();
+            return;
+        }
+        uow.afterCommit.add(action);
+    }
+
+    /**
+     * Get the number of transactions committed by this instance, to detect local writes
+     *
+     * @return number of committed transactions
+     */
+    public static long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * Check if the unit of work runs in a transaction
+     *
+     * @return true if the statements are run in a transaction
+     */
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * Get the connection of the unit of work, borrowed from the pool on first use.
+     * The returned connection ignores close() so DAOs can keep using try-with-resources.
+     *
+     * @return connection bound to the unit of work
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    Connection getConnection() throws ClassNotFoundException, IOException, SQLException {
+        if (connection == null) {
+            connection = DatabaseUtil.borrowConnection();
+            if (transactional) {
+                connection.setAutoCommit(false);
+            }
+            sharedConnection = (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("close")) {
+                            return null;
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+        return sharedConnection;
+    }
+
+    /**
+     * Commit or roll back the pending transaction and give the connection back to the pool
+     *
+     * @param success: true to commit, false to roll back
+     * @throws SQLException
+     */
+    private void release(boolean success) throws SQLException {
+        if (connection == null) {
+            return;
+        }
+        try {
+            if (!connection.getAutoCommit()) {
+                if (success) {
+                    connection.commit();
+                    commits.incrementAndGet();
+                } else {
+                    connection.rollback();
+                }
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            connection.close();
+            connection = null;
+            sharedConnection = null;
+        }
+    }
+}
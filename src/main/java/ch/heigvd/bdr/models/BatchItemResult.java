@@ -0,0 +1,62 @@
+package ch.heigvd.bdr.models;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Stores the outcome of an item of a batch request (e.g. POST /tasks/batch)
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+    private int index;
+    private int status;
+    private Integer id;
+    private String message;
+
+    public BatchItemResult(int index, int status, Integer id, String message) {
+        this.index = index;
+        this.status = status;
+        this.id = id;
+        this.message = message;
+    }
+
+    /**
+     * @return position of the item in the request
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * @return HTTP status of the item
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * @return id of the created or updated entity, null if the item failed
+     */
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -27,6 +27,17 @@ public class Goal {
         this.teamId = teamId;
     }
 
+    /**
+     * Copy a goal (e.g. a goal of a cached list, before setting its relations)
+     *
+     * @param goal: goal to copy
+     */
+    public Goal(Goal goal) {
+        this(goal.id, goal.name, goal.description, goal.note, goal.tag, goal.projectId, goal.teamId);
+        this.team = goal.team;
+        this.project = goal.project;
+    }
+
     // Getters and setters
     public int getId() {
         return id;
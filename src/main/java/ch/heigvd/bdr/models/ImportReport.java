@@ -0,0 +1,66 @@
+package ch.heigvd.bdr.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the outcome of an import (e.g. POST /tasks/import): the number of rows
+ * imported and rejected, and why the rows have been rejected
+ */
+public class ImportReport {
+    // Only the first errors are reported, an import may reject thousands of rows
+    public static final int MAX_ERRORS = 1_000;
+
+    private long imported;
+    private long rejected;
+    private List<RowError> errors = new ArrayList<>();
+
+    /**
+     * Error of a rejected row
+     *
+     * @param line:    line of the row in the file
+     * @param message: why the row has been rejected
+     */
+    public record RowError(int line, String message) {
+    }
+
+    /**
+     * Count a rejected row
+     *
+     * @param line:    line of the row in the file
+     * @param message: why the row has been rejected
+     */
+    public void reject(int line, String message) {
+        rejected++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(new RowError(line, message));
+        }
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public void setImported(long imported) {
+        this.imported = imported;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return errors of the first MAX_ERRORS rejected rows, ordered by line
+     */
+    public List<RowError> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(List<RowError> errors) {
+        this.errors = errors;
+    }
+}
@@ -28,6 +28,16 @@ public class Result {
         this.goalId = goalId;
     }
 
+    /**
+     * Copy a result (e.g. a result of a cached list, before setting its relations)
+     *
+     * @param result: result to copy
+     */
+    public Result(Result result) {
+        this(result.id, result.title, result.createdAt, result.endsAt, result.note, result.tag, result.goalId);
+        this.goal = result.goal;
+    }
+
     // Getters and setters
     public int getId() {
         return id;
@@ -0,0 +1,35 @@
+package ch.heigvd.bdr.models;
+
+import java.time.LocalDateTime;
+
+/**
+ * Stores the version of a row (or of a whole table) and the date of its last modification
+ */
+public class RowVersion {
+    private long version;
+    private LocalDateTime updatedAt;
+
+    public RowVersion(long version, LocalDateTime updatedAt) {
+        this.version = version;
+        this.updatedAt = updatedAt;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return date of the last modification (UTC)
+     */
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,57 @@
+package ch.heigvd.bdr.models;
+
+import java.util.List;
+
+/**
+ * Stores a task with its needs and its subtasks (GET /tasks/{id}/full)
+ */
+public class TaskDetail {
+    private Task task;
+    private List<MaterialNeed> materialNeeds;
+    private List<CollaboratorNeed> collaboratorNeeds;
+    private List<SubtaskInfo> subtasks;
+
+    public TaskDetail() {
+    }
+
+    public TaskDetail(Task task, List<MaterialNeed> materialNeeds, List<CollaboratorNeed> collaboratorNeeds,
+                      List<SubtaskInfo> subtasks) {
+        this.task = task;
+        this.materialNeeds = materialNeeds;
+        this.collaboratorNeeds = collaboratorNeeds;
+        this.subtasks = subtasks;
+    }
+
+    // Getters and setters
+    public Task getTask() {
+        return task;
+    }
+
+    public void setTask(Task task) {
+        this.task = task;
+    }
+
+    public List<MaterialNeed> getMaterialNeeds() {
+        return materialNeeds;
+    }
+
+    public void setMaterialNeeds(List<MaterialNeed> materialNeeds) {
+        this.materialNeeds = materialNeeds;
+    }
+
+    public List<CollaboratorNeed> getCollaboratorNeeds() {
+        return collaboratorNeeds;
+    }
+
+    public void setCollaboratorNeeds(List<CollaboratorNeed> collaboratorNeeds) {
+        this.collaboratorNeeds = collaboratorNeeds;
+    }
+
+    public List<SubtaskInfo> getSubtasks() {
+        return subtasks;
+    }
+
+    public void setSubtasks(List<SubtaskInfo> subtasks) {
+        this.subtasks = subtasks;
+    }
+}